@@ -0,0 +1,38 @@
+package edu.arizona.cs;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ *  Runs the benchmarks with the usual JMH command line, but writes the results as JSON to
+ *  jmh-result.json unless -rf/-rff say otherwise, so that runs can be compared.
+ */
+public class BenchmarkMain
+{
+    public static void main (String[] args) throws Exception
+    {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!commandLine.getResult().hasValue())
+            options.result("jmh-result.json");
+
+        if (commandLine.shouldHelp())
+        {
+            commandLine.showHelp();
+            return;
+        }
+        Options built = options.build();
+        if (commandLine.shouldList())
+        {
+            new Runner(built).list();
+            return;
+        }
+        new Runner(built).run();
+    }
+}
@@ -0,0 +1,173 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/*
+ *  The small corpus and questions bundled with the benchmarks, so that they run offline and
+ *  every run measures the same input. The fixture files are copied out of the jar into a
+ *  temporary directory, as the readers being measured work on files.
+ */
+final class Fixtures
+{
+    static final String WIKI_PAGES = "fixtures/wiki-pages.txt";
+    static final String QUESTIONS = "fixtures/questions.txt";
+
+    private Fixtures ()
+    {
+    }
+
+    /*
+     *  Copy a fixture into the directory and return the copy.
+     */
+    static File copy (String resource, Path directory) throws IOException
+    {
+        Path target = directory.resolve(resource.substring(resource.lastIndexOf('/') + 1));
+        try (InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(resource))
+        {
+            if (in == null)
+                throw new FileNotFoundException("Missing benchmark fixture " + resource);
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return target.toFile();
+    }
+
+    /*
+     *  The raw fixture pages, with cleaned titles.
+     */
+    static List<Wiki_Page> rawPages() throws IOException
+    {
+        Path directory = Files.createTempDirectory("watson-fixtures");
+        List<Wiki_Page> wikiPages = new ArrayList<>();
+        try (RawWikiReader reader = new RawWikiReader(new File[] { copy(WIKI_PAGES, directory) }))
+        {
+            Wiki_Page wikiPage;
+            while ((wikiPage = reader.next()) != null)
+            {
+                wikiPage.Title = Watson.cleanTitle(wikiPage.Title);
+                wikiPages.add(wikiPage);
+            }
+        }
+        return wikiPages;
+    }
+
+    /*
+     *  The fixture pages as the whitespace analyzer expects them: lower cased words only,
+     *  standing in for lemmatized content without loading the CoreNLP models.
+     */
+    static List<Wiki_Page> normalizedPages() throws IOException
+    {
+        List<Wiki_Page> wikiPages = rawPages();
+        for (Wiki_Page wikiPage : wikiPages)
+            wikiPage.Content = normalize(wikiPage.Content);
+        return wikiPages;
+    }
+
+    /*
+     *  Repeat the pages until there are numPages of them, each with a distinct title.
+     */
+    static List<Wiki_Page> repeat (List<Wiki_Page> wikiPages, int numPages)
+    {
+        List<Wiki_Page> repeated = new ArrayList<>(numPages);
+        for (int i = 0; i < numPages; i++)
+        {
+            Wiki_Page original = wikiPages.get(i % wikiPages.size());
+            Wiki_Page copy = new Wiki_Page();
+            copy.Title = original.Title + " " + (i / wikiPages.size());
+            copy.Category = original.Category;
+            copy.Content = original.Content;
+            repeated.add(copy);
+        }
+        return repeated;
+    }
+
+    static List<Questions> questions() throws IOException
+    {
+        List<Questions> questions = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                Fixtures.class.getClassLoader().getResourceAsStream(QUESTIONS), StandardCharsets.UTF_8)))
+        {
+            String category;
+            while ((category = reader.readLine()) != null)
+            {
+                Questions question = new Questions();
+                question.Category = category;
+                question.Clue = reader.readLine();
+                question.Answer = reader.readLine();
+                reader.readLine();
+                questions.add(question);
+            }
+        }
+        return questions;
+    }
+
+    /*
+     *  Write the pages in the format of the raw wiki files.
+     */
+    static File writeRaw (List<Wiki_Page> wikiPages, Path file) throws IOException
+    {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            for (Wiki_Page wikiPage : wikiPages)
+            {
+                writer.write("[[" + wikiPage.Title + "]]\n\n");
+                if (wikiPage.Category != null)
+                    writer.write(wikiPage.Category + "\n\n");
+                writer.write(wikiPage.Content + "\n\n");
+            }
+        }
+        return file.toFile();
+    }
+
+    /*
+     *  The code under test reports its progress on System.out, which would flood the
+     *  benchmark output. Returns the original stream, to put back with System.setOut.
+     */
+    static PrintStream silenceOutput()
+    {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write (int b)
+            {
+            }
+
+            @Override
+            public void write (byte[] b, int off, int len)
+            {
+            }
+        }));
+        return out;
+    }
+
+    static String normalize (String text)
+    {
+        return text.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{Nd}]+", " ").trim();
+    }
+
+    /*
+     *  A PageSource over a list of pages.
+     */
+    static PageSource source (List<Wiki_Page> wikiPages)
+    {
+        Iterator<Wiki_Page> pages = wikiPages.iterator();
+        return new PageSource()
+        {
+            @Override
+            public Wiki_Page next()
+            {
+                return pages.hasNext() ? pages.next() : null;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+}
@@ -0,0 +1,63 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+// Lucene classes
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+// JMH classes
+import org.openjdk.jmh.annotations.*;
+
+/*
+ *  Documents per second indexed from already lemmatized pages, through the IndexingPipeline
+ *  that IndexDocuments runs, with indexThreads threads calling addDocument. The index is
+ *  written to the heap, so that the disk does not add noise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexingBenchmark
+{
+    static final int PAGES = 10000;
+
+    @Param({ "1", "2", "4" })
+    public int indexThreads;
+
+    private List<Wiki_Page> wikiPages;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        out = Fixtures.silenceOutput();
+        wikiPages = Fixtures.repeat(Fixtures.normalizedPages(), PAGES);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGES)
+    public long indexDocuments() throws IOException
+    {
+        IndexWriterConfig config = new IndexWriterConfig(Watson.createIndexAnalyzer(false));
+        config.setRAMBufferSizeMB(Watson.INDEX_RAM_BUFFER_MB);
+        config.setMergePolicy(Watson.createMergePolicy(Watson.INDEX_MERGE_POLICY));
+        try (IndexWriter writer = new IndexWriter(new ByteBuffersDirectory(), config))
+        {
+            IndexingPipeline pipeline = new IndexingPipeline(writer, 1, indexThreads, Watson.PIPELINE_QUEUE_CAPACITY);
+            long numIndexed = pipeline.run(Fixtures.source(wikiPages), false);
+            writer.commit();
+            return numIndexed;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+// JMH classes
+import org.openjdk.jmh.annotations.*;
+
+/*
+ *  Time to lemmatize one wiki page with PageLemmatizer. Every benchmark thread owns its
+ *  lemmatizer, as the lemmatizer workers do, so -t N measures N workers side by side.
+ *  The CoreNLP models need a few GB of heap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LemmatizeBenchmark
+{
+    private PageLemmatizer lemmatizer;
+    private List<Wiki_Page> wikiPages;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        wikiPages = Fixtures.rawPages();
+        lemmatizer = new PageLemmatizer();
+    }
+
+    @Benchmark
+    public String lemmatizePage()
+    {
+        Wiki_Page wikiPage = wikiPages.get(next++ % wikiPages.size());
+        return lemmatizer.lemmatize(wikiPage.Content);
+    }
+}
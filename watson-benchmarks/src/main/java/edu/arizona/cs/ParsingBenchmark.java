@@ -0,0 +1,91 @@
+package edu.arizona.cs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+// JMH classes
+import org.openjdk.jmh.annotations.*;
+
+/*
+ *  Pages per second read back by retrieveLammatizedWiki from a LemmaCache, and parsed from
+ *  raw wiki text by the RawWikiReader and the MappedWikiSplitter. Run with -t N to read with
+ *  N threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark
+{
+    static final int PAGES = 5000;
+
+    private Path directory;
+    private File cacheFile;
+    private File rawFile;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        out = Fixtures.silenceOutput();
+        directory = Files.createTempDirectory("watson-parsing");
+
+        List<Wiki_Page> rawPages = Fixtures.repeat(Fixtures.rawPages(), PAGES);
+        rawFile = Fixtures.writeRaw(rawPages, directory.resolve("wiki-pages.txt"));
+
+        cacheFile = directory.resolve("lemmatized-wiki.cache").toFile();
+        try (LemmaCache.Writer writer = new LemmaCache.Writer(cacheFile.toPath()))
+        {
+            for (Wiki_Page wikiPage : Fixtures.repeat(Fixtures.normalizedPages(), PAGES))
+                writer.add(wikiPage);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        System.setOut(out);
+        Files.deleteIfExists(cacheFile.toPath());
+        Files.deleteIfExists(rawFile.toPath());
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGES)
+    public List<Wiki_Page> retrieveLemmatizedWiki() throws IOException
+    {
+        return Watson.retrieveLammatizedWiki(cacheFile);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGES)
+    public int readRawPages() throws IOException
+    {
+        int numPages = 0;
+        try (RawWikiReader reader = new RawWikiReader(new File[] { rawFile }))
+        {
+            while (reader.next() != null)
+                numPages++;
+        }
+        return numPages;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGES)
+    public int readMappedPages() throws IOException
+    {
+        int numPages = 0;
+        try (PageSource source = new MappedWikiSplitter(new File[] { rawFile }, 1).source())
+        {
+            while (source.next() != null)
+                numPages++;
+        }
+        return numPages;
+    }
+}
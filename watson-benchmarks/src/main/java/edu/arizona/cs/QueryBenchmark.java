@@ -0,0 +1,90 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+// Lucene classes
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+// JMH classes
+import org.openjdk.jmh.annotations.*;
+
+/*
+ *  Latency of answering one question the way query does: parse the lemmatized clue, search
+ *  the top HITS_PER_PAGE hits and resolve their titles. The fixture pages are indexed into
+ *  several segments, which segmentThreads threads search in parallel (1: serial). Run with
+ *  -t N for N concurrent questions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark
+{
+    static final int PAGES = 20000;
+
+    @Param({ "1", "4" })
+    public int segmentThreads;
+
+    private List<Questions> questions;
+    private DirectoryReader reader;
+    private ExecutorService executor;
+    private IndexSearcher searcher;
+    private PrintStream out;
+
+    @State(Scope.Thread)
+    public static class Parser
+    {
+        QueryParser parser = new QueryParser("content", Watson.createQueryAnalyzer());
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        out = Fixtures.silenceOutput();
+        questions = Fixtures.questions();
+        for (Questions question : questions)
+            question.Clue = Fixtures.normalize(question.Clue);
+
+        ByteBuffersDirectory directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Watson.createIndexAnalyzer(false));
+        // Small buffers give the segment threads several segments to split
+        config.setRAMBufferSizeMB(4);
+        try (IndexWriter writer = new IndexWriter(directory, config))
+        {
+            for (Wiki_Page wikiPage : Fixtures.repeat(Fixtures.normalizedPages(), PAGES))
+                writer.addDocument(Watson.createDocument(wikiPage));
+        }
+
+        reader = DirectoryReader.open(directory);
+        executor = (segmentThreads > 1) ? Executors.newFixedThreadPool(segmentThreads) : null;
+        searcher = new IndexSearcher(reader, executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        System.setOut(out);
+        if (executor != null)
+            executor.shutdownNow();
+        reader.close();
+    }
+
+    @Benchmark
+    public QueryResult query(Parser state) throws IOException, ParseException
+    {
+        Questions question = questions.get(state.next++ % questions.size());
+        return Watson.search(searcher, state.parser, question.Clue, Watson.HITS_PER_PAGE);
+    }
+}
@@ -0,0 +1,299 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+// Lucene classes
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+
+/*
+ *  End-to-end scaling run over synthetic corpora of growing size. For every size it
+ *  generates (or reuses) a SyntheticCorpus and measures, one after the other,
+ *
+ *      ingest  reading and splitting the raw wiki files into pages (pages/sec)
+ *      index   the pipeline of the index mode into a fresh index on disk (pages/sec, index size)
+ *      query   the questions of the corpus on SEARCH_THREADS threads (questions/sec, latency
+ *              percentiles, MRR and accuracy)
+ *
+ *  with the peak heap of each stage. The table ends with the throughput of every stage
+ *  relative to the smallest size: for a pipeline that scales linearly it stays near 1.0,
+ *  so the size where it drops is where the pipeline stops scaling. The results are also
+ *  written as JSON.
+ *
+ *  Unlike the JMH benchmarks, every stage runs once per size, as a 10M page run cannot be
+ *  repeated many times. Run it with the heap and the watson.* properties under test, e.g.
+ *
+ *      java -Xmx8g -Dwatson.scaling.sizes=10000,100000,1000000 -cp benchmarks.jar edu.arizona.cs.ScalingBenchmark
+ */
+public class ScalingBenchmark
+{
+    // Corpus sizes in pages, where the corpora and indexes are kept, questions per corpus,
+    // whether pages are lemmatized by CoreNLP (otherwise the synthetic words are indexed as
+    // they are), whether the smallest size is run once unreported to warm up the JIT, and
+    // where the JSON results go
+    static final String SIZES = System.getProperty("watson.scaling.sizes", "10000,100000,1000000,10000000");
+    static final String DIRECTORY = System.getProperty("watson.scaling.dir", "./scaling");
+    static final int QUESTIONS = Integer.getInteger("watson.scaling.questions", 1000);
+    static final boolean LEMMATIZE = Boolean.getBoolean("watson.scaling.lemmatize");
+    static final boolean WARMUP = Boolean.parseBoolean(System.getProperty("watson.scaling.warmup", "true"));
+    static final String RESULT_FILE = System.getProperty("watson.scaling.result", "scaling-result.json");
+
+    /*
+     *  The measurements of one corpus size.
+     */
+    static final class Result
+    {
+        long pages;
+        long rawBytes;
+        double ingestSeconds;
+        long ingestPeakHeap;
+        double indexSeconds;
+        long indexBytes;
+        long indexPeakHeap;
+        double querySeconds;
+        long queryPeakHeap;
+        LatencyStats latency = new LatencyStats();
+        StreamingEvaluator.Tally tally;
+
+        double ingestRate()
+        {
+            return pages / ingestSeconds;
+        }
+
+        double indexRate()
+        {
+            return pages / indexSeconds;
+        }
+
+        double queryRate()
+        {
+            return tally.size() / querySeconds;
+        }
+    }
+
+    public static void main (String[] args) throws Exception
+    {
+        SyntheticCorpus corpus = SyntheticCorpus.fromProperties();
+        List<Result> results = new ArrayList<>();
+        for (String size : SIZES.split(","))
+        {
+            long numPages = Long.parseLong(size.trim());
+            Path directory = Paths.get(DIRECTORY, "pages-" + numPages);
+            System.out.printf("Generating %d pages in %s ...\n", numPages, directory);
+            File[] wikiFiles = corpus.generate(directory, numPages, Integer.getInteger("watson.synthetic.pagesPerFile", 10000),
+                QUESTIONS, Integer.getInteger("watson.synthetic.threads", Runtime.getRuntime().availableProcessors()));
+
+            if (WARMUP && results.isEmpty())
+            {
+                System.out.println("Warm-up run ...");
+                run(wikiFiles, directory);
+            }
+            Result result = run(wikiFiles, directory);
+            results.add(result);
+            System.out.print(table(results));
+            writeJson(results, Paths.get(RESULT_FILE));
+        }
+    }
+
+    static Result run (File[] wikiFiles, Path directory) throws Exception
+    {
+        Result result = new Result();
+        for (File file : wikiFiles)
+            result.rawBytes += file.length();
+
+        System.gc();
+        resetPeakHeap();
+        long start = System.nanoTime();
+        result.pages = ingest(wikiFiles);
+        result.ingestSeconds = (System.nanoTime() - start) / 1e9;
+        result.ingestPeakHeap = peakHeap();
+        System.out.printf("Ingested %d pages in %.2f Secs.\n", result.pages, result.ingestSeconds);
+
+        Path indexPath = directory.resolve("index");
+        System.gc();
+        resetPeakHeap();
+        start = System.nanoTime();
+        boolean analyzeRaw = LEMMATIZE && Watson.LEMMA_ANALYSIS;
+        try (ShardedIndex index = ShardedIndex.create(indexPath, Watson.INDEX_SHARDS, () -> Watson.createIndexAnalyzer(analyzeRaw)))
+        {
+            Watson.IndexDocuments(index, Watson.rawPages(wikiFiles, Watson.READ_THREADS), LEMMATIZE);
+        }
+        result.indexSeconds = (System.nanoTime() - start) / 1e9;
+        result.indexPeakHeap = peakHeap();
+        result.indexBytes = directorySize(indexPath);
+
+        System.gc();
+        resetPeakHeap();
+        List<Questions> questions = questions(directory.resolve(SyntheticCorpus.QUESTIONS));
+        result.tally = new StreamingEvaluator.Tally(Watson.HITS_PER_PAGE);
+        try (IndexReader reader = ShardedIndex.openReader(indexPath, Watson.INDEX_STORAGE, Watson.WARMUP_TERMS))
+        {
+            start = System.nanoTime();
+            query(new IndexSearcher(reader), questions, result);
+            result.querySeconds = (System.nanoTime() - start) / 1e9;
+        }
+        result.queryPeakHeap = peakHeap();
+        return result;
+    }
+
+    /*
+     *  Read every page of the files the way the index mode does, without lemmatizing or
+     *  indexing them, and return the number of pages.
+     */
+    private static long ingest (File[] wikiFiles) throws Exception
+    {
+        List<PageSource> sources = Watson.rawPages(wikiFiles, Watson.READ_THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(sources.size());
+        AtomicLong numPages = new AtomicLong();
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (PageSource source : sources)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    try (PageSource pages = source)
+                    {
+                        while (pages.next() != null)
+                            numPages.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return numPages.get();
+    }
+
+    private static void query (IndexSearcher searcher, List<Questions> questions, Result result) throws Exception
+    {
+        int threads = Math.max(1, Watson.SEARCH_THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    QueryParser parser = new QueryParser("content", Watson.createQueryAnalyzer());
+                    for (int i = next.getAndIncrement(); i < questions.size(); i = next.getAndIncrement())
+                    {
+                        long start = System.nanoTime();
+                        QueryResult hits = Watson.search(searcher, parser, questions.get(i).Clue, questions.get(i).Category, Watson.HITS_PER_PAGE);
+                        result.latency.record(System.nanoTime() - start);
+                        result.tally.add(Evaluation.rankOf(questions.get(i).Answer, hits));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<Questions> questions (Path questionsFile) throws IOException
+    {
+        List<Questions> questions = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(questionsFile, StandardCharsets.UTF_8))
+        {
+            Questions question;
+            while ((question = StreamingEvaluator.next(reader)) != null)
+                questions.add(question);
+        }
+        return questions;
+    }
+
+    private static void resetPeakHeap()
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    /*
+     *  The sum of the peaks of the heap pools since the last reset. The pools peak at
+     *  different times, so this is an upper bound of the heap actually used at once.
+     */
+    private static long peakHeap()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static long directorySize (Path path) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(path))
+        {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    static String table (List<Result> results)
+    {
+        StringBuilder table = new StringBuilder();
+        table.append(String.format("%10s %9s %10s %9s %10s %9s %9s %10s %9s %9s %9s %9s %7s %7s   %s\n",
+            "pages", "raw MB", "ingest/s", "heap MB", "index/s", "index MB", "heap MB",
+            "queries/s", "p50 ms", "p90 ms", "p99 ms", "heap MB", "MRR", "P@1", "scaling (ingest/index/query)"));
+        Result first = results.get(0);
+        for (Result result : results)
+        {
+            table.append(String.format("%10d %9.1f %10.0f %9d %10.0f %9.1f %9d %10.0f %9.3f %9.3f %9.3f %9d %7.3f %6.1f%%   %.2f/%.2f/%.2f\n",
+                result.pages, result.rawBytes / 1e6, result.ingestRate(), result.ingestPeakHeap >> 20,
+                result.indexRate(), result.indexBytes / 1e6, result.indexPeakHeap >> 20,
+                result.queryRate(), result.latency.percentileNanos(50) / 1e6, result.latency.percentileNanos(90) / 1e6,
+                result.latency.percentileNanos(99) / 1e6, result.queryPeakHeap >> 20,
+                result.tally.mrr(), result.tally.accuracy() * 100,
+                result.ingestRate() / first.ingestRate(), result.indexRate() / first.indexRate(), result.queryRate() / first.queryRate()));
+        }
+        return table.toString();
+    }
+
+    private static void writeJson (List<Result> results, Path file) throws IOException
+    {
+        StringJoiner json = new StringJoiner(",\n  ", "[\n  ", "\n]\n");
+        for (Result result : results)
+        {
+            json.add("{\"pages\":" + result.pages + ",\"rawBytes\":" + result.rawBytes
+                + ",\"ingest\":{\"seconds\":" + Json.number(result.ingestSeconds) + ",\"pagesPerSecond\":" + Json.number(result.ingestRate())
+                + ",\"peakHeapBytes\":" + result.ingestPeakHeap + "}"
+                + ",\"index\":{\"seconds\":" + Json.number(result.indexSeconds) + ",\"pagesPerSecond\":" + Json.number(result.indexRate())
+                + ",\"indexBytes\":" + result.indexBytes + ",\"peakHeapBytes\":" + result.indexPeakHeap + "}"
+                + ",\"query\":{\"questions\":" + result.tally.size() + ",\"questionsPerSecond\":" + Json.number(result.queryRate())
+                + ",\"p50Nanos\":" + result.latency.percentileNanos(50) + ",\"p90Nanos\":" + result.latency.percentileNanos(90)
+                + ",\"p99Nanos\":" + result.latency.percentileNanos(99) + ",\"maxNanos\":" + result.latency.maxNanos()
+                + ",\"mrr\":" + Json.number(result.tally.mrr()) + ",\"accuracy\":" + Json.number(result.tally.accuracy())
+                + ",\"peakHeapBytes\":" + result.queryPeakHeap + "}}");
+        }
+        Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,318 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ *  Writes a synthetic corpus of any size in the format of the raw wiki files, with a
+ *  questions file whose answers are known, so that the pipeline can be measured without
+ *  the wiki dump.
+ *
+ *  Words are made of syllables and drawn from a Zipf distribution over the vocabulary, as
+ *  in natural text, so the postings lists have realistic lengths: a few very long ones and
+ *  a long tail of short ones. Everything is lower case and without punctuation, standing in
+ *  for lemmatized content, so the whitespace index matches what the query analyzer makes of
+ *  the clues. Every page is generated from its own seed, so files are written in parallel
+ *  and a question can regenerate the page it is about. The clue of a question is a few of
+ *  the rarest words of its page and some common ones, and its answer is the page title.
+ *
+ *  A corpus directory records its parameters in corpus.properties, and generate leaves a
+ *  directory with the same parameters as it is. Otherwise the files it wrote before are
+ *  deleted first, so that no wiki file of a larger corpus is left behind.
+ */
+final class SyntheticCorpus
+{
+    static final String MANIFEST = "corpus.properties";
+    static final String QUESTIONS = "questions.txt";
+    static final String WIKI_DIR = "wiki-pages";
+
+    private static final String CONSONANTS = "bdfghklmnprstvz";
+    private static final String VOWELS = "aeiou";
+    private static final int SYLLABLES = CONSONANTS.length() * VOWELS.length();
+    private static final int CATEGORIES = 1000;
+    private static final int CLUE_WORDS = 6;
+
+    private final long seed;
+    private final int vocabularySize;
+    private final int meanWords;
+    // Cumulative Zipf probabilities of the words, most frequent first
+    private final double[] cumulative;
+
+    SyntheticCorpus (long seed, int vocabularySize, int meanWords)
+    {
+        this.seed = seed;
+        this.vocabularySize = vocabularySize;
+        this.meanWords = meanWords;
+        this.cumulative = zipf(vocabularySize, 1.07);
+    }
+
+    private static double[] zipf (int size, double exponent)
+    {
+        double[] cumulative = new double[size];
+        double sum = 0.0;
+        for (int rank = 0; rank < size; rank++)
+        {
+            sum += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < size; rank++)
+            cumulative[rank] /= sum;
+        return cumulative;
+    }
+
+    /*
+     *  The word of the rank: the rank in base SYLLABLES, at least two syllables long, so no
+     *  two ranks give the same word and no word is an English stop word.
+     */
+    static String word (int rank)
+    {
+        StringBuilder word = new StringBuilder();
+        int value = rank;
+        do
+        {
+            int syllable = value % SYLLABLES;
+            word.append(CONSONANTS.charAt(syllable / VOWELS.length())).append(VOWELS.charAt(syllable % VOWELS.length()));
+            value /= SYLLABLES;
+        }
+        while (value > 0 || word.length() < 4);
+        return word.toString();
+    }
+
+    /*
+     *  The unique title of the page, e.g. "Bakotu Page 17".
+     */
+    static String title (long page)
+    {
+        String name = word((int) (page % Integer.MAX_VALUE));
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1) + " Page " + page;
+    }
+
+    private Random random (long page)
+    {
+        // SplitMix64 finalizer, so that the seeds of neighbouring pages are unrelated
+        long z = seed + page * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(z ^ (z >>> 31));
+    }
+
+    private int nextRank (Random random)
+    {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(vocabularySize - 1, (rank < 0) ? -rank - 1 : rank);
+    }
+
+    /*
+     *  The page with its categories and the ranks of its words, in order.
+     */
+    Wiki_Page page (long page, List<Integer> ranks)
+    {
+        Random random = random(page);
+        Wiki_Page wikiPage = new Wiki_Page();
+        wikiPage.Title = title(page);
+
+        StringBuilder categories = new StringBuilder("CATEGORIES: ");
+        int numCategories = 1 + random.nextInt(3);
+        for (int i = 0; i < numCategories; i++)
+        {
+            if (i > 0)
+                categories.append(", ");
+            categories.append("Category ").append(word(random.nextInt(CATEGORIES)));
+        }
+        wikiPage.Category = categories.toString();
+
+        // Exponentially distributed lengths with a floor, so there are some very long pages
+        int numWords = meanWords / 4 + (int) (-Math.log(1.0 - random.nextDouble()) * meanWords * 3 / 4);
+        StringBuilder content = new StringBuilder(numWords * 8);
+        for (int i = 0; i < numWords; i++)
+        {
+            int rank = nextRank(random);
+            ranks.add(rank);
+            if (i > 0)
+                content.append((i % 20 == 0) ? '\n' : ' ');
+            content.append(word(rank));
+        }
+        wikiPage.Content = content.toString();
+        return wikiPage;
+    }
+
+    /*
+     *  A question about the page: the rarest words of the page and some others drawn from it.
+     */
+    Questions question (long page)
+    {
+        List<Integer> ranks = new ArrayList<>();
+        Wiki_Page wikiPage = page(page, ranks);
+        TreeSet<Integer> distinct = new TreeSet<>(ranks);
+
+        List<Integer> clueRanks = new ArrayList<>();
+        Iterator<Integer> rarest = distinct.descendingIterator();
+        while (rarest.hasNext() && clueRanks.size() < CLUE_WORDS / 2)
+            clueRanks.add(rarest.next());
+        Random random = random(~page);
+        for (int i = 0; i < ranks.size() && clueRanks.size() < CLUE_WORDS; i++)
+        {
+            int rank = ranks.get(random.nextInt(ranks.size()));
+            if (!clueRanks.contains(rank))
+                clueRanks.add(rank);
+        }
+        Collections.shuffle(clueRanks, random);
+
+        Questions question = new Questions();
+        question.Category = wikiPage.Category.substring("CATEGORIES: ".length()).split(",")[0].toUpperCase(Locale.ROOT);
+        StringBuilder clue = new StringBuilder();
+        for (int rank : clueRanks)
+            clue.append((clue.length() > 0) ? " " : "").append(word(rank));
+        question.Clue = clue.toString();
+        question.Answer = wikiPage.Title;
+        return question;
+    }
+
+    /*
+     *  Write numPages pages into files of pagesPerFile pages under directory/wiki-pages, and
+     *  numQuestions questions about random pages into directory/questions.txt, with threads
+     *  writing files in parallel. Returns the wiki files.
+     */
+    File[] generate (Path directory, long numPages, int pagesPerFile, int numQuestions, int threads) throws IOException
+    {
+        Properties manifest = new Properties();
+        manifest.setProperty("seed", Long.toString(seed));
+        manifest.setProperty("vocabulary", Integer.toString(vocabularySize));
+        manifest.setProperty("meanWords", Integer.toString(meanWords));
+        manifest.setProperty("pages", Long.toString(numPages));
+        manifest.setProperty("pagesPerFile", Integer.toString(pagesPerFile));
+        manifest.setProperty("questions", Integer.toString(numQuestions));
+
+        Path wikiDir = directory.resolve(WIKI_DIR);
+        int numFiles = (int) ((numPages + pagesPerFile - 1) / pagesPerFile);
+        File[] wikiFiles = new File[numFiles];
+        for (int f = 0; f < numFiles; f++)
+            wikiFiles[f] = wikiDir.resolve(String.format("wiki-%06d.txt", f)).toFile();
+
+        Path manifestPath = directory.resolve(MANIFEST);
+        if (Files.exists(manifestPath))
+        {
+            Properties existing = new Properties();
+            try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8))
+            {
+                existing.load(reader);
+            }
+            if (existing.equals(manifest))
+                return wikiFiles;
+        }
+        clear(directory);
+
+        Files.createDirectories(wikiDir);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int f = 0; f < numFiles; f++)
+            {
+                long from = (long) f * pagesPerFile;
+                long to = Math.min(numPages, from + pagesPerFile);
+                File file = wikiFiles[f];
+                futures.add(executor.submit(() -> writePages(file.toPath(), from, to)));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while generating " + directory);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Generating a wiki file failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        Random random = new Random(seed);
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(QUESTIONS), StandardCharsets.UTF_8))
+        {
+            for (int i = 0; i < numQuestions; i++)
+            {
+                Questions question = question((long) (random.nextDouble() * numPages));
+                writer.write(question.Category + "\n" + question.Clue + "\n" + question.Answer + "\n\n");
+            }
+        }
+
+        // Written last, so that an interrupted run is generated again
+        try (Writer writer = Files.newBufferedWriter(manifestPath, StandardCharsets.UTF_8))
+        {
+            manifest.store(writer, "Synthetic corpus");
+        }
+        return wikiFiles;
+    }
+
+    /*
+     *  Delete what generate writes into the directory: the manifest first, so that a corpus
+     *  cut short is never taken as complete, then the questions and the wiki files. Other
+     *  files are left alone.
+     */
+    private static void clear (Path directory) throws IOException
+    {
+        Files.deleteIfExists(directory.resolve(MANIFEST));
+        Files.deleteIfExists(directory.resolve(QUESTIONS));
+        Path wikiDir = directory.resolve(WIKI_DIR);
+        if (!Files.isDirectory(wikiDir))
+            return;
+        try (DirectoryStream<Path> wikiFiles = Files.newDirectoryStream(wikiDir, "wiki-[0-9][0-9][0-9][0-9][0-9][0-9].txt"))
+        {
+            for (Path wikiFile : wikiFiles)
+                Files.delete(wikiFile);
+        }
+    }
+
+    private Void writePages (Path file, long from, long to) throws IOException
+    {
+        List<Integer> ranks = new ArrayList<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            for (long page = from; page < to; page++)
+            {
+                ranks.clear();
+                Wiki_Page wikiPage = page(page, ranks);
+                writer.write("[[" + wikiPage.Title + "]]\n\n");
+                writer.write(wikiPage.Category + "\n\n");
+                writer.write(wikiPage.Content);
+                writer.write("\n\n");
+            }
+        }
+        return null;
+    }
+
+    /*
+     *  Usage: SyntheticCorpus PAGES DIRECTORY [QUESTIONS]
+     *  Tuned with -Dwatson.synthetic.seed, .vocabulary, .meanWords, .pagesPerFile and .threads.
+     */
+    public static void main (String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: SyntheticCorpus <pages> <directory> [<questions>]");
+            System.exit(1);
+        }
+        long startTime = System.nanoTime();
+        long numPages = Long.parseLong(args[0]);
+        File[] wikiFiles = fromProperties().generate(Paths.get(args[1]), numPages, Integer.getInteger("watson.synthetic.pagesPerFile", 10000),
+            (args.length > 2) ? Integer.parseInt(args[2]) : 1000, Integer.getInteger("watson.synthetic.threads", Runtime.getRuntime().availableProcessors()));
+        System.out.printf("%d pages in %d files written to %s in %.2f Secs.\n", numPages, wikiFiles.length, args[1], (System.nanoTime() - startTime) / 1e9);
+    }
+
+    static SyntheticCorpus fromProperties()
+    {
+        return new SyntheticCorpus(Long.getLong("watson.synthetic.seed", 42), Integer.getInteger("watson.synthetic.vocabulary", 200000),
+            Integer.getInteger("watson.synthetic.meanWords", 200));
+    }
+}
@@ -0,0 +1,56 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test checking that the synthetic corpus is the same for the same seed and leaves no stale files.
+ */
+public class SyntheticCorpusTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sameSeedGivesIdenticalFiles() throws Exception
+    {
+        Path first = folder.newFolder("first").toPath();
+        Path second = folder.newFolder("second").toPath();
+        File[] firstFiles = new SyntheticCorpus(7, 1000, 30).generate(first, 250, 100, 20, 3);
+        File[] secondFiles = new SyntheticCorpus(7, 1000, 30).generate(second, 250, 100, 20, 1);
+
+        assertEquals(3, firstFiles.length);
+        assertEquals(firstFiles.length, secondFiles.length);
+        for (int i = 0; i < firstFiles.length; i++)
+        {
+            assertEquals(firstFiles[i].getName(), secondFiles[i].getName());
+            assertArrayEquals(Files.readAllBytes(firstFiles[i].toPath()), Files.readAllBytes(secondFiles[i].toPath()));
+        }
+        assertArrayEquals(Files.readAllBytes(first.resolve(SyntheticCorpus.QUESTIONS)), Files.readAllBytes(second.resolve(SyntheticCorpus.QUESTIONS)));
+    }
+
+    @Test
+    public void smallerCorpusReplacesTheFilesOfALargerOne() throws Exception
+    {
+        Path directory = folder.newFolder("corpus").toPath();
+        Path other = directory.resolve(SyntheticCorpus.WIKI_DIR).resolve("notes.txt");
+        new SyntheticCorpus(7, 1000, 30).generate(directory, 250, 100, 20, 2);
+        Files.write(other, new byte[] { 1 });
+
+        File[] wikiFiles = new SyntheticCorpus(7, 1000, 30).generate(directory, 150, 100, 20, 2);
+
+        assertEquals(2, wikiFiles.length);
+        assertFalse(Files.exists(directory.resolve(SyntheticCorpus.WIKI_DIR).resolve("wiki-000002.txt")));
+        // Files the generator did not write are left alone
+        assertEquals(3, directory.resolve(SyntheticCorpus.WIKI_DIR).toFile().list().length);
+    }
+}
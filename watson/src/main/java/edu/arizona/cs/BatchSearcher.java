@@ -0,0 +1,94 @@
+package edu.arizona.cs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+// Lucene classes
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+
+/*
+ *  Answers a whole set of questions on a thread pool. Every question thread keeps its own
+ *  QueryParser (and with it its own query analyzer), and the IndexSearcher is given a second
+ *  executor so that each query also searches the index segments in parallel.
+ *
+ *  The results come back in question order and are the same as those of the serial path,
+ *  as the parallel segment search merges the per-segment hits with the same tie-breaking.
+ */
+class BatchSearcher implements Closeable
+{
+    private final ExecutorService questionExecutor;
+    private final ExecutorService segmentExecutor;
+    private final IndexSearcher searcher;
+    private final QueryResultCache resultCache;
+    private final int hitsPerPage;
+    private final ThreadLocal<QueryParser> parsers = ThreadLocal.withInitial(
+        () -> new QueryParser("content", Watson.createQueryAnalyzer()));
+
+    BatchSearcher (IndexReader reader, int questionThreads, int segmentThreads, int hitsPerPage)
+    {
+        this(reader, null, questionThreads, segmentThreads, hitsPerPage);
+    }
+
+    /*
+     *  A batch searcher answering repeated clues from the result cache, if it is not null.
+     */
+    BatchSearcher (IndexReader reader, QueryResultCache resultCache, int questionThreads, int segmentThreads, int hitsPerPage)
+    {
+        this.resultCache = resultCache;
+        this.questionExecutor = Executors.newFixedThreadPool(Math.max(1, questionThreads));
+        this.segmentExecutor = (segmentThreads > 1) ? Executors.newFixedThreadPool(segmentThreads) : null;
+        this.searcher = new IndexSearcher(reader, segmentExecutor);
+        this.hitsPerPage = hitsPerPage;
+    }
+
+    IndexSearcher searcher()
+    {
+        return searcher;
+    }
+
+    /*
+     *  Search every clue and return the results in the order of the questions.
+     */
+    List<QueryResult> search (List<Questions> questions) throws IOException, ParseException
+    {
+        List<Future<QueryResult>> futures = new ArrayList<>(questions.size());
+        for (Questions question : questions)
+            futures.add(questionExecutor.submit(() -> Watson.search(searcher, parsers.get(), resultCache, question.Clue, question.Category, hitsPerPage)));
+
+        List<QueryResult> results = new ArrayList<>(questions.size());
+        try
+        {
+            for (Future<QueryResult> future : futures)
+                results.add(future.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while searching");
+        }
+        catch (ExecutionException e)
+        {
+            for (Future<QueryResult> future : futures)
+                future.cancel(true);
+            if (e.getCause() instanceof ParseException)
+                throw (ParseException) e.getCause();
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("A search failed", e.getCause());
+        }
+        return results;
+    }
+
+    @Override
+    public void close()
+    {
+        questionExecutor.shutdownNow();
+        if (segmentExecutor != null)
+            segmentExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,72 @@
+package edu.arizona.cs;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ *  The hand-off between the stages of a pipeline of worker threads connected by bounded
+ *  queues, as in the IndexingPipeline and the StreamingEvaluator. A stage is told that
+ *  nothing more is coming by one end marker per worker, an item that is compared by
+ *  identity and never processed.
+ */
+final class BoundedStages
+{
+    private BoundedStages() {}
+
+    /*
+     *  Wait for room in the queue, but give up as soon as one of the workers has died,
+     *  otherwise the producer would block forever on a queue nobody drains.
+     */
+    static <T> void put (BlockingQueue<T> queue, T item, List<Future<?>> workers)
+        throws InterruptedException, ExecutionException
+    {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS))
+            checkWorkers(workers);
+    }
+
+    /*
+     *  Wait for a permit the same way, for stages that bound the number of items in flight
+     *  rather than the length of one queue.
+     */
+    static void acquire (Semaphore permits, List<Future<?>> workers)
+        throws InterruptedException, ExecutionException
+    {
+        while (!permits.tryAcquire(100, TimeUnit.MILLISECONDS))
+            checkWorkers(workers);
+    }
+
+    private static void checkWorkers (List<Future<?>> workers) throws InterruptedException, ExecutionException
+    {
+        for (Future<?> worker : workers)
+        {
+            if (worker.isDone())
+                worker.get();
+        }
+    }
+
+    /*
+     *  Tell the consumers of the queue that nothing more is coming.
+     */
+    static <T> void end (BlockingQueue<T> queue, T endMarker, int consumers, List<Future<?>> workers)
+        throws InterruptedException, ExecutionException
+    {
+        for (int i = 0; i < consumers; i++)
+            put(queue, endMarker, workers);
+    }
+
+    /*
+     *  Called by every worker of a stage when it has seen its end marker. The last one to
+     *  finish tells the consumers of the next stage that nothing more is coming.
+     */
+    static <T> void finish (AtomicInteger workersLeft, BlockingQueue<T> out, T endMarker, int consumers, List<Future<?>> workers)
+        throws InterruptedException, ExecutionException
+    {
+        if (workersLeft.decrementAndGet() == 0)
+            end(out, endMarker, consumers, workers);
+    }
+}
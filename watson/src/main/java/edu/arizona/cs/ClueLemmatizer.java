@@ -0,0 +1,203 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+// Standford NLP classes
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.LemmaAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+
+/*
+ *  Turns a clue into the space separated lemmas of all of its tokens, which the query
+ *  analyzer then parses. With LEMMA_ANALYSIS the clue is returned as it is, since the
+ *  LemmaAnalyzer lemmatizes it itself, and no pipeline is loaded.
+ *
+ *  With a LemmaDictionary the clue is only tokenized and every token is looked up. If
+ *  any token is missing from the dictionary, the whole clue goes through the full CoreNLP
+ *  pipeline instead, which is loaded on first use.
+ *
+ *  Like PageLemmatizer, an instance is meant to be used by one thread at a time.
+ */
+class ClueLemmatizer
+{
+    // Shared by all instances, so hit rates cover every thread
+    private static final LongAdder tokenHits = new LongAdder();
+    private static final LongAdder tokenMisses = new LongAdder();
+    private static final LongAdder dictionaryClues = new LongAdder();
+    private static final LongAdder pipelineClues = new LongAdder();
+    // The same counter as that of the clues analyzed by the LemmaAnalyzer, see PageLemmatizer
+    private static final Metrics.Counter CLUES = Metrics.counter("clues.lemmatized");
+
+    private static LemmaDictionary sharedDictionary;
+    private static boolean sharedDictionaryLoaded;
+
+    private final LemmaDictionary dictionary;
+    private final StanfordCoreNLP tokenizer;
+    private StanfordCoreNLP pipeline;
+
+    ClueLemmatizer ()
+    {
+        this(Watson.LEMMA_ANALYSIS ? null : sharedDictionary());
+    }
+
+    /*
+     *  A lemmatizer using the given dictionary, or only the CoreNLP pipeline if it is null.
+     */
+    ClueLemmatizer (LemmaDictionary dictionary)
+    {
+        this.dictionary = dictionary;
+        if (Watson.LEMMA_ANALYSIS)
+        {
+            this.tokenizer = null;
+        }
+        else if (dictionary != null)
+        {
+            Properties props = new Properties();
+            props.setProperty("annotators", "tokenize");
+            this.tokenizer = new StanfordCoreNLP(props);
+        }
+        else
+        {
+            this.tokenizer = null;
+            this.pipeline = createPipeline();
+        }
+    }
+
+    private static StanfordCoreNLP createPipeline()
+    {
+        Properties props = new Properties();
+        props.setProperty("annotators", "tokenize, ssplit, pos, lemma");
+        return new StanfordCoreNLP(props);
+    }
+
+    /*
+     *  The dictionary at LEMMA_DICT_FILE, loaded once per JVM, or null if none is configured.
+     */
+    static synchronized LemmaDictionary sharedDictionary()
+    {
+        if (!sharedDictionaryLoaded)
+        {
+            sharedDictionaryLoaded = true;
+            if (Watson.LEMMA_DICT_FILE != null)
+            {
+                Path path = Paths.get(Watson.LEMMA_DICT_FILE);
+                if (Files.exists(path))
+                {
+                    try
+                    {
+                        sharedDictionary = LemmaDictionary.load(path);
+                        System.out.printf("Lemma dictionary %s: %d surface forms, %d KB.\n",
+                            path, sharedDictionary.size(), sharedDictionary.ramBytesUsed() / 1024);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException("Cannot load the lemma dictionary " + path, e);
+                    }
+                }
+                else
+                {
+                    System.out.printf("Lemma dictionary %s does not exist, clues are lemmatized by CoreNLP.\n", path);
+                }
+            }
+        }
+        return sharedDictionary;
+    }
+
+    String lemmatize (String clue)
+    {
+        if (Watson.LEMMA_ANALYSIS)
+            return clue;
+
+        if (dictionary != null)
+        {
+            String lemmas = lookupLemmas(clue);
+            if (lemmas != null)
+            {
+                dictionaryClues.increment();
+                CLUES.increment();
+                return lemmas;
+            }
+            if (pipeline == null)
+                pipeline = createPipeline();
+        }
+        pipelineClues.increment();
+        CLUES.increment();
+
+        Annotation annotation = new Annotation(clue);
+        pipeline.annotate(annotation);
+        List<CoreMap> sentences = annotation.get(SentencesAnnotation.class);
+        StringBuilder lemmas = new StringBuilder();
+        for (CoreMap sentence : sentences)
+        {
+            for (CoreLabel token : sentence.get(TokensAnnotation.class))
+            {
+                lemmas.append(token.get(LemmaAnnotation.class)).append(' ');
+            }
+        }
+        return lemmas.toString();
+    }
+
+    /*
+     *  Lemmatize the clue with dictionary lookups only, in the same format as lemmatize.
+     *  Returns null as soon as a token is not in the dictionary.
+     */
+    String lookupLemmas (String clue)
+    {
+        Annotation annotation = new Annotation(clue);
+        tokenizer.annotate(annotation);
+        StringBuilder lemmas = new StringBuilder();
+        try
+        {
+            for (CoreLabel token : annotation.get(TokensAnnotation.class))
+            {
+                String lemma = dictionary.lookup(token.word());
+                if (lemma == null)
+                {
+                    tokenMisses.increment();
+                    return null;
+                }
+                tokenHits.increment();
+                lemmas.append(lemma).append(' ');
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return lemmas.toString();
+    }
+
+    /*
+     *  Token and clue hit rates of the dictionary over all lemmatizers so far.
+     */
+    static String stats()
+    {
+        long hits = tokenHits.sum();
+        long tokens = hits + tokenMisses.sum();
+        long fast = dictionaryClues.sum();
+        long clues = fast + pipelineClues.sum();
+        return String.format("tokens %d/%d found (%.1f%%), clues %d/%d lemmatized from the dictionary (%.1f%%)",
+            hits, tokens, percent(hits, tokens), fast, clues, percent(fast, clues));
+    }
+
+    static double clueHitRate()
+    {
+        long fast = dictionaryClues.sum();
+        long clues = fast + pipelineClues.sum();
+        return percent(fast, clues) / 100;
+    }
+
+    private static double percent (long part, long whole)
+    {
+        return (whole == 0) ? 0.0 : 100.0 * part / whole;
+    }
+}
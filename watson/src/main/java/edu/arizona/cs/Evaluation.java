@@ -0,0 +1,92 @@
+package edu.arizona.cs;
+
+import java.util.Arrays;
+
+/*
+ *  The rank of the answer of every question of a run. Ranks are kept per question, so two
+ *  questions with the same answer are two separate entries, and a question whose answer is
+ *  not among its hits counts as rank 0.
+ *
+ *      MRR       the mean of 1/rank over all questions (0 for an answer that was not found)
+ *      accuracy  the share of questions whose first hit is the answer
+ *      found     the share of questions whose answer is anywhere in their hits
+ *
+ *  Not thread-safe; record the results in question order from one thread.
+ */
+class Evaluation
+{
+    private int[] ranks = new int[128];
+    private int size = 0;
+
+    /*
+     *  Record the rank of the question's answer among the hits and return it, or 0 if it is
+     *  not among them.
+     */
+    int add (Questions question, QueryResult result)
+    {
+        int rank = rankOf(question.Answer, result);
+        if (size == ranks.length)
+            ranks = Arrays.copyOf(ranks, size * 2);
+        ranks[size++] = rank;
+        return rank;
+    }
+
+    static int rankOf (String answer, QueryResult result)
+    {
+        String expected = answer.trim();
+        for (int i = 0; i < result.titles.length; i++)
+        {
+            if (result.titles[i].trim().equals(expected))
+                return i + 1;
+        }
+        return 0;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    int rank (int question)
+    {
+        return ranks[question];
+    }
+
+    int found()
+    {
+        int found = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (ranks[i] > 0)
+                found++;
+        }
+        return found;
+    }
+
+    double mrr()
+    {
+        double sumOfReciprocalRank = 0.0;
+        for (int i = 0; i < size; i++)
+        {
+            if (ranks[i] > 0)
+                sumOfReciprocalRank += 1.0 / ranks[i];
+        }
+        return (size == 0) ? 0.0 : sumOfReciprocalRank / size;
+    }
+
+    double accuracy()
+    {
+        int first = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (ranks[i] == 1)
+                first++;
+        }
+        return (size == 0) ? 0.0 : (double) first / size;
+    }
+
+    double foundRate()
+    {
+        return (size == 0) ? 0.0 : (double) found() / size;
+    }
+}
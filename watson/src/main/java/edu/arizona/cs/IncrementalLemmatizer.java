@@ -0,0 +1,150 @@
+package edu.arizona.cs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/*
+ *  Lemmatizes only the wiki pages that are new or changed since the last run.
+ *
+ *  A first pass over the raw pages finds the last page of every title, which is the one
+ *  kept when titles repeat. Every kept page is hashed and looked up in a LemmaJournal.
+ *  Pages whose hash matches are skipped; the rest go through the lemmatizer stage of an
+ *  IndexingPipeline and are appended to the journal, which is forced to disk every
+ *  checkpointInterval pages. An interrupted run therefore resumes where it stopped, and
+ *  refreshing a few changed files only lemmatizes the pages in them. At the end the
+ *  LemmaCache is rewritten from the journal in corpus order.
+ *
+ *  What a run saves is the lemmatizing, not the I/O: even when nothing changed, the raw
+ *  files are read and parsed twice (once for the titles, once to hash the pages), every
+ *  page of the journal is read back, and the whole cache is written again. The titles of
+ *  the corpus are also held in memory for the run. That is cheap next to CoreNLP, which
+ *  takes orders of magnitude longer per page, but it grows with the corpus, not with the
+ *  number of changed pages.
+ */
+class IncrementalLemmatizer
+{
+    private final Path journalPath;
+    private final int numThreads;
+    private final int checkpointInterval;
+    private LemmaDictionary.Collector collector;
+
+    IncrementalLemmatizer (Path journalPath, int numThreads, int checkpointInterval)
+    {
+        this.journalPath = journalPath;
+        this.numThreads = numThreads;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /*
+     *  Add the lemmas of every token of the changed pages to the collector.
+     */
+    IncrementalLemmatizer collectLemmas (LemmaDictionary.Collector collector)
+    {
+        this.collector = collector;
+        return this;
+    }
+
+    /*
+     *  Bring the journal up to date with the wiki files and write the lemmatized corpus to
+     *  the cache file. Returns the number of pages that had to be lemmatized.
+     */
+    long run (File[] wikiFiles, Path cachePath) throws IOException
+    {
+        long startTime = System.nanoTime();
+
+        try (LemmaJournal journal = new LemmaJournal(journalPath, checkpointInterval))
+        {
+            System.out.printf("Journal %s holds %d lemmatized pages.\n", journalPath, journal.size());
+
+            // Titles in corpus order, with the position of the last page of each in the corpus
+            Map<String, Long> titles = lastPages(Watson.rawPages(wikiFiles, 1).get(0));
+            // The raw content hash of the pages handed to the lemmatizers
+            Map<Wiki_Page, byte[]> pendingHashes = Collections.synchronizedMap(new IdentityHashMap<>());
+            PageSource changedPages = changedPages(Watson.rawPages(wikiFiles, 1).get(0), journal, titles, pendingHashes);
+
+            IndexingPipeline pipeline = new IndexingPipeline(
+                wikiPage -> journal.append(wikiPage, pendingHashes.remove(wikiPage)),
+                numThreads, 1, Watson.PIPELINE_QUEUE_CAPACITY).collectLemmas(collector);
+            long numLemmatized = pipeline.run(changedPages, true);
+            journal.checkpoint();
+
+            System.out.printf("%d pages in the corpus: %d unchanged, %d lemmatized.\n",
+                titles.size(), titles.size() - numLemmatized, numLemmatized);
+
+            try (LemmaCache.Writer writer = new LemmaCache.Writer(cachePath))
+            {
+                for (String title : titles.keySet())
+                    writer.add(journal.read(title));
+            }
+            journal.compactIfNeeded(titles.keySet());
+
+            System.out.printf("Incremental lemmatizing took %.2f Secs.\n", (System.nanoTime() - startTime) / 1e9);
+            return numLemmatized;
+        }
+    }
+
+    /*
+     *  Read the raw pages once and map every cleaned title, in corpus order, to the position
+     *  of its last page. Only that page is lemmatized, so that a repeated title always ends
+     *  up with the same content whatever order the lemmatizers finish in.
+     */
+    private static Map<String, Long> lastPages (PageSource rawPages) throws IOException
+    {
+        try (PageSource pages = rawPages)
+        {
+            Map<String, Long> titles = new LinkedHashMap<>();
+            long position = 0;
+            Wiki_Page wikiPage;
+            while ((wikiPage = pages.next()) != null)
+            {
+                String title = Watson.cleanTitle(wikiPage.Title);
+                if (titles.put(title, position++) != null)
+                    System.out.printf("Duplicate page title %s, only the last one is kept.\n", title);
+            }
+            return titles;
+        }
+    }
+
+    /*
+     *  Wrap the raw pages into a source that only yields the last page of every title, and
+     *  only if the journal has no current version of it. Titles are cleaned here, so that
+     *  they match the cache entries.
+     */
+    private static PageSource changedPages (PageSource rawPages, LemmaJournal journal, Map<String, Long> titles, Map<Wiki_Page, byte[]> pendingHashes)
+    {
+        return new PageSource()
+        {
+            private long position = 0;
+
+            @Override
+            public Wiki_Page next() throws IOException
+            {
+                Wiki_Page wikiPage;
+                while ((wikiPage = rawPages.next()) != null)
+                {
+                    wikiPage.Title = Watson.cleanTitle(wikiPage.Title);
+                    long current = position++;
+                    Long last = titles.get(wikiPage.Title);
+                    if (last == null || last != current)
+                        continue;
+
+                    byte[] hash = LemmaJournal.hash(wikiPage);
+                    if (!journal.isCurrent(wikiPage.Title, hash))
+                    {
+                        pendingHashes.put(wikiPage, hash);
+                        return wikiPage;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                rawPages.close();
+            }
+        };
+    }
+}
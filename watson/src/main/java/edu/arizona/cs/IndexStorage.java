@@ -0,0 +1,289 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+// Lucene classes
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterDirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/*
+ *  Opens the index with an explicitly chosen Directory implementation:
+ *
+ *      fs            whatever FSDirectory.open picks for the platform (the default)
+ *      mmap          MMapDirectory, pages are read from the OS cache on demand
+ *      mmap-preload  MMapDirectory that touches every page when a file is opened
+ *      nio           NIOFSDirectory, positional reads through a FileChannel
+ *      heap          the index files are copied into a ByteBuffersDirectory on the heap
+ *
+ *  Searchers can optionally warm up the postings of the most frequent terms, so that the
+ *  first queries do not pay for faulting them in. openReader prints how long loading took
+ *  and how much memory the index occupies afterwards. Its Directory is closed with the
+ *  reader (and the readers reopened from it).
+ */
+final class IndexStorage
+{
+    private static final String[] WARMUP_FIELDS = { "content", "title" };
+
+    private IndexStorage ()
+    {
+    }
+
+    static Directory open (Path path, String storage) throws IOException
+    {
+        switch (storage)
+        {
+            case "fs":
+                return FSDirectory.open(path);
+            case "mmap":
+                return new MMapDirectory(path);
+            case "mmap-preload":
+                MMapDirectory preloaded = new MMapDirectory(path);
+                preloaded.setPreload(true);
+                return preloaded;
+            case "nio":
+                return new NIOFSDirectory(path);
+            case "heap":
+                return copyToHeap(path);
+            default:
+                throw new IllegalArgumentException("Unknown index storage: " + storage + " (fs, mmap, mmap-preload, nio or heap)");
+        }
+    }
+
+    /*
+     *  The directory an IndexWriter writes through. A heap copy would be thrown away at the
+     *  end, so heap writes to the file system instead.
+     */
+    static Directory openForWriting (Path path, String storage) throws IOException
+    {
+        return "heap".equals(storage) ? FSDirectory.open(path) : open(path, storage);
+    }
+
+    private static Directory copyToHeap (Path path) throws IOException
+    {
+        ByteBuffersDirectory heap = new ByteBuffersDirectory();
+        try (Directory disk = FSDirectory.open(path))
+        {
+            for (String file : disk.listAll())
+            {
+                // The lock file belongs to the index on disk
+                if (!file.equals("write.lock"))
+                    heap.copyFrom(disk, file, file, IOContext.READONCE);
+            }
+        }
+        return heap;
+    }
+
+    /*
+     *  Open a reader on the index with the given storage, warm it up if asked to, and print
+     *  the load time and the memory taken by the index.
+     */
+    static DirectoryReader openReader (Path path, String storage, int warmupTerms) throws IOException
+    {
+        long startTime = System.nanoTime();
+        long rssBefore = residentBytes();
+
+        Directory directory = open(path, storage);
+        DirectoryReader reader;
+        try
+        {
+            reader = new DirectoryOwningReader(DirectoryReader.open(directory), new AtomicInteger());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            directory.close();
+            throw e;
+        }
+        long openNanos = System.nanoTime() - startTime;
+        long warmupNanos = 0;
+        if (warmupTerms > 0)
+        {
+            long warmupStart = System.nanoTime();
+            try
+            {
+                warmUp(reader, warmupTerms);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                reader.close();
+                throw e;
+            }
+            warmupNanos = System.nanoTime() - warmupStart;
+        }
+
+        long indexBytes = sizeOf(directory);
+        String resident;
+        if (directory instanceof ByteBuffersDirectory)
+            resident = String.format("%.1f MB on the heap", indexBytes / 1048576.0);
+        else if (rssBefore >= 0)
+            resident = String.format("%.1f MB added to the process RSS", Math.max(0, residentBytes() - rssBefore) / 1048576.0);
+        else
+            resident = "unknown";
+        System.out.printf("Index %s (%s, %.1f MB, %d docs) opened in %.2f Secs, warmed up in %.2f Secs, resident: %s.\n",
+            path, storage, indexBytes / 1048576.0, reader.numDocs(), openNanos / 1e9, warmupNanos / 1e9, resident);
+        return reader;
+    }
+
+    /*
+     *  A reader that closes its Directory once it and every reader reopened from it are
+     *  closed. Reopened readers share the directory (a SearcherManager closes the old reader
+     *  only after the new one is open), so the readers count their references to it.
+     */
+    static final class DirectoryOwningReader extends FilterDirectoryReader
+    {
+        private final AtomicInteger directoryRefs;
+
+        DirectoryOwningReader (DirectoryReader in, AtomicInteger directoryRefs) throws IOException
+        {
+            super(in, new SubReaderWrapper()
+            {
+                @Override
+                public LeafReader wrap (LeafReader reader)
+                {
+                    return reader;
+                }
+            });
+            this.directoryRefs = directoryRefs;
+            directoryRefs.incrementAndGet();
+        }
+
+        @Override
+        protected DirectoryReader doWrapDirectoryReader (DirectoryReader in) throws IOException
+        {
+            return new DirectoryOwningReader(in, directoryRefs);
+        }
+
+        @Override
+        protected void doClose() throws IOException
+        {
+            try
+            {
+                super.doClose();
+            }
+            finally
+            {
+                if (directoryRefs.decrementAndGet() == 0)
+                    directory().close();
+            }
+        }
+
+        @Override
+        public CacheHelper getReaderCacheHelper()
+        {
+            return in.getReaderCacheHelper();
+        }
+    }
+
+    /*
+     *  Walk the postings of the termsPerField terms with the highest document frequency in
+     *  every segment, and read the norms and title doc values, so that the pages the first
+     *  queries need are already in memory.
+     */
+    static void warmUp (IndexReader reader, int termsPerField) throws IOException
+    {
+        for (LeafReaderContext context : reader.leaves())
+        {
+            LeafReader leaf = context.reader();
+            for (String field : WARMUP_FIELDS)
+            {
+                Terms terms = leaf.terms(field);
+                if (terms != null)
+                    warmUpPostings(terms, termsPerField);
+
+                NumericDocValues norms = leaf.getNormValues(field);
+                if (norms != null)
+                {
+                    while (norms.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                        norms.longValue();
+                }
+            }
+
+            SortedDocValues titles = leaf.getSortedDocValues("title");
+            if (titles != null)
+            {
+                while (titles.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                    titles.binaryValue();
+            }
+        }
+    }
+
+    private static void warmUpPostings (Terms terms, int numTerms) throws IOException
+    {
+        // The most frequent terms, least frequent first
+        PriorityQueue<Map.Entry<BytesRef, Integer>> top = new PriorityQueue<>(numTerms + 1, Map.Entry.comparingByValue());
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        while ((term = termsEnum.next()) != null)
+        {
+            int docFreq = termsEnum.docFreq();
+            if (top.size() < numTerms || docFreq > top.peek().getValue())
+            {
+                top.add(new AbstractMap.SimpleEntry<>(BytesRef.deepCopyOf(term), docFreq));
+                if (top.size() > numTerms)
+                    top.poll();
+            }
+        }
+
+        PostingsEnum postings = null;
+        for (Map.Entry<BytesRef, Integer> entry : top)
+        {
+            if (termsEnum.seekExact(entry.getKey()))
+            {
+                postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+                while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                    postings.freq();
+            }
+        }
+    }
+
+    private static long sizeOf (Directory directory) throws IOException
+    {
+        long size = 0;
+        for (String file : directory.listAll())
+            size += directory.fileLength(file);
+        return size;
+    }
+
+    /*
+     *  The resident set size of the process from /proc, or -1 where there is none.
+     */
+    private static long residentBytes()
+    {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.isReadable(status))
+            return -1;
+        try
+        {
+            for (String line : Files.readAllLines(status, StandardCharsets.UTF_8))
+            {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            // Fall through, the report just leaves it out
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,219 @@
+package edu.arizona.cs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+// Lucene classes
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SimpleMergedSegmentWarmer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.util.InfoStream;
+
+/*
+ *  Adds, replaces and deletes single pages of an existing index, keyed by the exact title
+ *  in title_exact, instead of rebuilding the whole index. It keeps one writer open per
+ *  shard (just one for an unsharded index), and the searchers come from near-real-time
+ *  readers on those writers, so that
+ *
+ *      - a refresh, every refreshMillis in the background, makes the changes searchable
+ *        without a commit and without ever closing the current searcher,
+ *      - the changes are committed, i.e. made durable, every commitSeconds and on close.
+ *
+ *  Merges run on a ConcurrentMergeScheduler with mergeThreads threads and its automatic
+ *  I/O throttle, and merged segments are warmed before the readers see them, so a burst of
+ *  updates does not slow down the queries running next to it.
+ */
+final class IndexUpdater implements Closeable
+{
+    private static final Metrics.Timer UPDATE_TIME = Metrics.timer("index.update");
+    private static final Metrics.Counter UPDATES = Metrics.counter("index.updates");
+    private static final Metrics.Counter DELETES = Metrics.counter("index.deletes");
+
+    private final IndexWriter[] writers;
+    private final ReferenceManager<IndexSearcher> searcherManager;
+    private final ScheduledExecutorService scheduler;
+    // Pages are lemmatized here, or raw content is left to the LemmaAnalyzer of the writer
+    private final boolean lemmatize;
+    private final boolean rawContent;
+    private final ThreadLocal<PageLemmatizer> lemmatizers = ThreadLocal.withInitial(PageLemmatizer::new);
+
+    /*
+     *  With lemmatize, updated pages carry raw content, which is lemmatized like the pages of
+     *  the index mode; otherwise their content is indexed as it is.
+     */
+    IndexUpdater (Path indexPath, boolean lemmatize, SearcherFactory searcherFactory, int mergeThreads,
+                  long refreshMillis, long commitSeconds) throws IOException
+    {
+        this.rawContent = lemmatize && Watson.LEMMA_ANALYSIS;
+        this.lemmatize = lemmatize && !rawContent;
+
+        int numShards = Math.max(1, ShardedIndex.numShards(indexPath));
+        this.writers = new IndexWriter[numShards];
+        DirectoryReader[] readers = new DirectoryReader[numShards];
+        try
+        {
+            for (int shard = 0; shard < numShards; shard++)
+            {
+                IndexWriterConfig config = Watson.createWriterConfig(Watson.createIndexAnalyzer(rawContent));
+                ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+                mergeScheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+                mergeScheduler.enableAutoIOThrottle();
+                config.setMergeScheduler(mergeScheduler);
+                config.setMergedSegmentWarmer(new SimpleMergedSegmentWarmer(InfoStream.NO_OUTPUT));
+                writers[shard] = new IndexWriter(IndexStorage.openForWriting(ShardedIndex.shardPath(indexPath, shard, numShards), Watson.INDEX_STORAGE), config);
+            }
+
+            if (numShards == 1)
+            {
+                this.searcherManager = new SearcherManager(writers[0], searcherFactory);
+            }
+            else
+            {
+                for (int shard = 0; shard < numShards; shard++)
+                    readers[shard] = DirectoryReader.open(writers[shard]);
+                this.searcherManager = new ShardedIndex.ShardSearcherManager(new ShardedIndex.ShardReader(readers), searcherFactory);
+            }
+        }
+        catch (IOException e)
+        {
+            for (IndexWriter writer : writers)
+            {
+                if (writer != null)
+                    writer.close();
+            }
+            throw e;
+        }
+        finally
+        {
+            // The ShardReader holds its own reference to every shard
+            for (DirectoryReader reader : readers)
+            {
+                if (reader != null)
+                    reader.decRef();
+            }
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        if (refreshMillis > 0)
+            scheduler.scheduleWithFixedDelay(this::refreshQuietly, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        if (commitSeconds > 0)
+            scheduler.scheduleWithFixedDelay(this::commitQuietly, commitSeconds, commitSeconds, TimeUnit.SECONDS);
+    }
+
+    ReferenceManager<IndexSearcher> searcherManager()
+    {
+        return searcherManager;
+    }
+
+    /*
+     *  Add the page, or replace the page with the same title. Returns the sequence number of
+     *  the operation in the writer of the page's shard.
+     */
+    @SuppressWarnings("try")
+    long update (Wiki_Page wikiPage) throws IOException
+    {
+        try (Metrics.Stage stage = Metrics.stage(UPDATE_TIME, wikiPage.Title))
+        {
+            if (lemmatize)
+                wikiPage.Content = lemmatizers.get().lemmatize(wikiPage.Content == null ? "" : wikiPage.Content);
+            String title = Watson.cleanTitle(wikiPage.Title);
+            long seqNo = writer(title).updateDocument(new Term("title_exact", title), Watson.createDocument(wikiPage, rawContent));
+            UPDATES.increment();
+            return seqNo;
+        }
+    }
+
+    /*
+     *  Delete the page with the title, if there is one.
+     */
+    long delete (String title) throws IOException
+    {
+        String cleanTitle = Watson.cleanTitle(title);
+        long seqNo = writer(cleanTitle).deleteDocuments(new Term("title_exact", cleanTitle));
+        DELETES.increment();
+        return seqNo;
+    }
+
+    private IndexWriter writer (String cleanTitle)
+    {
+        return writers[ShardedIndex.shardOf(cleanTitle, writers.length)];
+    }
+
+    /*
+     *  Make all changes so far visible to the searchers from now on.
+     */
+    void refresh() throws IOException
+    {
+        searcherManager.maybeRefreshBlocking();
+    }
+
+    void commit() throws IOException
+    {
+        for (IndexWriter writer : writers)
+        {
+            if (writer.hasUncommittedChanges())
+                writer.commit();
+        }
+    }
+
+    private void refreshQuietly()
+    {
+        try
+        {
+            searcherManager.maybeRefresh();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void commitQuietly()
+    {
+        try
+        {
+            commit();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     *  Commit the pending changes and close the searchers and the writers.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        // Let a running refresh or commit finish rather than interrupt the writer
+        scheduler.shutdown();
+        try
+        {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        try
+        {
+            searcherManager.close();
+        }
+        finally
+        {
+            for (IndexWriter writer : writers)
+                writer.close();
+        }
+    }
+}
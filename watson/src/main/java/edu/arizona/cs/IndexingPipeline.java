@@ -0,0 +1,362 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+// Lucene classes
+import org.apache.lucene.index.IndexWriter;
+
+/*
+ *  Streams wiki pages from a PageSource into an IndexWriter in three stages:
+ *
+ *      reader (calling thread) -> lemmatizer workers -> indexer workers -> IndexWriter.addDocument
+ *
+ *  The stages are connected by bounded queues, so a slow stage blocks the ones in front
+ *  of it instead of letting pages pile up on the heap. At any time at most a few queues'
+ *  worth of pages are alive, whatever the size of the corpus. When the source already
+ *  yields lemmatized pages, the lemmatizer stage is skipped.
+ *
+ *  The last stage can be any PageSink instead of an IndexWriter, e.g. to store the
+ *  lemmatized pages rather than index them. Pages normally leave the workers in whatever
+ *  order they finish; inOrder() holds them back until they can go to the sink in the
+ *  order they were read, which a LemmaCache needs to match the corpus.
+ */
+class IndexingPipeline
+{
+    /*
+     *  Receives the pages leaving the pipeline. Called from all indexer threads at once,
+     *  unless the pipeline runs inOrder, which calls it from one thread at a time.
+     */
+    interface PageSink
+    {
+        void accept (Wiki_Page wikiPage) throws IOException;
+    }
+
+    // Handed down the queues once the source is drained to tell the workers to stop.
+    private static final Wiki_Page END_OF_PAGES = new Wiki_Page();
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private static final Metrics.Timer INDEX_PAGE_TIME = Metrics.timer("index.page");
+    private static final Metrics.Counter PAGES_INDEXED = Metrics.counter("pages.indexed");
+
+    private final PageSink sink;
+    private final int lemmaThreads;
+    private final int indexThreads;
+    private final int queueCapacity;
+    private LemmaDictionary.Collector collector;
+    private boolean inOrder;
+    private ReorderBuffer reorderBuffer;
+
+    private final AtomicLong lemmatized = new AtomicLong();
+    private final AtomicLong indexed = new AtomicLong();
+
+    IndexingPipeline (IndexWriter writer, int lemmaThreads, int indexThreads, int queueCapacity)
+    {
+        this(wikiPage -> writer.addDocument(Watson.createDocument(wikiPage)), lemmaThreads, indexThreads, queueCapacity);
+    }
+
+    IndexingPipeline (PageSink sink, int lemmaThreads, int indexThreads, int queueCapacity)
+    {
+        this.sink = sink;
+        this.lemmaThreads = Math.max(1, lemmaThreads);
+        this.indexThreads = Math.max(1, indexThreads);
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /*
+     *  Add the lemmas of every token to the collector in the lemmatizer stage.
+     */
+    IndexingPipeline collectLemmas (LemmaDictionary.Collector collector)
+    {
+        this.collector = collector;
+        return this;
+    }
+
+    /*
+     *  Hand the pages to the sink in the order they are read. Several sources are then read
+     *  one after another by the calling thread, in the order of the list.
+     */
+    IndexingPipeline inOrder ()
+    {
+        this.inOrder = true;
+        return this;
+    }
+
+    /*
+     *  Run all pages of the source through the pipeline and return the number of documents
+     *  added to the writer (or sink). The writer is neither committed nor closed.
+     */
+    long run (PageSource source, boolean lemmatize) throws IOException
+    {
+        return run(Collections.singletonList(source), lemmatize);
+    }
+
+    /*
+     *  Same as run(source, lemmatize), but the pages of the sources, such as the ranges of a
+     *  MappedWikiSplitter, are read by one thread per source at once. The first source is read
+     *  by the calling thread. Pages are then indexed in no particular order, unless the
+     *  pipeline runs inOrder.
+     */
+    long run (List<PageSource> sources, boolean lemmatize) throws IOException
+    {
+        BlockingQueue<Wiki_Page> rawPages = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Wiki_Page> lemmatizedPages = new ArrayBlockingQueue<>(queueCapacity);
+        int numLemmatizers = lemmatize ? lemmaThreads : 0;
+        int numReaders = inOrder ? 0 : Math.max(0, sources.size() - 1);
+        // Room for both queues, one page in the hands of every worker and a queue's worth
+        // of pages waiting for their turn
+        reorderBuffer = inOrder ? new ReorderBuffer(3 * queueCapacity + numLemmatizers + indexThreads) : null;
+        List<WorkerStats> stats = new ArrayList<>();
+        long startTime = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numLemmatizers + indexThreads + numReaders);
+        // Workers read this list (in put) while the reader is still filling it
+        List<Future<?>> workers = new CopyOnWriteArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+        AtomicInteger lemmatizersLeft = new AtomicInteger(numLemmatizers);
+
+        try
+        {
+            for (int i = 0; i < numLemmatizers; i++)
+            {
+                WorkerStats worker = new WorkerStats(i + 1);
+                stats.add(worker);
+                workers.add(executor.submit(() -> lemmatizeStage(worker, rawPages, lemmatizedPages, lemmatizersLeft, workers)));
+            }
+            for (int i = 0; i < indexThreads; i++)
+                workers.add(executor.submit(() -> indexStage(lemmatizedPages)));
+
+            BlockingQueue<Wiki_Page> firstQueue = lemmatize ? rawPages : lemmatizedPages;
+            int numConsumers = lemmatize ? numLemmatizers : indexThreads;
+
+            if (inOrder)
+            {
+                for (PageSource source : sources)
+                    read(source, firstQueue, workers);
+            }
+            else
+            {
+                for (PageSource source : sources.subList(Math.min(1, sources.size()), sources.size()))
+                    readers.add(executor.submit(() -> read(source, firstQueue, workers)));
+                if (!sources.isEmpty())
+                    read(sources.get(0), firstQueue, workers);
+            }
+            for (Future<?> reader : readers)
+                reader.get();
+            BoundedStages.end(firstQueue, END_OF_PAGES, numConsumers, workers);
+
+            for (Future<?> worker : workers)
+                worker.get();
+            if (lemmatized.get() > 0)
+                report(stats, System.nanoTime() - startTime);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing wiki pages");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("An indexing pipeline stage failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+            for (PageSource source : sources)
+                source.close();
+        }
+
+        return indexed.get();
+    }
+
+    private Void read (PageSource source, BlockingQueue<Wiki_Page> queue, List<Future<?>> workers)
+        throws IOException, InterruptedException, ExecutionException
+    {
+        Wiki_Page wikiPage;
+        while ((wikiPage = source.next()) != null)
+        {
+            if (reorderBuffer != null)
+                reorderBuffer.enter(wikiPage, workers);
+            BoundedStages.put(queue, wikiPage, workers);
+        }
+        return null;
+    }
+
+    /*
+     *  Index already lemmatized pages from several independent sources, such as the ranges
+     *  of a split LemmaCache. Each source is drained straight into the writer by its own
+     *  indexer thread, so no queues are involved and nothing is lemmatized.
+     */
+    long indexLemmatized (List<PageSource> sources) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(indexThreads, Math.max(1, sources.size())));
+        List<Future<?>> workers = new ArrayList<>();
+
+        try
+        {
+            for (PageSource source : sources)
+                workers.add(executor.submit(() -> drain(source)));
+
+            for (Future<?> worker : workers)
+                worker.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing wiki pages");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("An indexer failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+            for (PageSource source : sources)
+                source.close();
+        }
+
+        return indexed.get();
+    }
+
+    private Void drain (PageSource source) throws IOException
+    {
+        Wiki_Page wikiPage;
+        while ((wikiPage = source.next()) != null)
+            addDocument(wikiPage);
+        return null;
+    }
+
+    private Void lemmatizeStage (WorkerStats stats, BlockingQueue<Wiki_Page> in, BlockingQueue<Wiki_Page> out, AtomicInteger lemmatizersLeft, List<Future<?>> workers)
+        throws InterruptedException, ExecutionException
+    {
+        // Created on the first page, so that a run with nothing to lemmatize never loads the models
+        PageLemmatizer lemmatizer = null;
+        while (true)
+        {
+            Wiki_Page wikiPage = in.take();
+            if (wikiPage == END_OF_PAGES)
+                break;
+
+            if (lemmatizer == null)
+                lemmatizer = new PageLemmatizer(collector);
+            long startTime = System.nanoTime();
+            wikiPage.Content = lemmatizer.lemmatize(wikiPage.Content);
+            stats.busyNanos += System.nanoTime() - startTime;
+            stats.pages++;
+            lemmatized.incrementAndGet();
+            BoundedStages.put(out, wikiPage, workers);
+        }
+
+        // The last lemmatizer to finish tells the indexers that nothing more is coming.
+        BoundedStages.finish(lemmatizersLeft, out, END_OF_PAGES, indexThreads, workers);
+        return null;
+    }
+
+    private Void indexStage (BlockingQueue<Wiki_Page> in) throws InterruptedException, IOException
+    {
+        while (true)
+        {
+            Wiki_Page wikiPage = in.take();
+            if (wikiPage == END_OF_PAGES)
+                break;
+
+            if (reorderBuffer != null)
+                reorderBuffer.write(wikiPage);
+            else
+                addDocument(wikiPage);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("try")
+    private void addDocument (Wiki_Page wikiPage) throws IOException
+    {
+        try (Metrics.Stage stage = Metrics.stage(INDEX_PAGE_TIME))
+        {
+            sink.accept(wikiPage);
+        }
+        PAGES_INDEXED.increment();
+        long count = indexed.incrementAndGet();
+        if (count % PROGRESS_INTERVAL == 0)
+            System.out.printf("Processed %d pages (%d lemmatized) ...\n", count, lemmatized.get());
+    }
+
+    /*
+     *  Print the pages/sec throughput of every lemmatizer, measured over the time it was
+     *  busy, and the overall throughput measured over the wall clock.
+     */
+    private static void report (List<WorkerStats> stats, long elapsedNanos)
+    {
+        long totalPages = 0;
+        System.out.println("Lemmatizing throughput:");
+        for (WorkerStats worker : stats)
+        {
+            totalPages += worker.pages;
+            System.out.printf("  Worker %d: %d pages, %.2f pages/sec\n", worker.workerId, worker.pages, perSecond(worker.pages, worker.busyNanos));
+        }
+        System.out.printf("  Total: %d pages, %.2f pages/sec\n", totalPages, perSecond(totalPages, elapsedNanos));
+    }
+
+    private static double perSecond (long count, long nanos)
+    {
+        return nanos == 0 ? 0.0 : count / (nanos / 1e9);
+    }
+
+    // Written only by its own lemmatizer and read once all workers are done
+    private static class WorkerStats
+    {
+        final int workerId;
+        long pages;
+        long busyNanos;
+
+        WorkerStats (int workerId)
+        {
+            this.workerId = workerId;
+        }
+    }
+
+    /*
+     *  Hands the pages to the sink in the order they were read. The reader numbers every
+     *  page, and a page that leaves the workers ahead of its turn waits here until all pages
+     *  before it have been written. The reader also takes a permit per page that is only
+     *  returned once the page is written, so one slow page cannot make the buffer grow
+     *  without bound while the others overtake it.
+     */
+    private class ReorderBuffer
+    {
+        private final Semaphore permits;
+        // Wiki_Page has no equals, so the pages in flight are told apart by identity
+        private final Map<Wiki_Page, Long> sequence = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final Map<Long, Wiki_Page> waiting = new HashMap<>();
+        private long numRead;
+        private long numWritten;
+
+        ReorderBuffer (int capacity)
+        {
+            this.permits = new Semaphore(capacity);
+        }
+
+        // Only called by the reader, which is a single thread in order
+        void enter (Wiki_Page wikiPage, List<Future<?>> workers) throws InterruptedException, ExecutionException
+        {
+            BoundedStages.acquire(permits, workers);
+            sequence.put(wikiPage, numRead++);
+        }
+
+        synchronized void write (Wiki_Page wikiPage) throws IOException
+        {
+            waiting.put(sequence.remove(wikiPage), wikiPage);
+            Wiki_Page next;
+            while ((next = waiting.remove(numWritten)) != null)
+            {
+                addDocument(next);
+                numWritten++;
+                permits.release();
+            }
+        }
+    }
+}
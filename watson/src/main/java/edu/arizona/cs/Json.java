@@ -0,0 +1,45 @@
+package edu.arizona.cs;
+
+/*
+ *  The little bit of JSON encoding the reports and the query server need.
+ */
+final class Json
+{
+    private Json () {}
+
+    static String quote (String value)
+    {
+        if (value == null)
+            return "null";
+
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':  quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    else
+                        quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /*
+     *  Format a number as JSON; NaN and infinities have no JSON form and become 0.
+     */
+    static String number (double value)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return "0";
+        return String.format(java.util.Locale.ROOT, "%.6f", value);
+    }
+}
@@ -0,0 +1,99 @@
+package edu.arizona.cs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *  A lock-free latency histogram in the style of HdrHistogram. Values (nanoseconds) below
+ *  256 get a bucket each; above that, every power of two is split into 128 buckets, so a
+ *  reported percentile is within 1% of the recorded value. Recording is a single atomic
+ *  increment and can be done from any number of threads.
+ */
+class LatencyStats
+{
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int NUM_BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record (long nanos)
+    {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    static int bucketOf (long value)
+    {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> exponent) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (exponent - 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /*
+     *  The largest value that falls into the bucket.
+     */
+    static long highestValueOf (int bucket)
+    {
+        if (bucket < LINEAR_BUCKETS)
+            return bucket;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long mantissa = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+
+    long count()
+    {
+        return count.sum();
+    }
+
+    long maxNanos()
+    {
+        return max.get();
+    }
+
+    double meanNanos()
+    {
+        long n = count.sum();
+        return (n == 0) ? 0.0 : (double) sum.sum() / n;
+    }
+
+    /*
+     *  The value below which the given percentage (0-100) of the recorded values fall.
+     */
+    long percentileNanos (double percentile)
+    {
+        long total = count.sum();
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++)
+        {
+            seen += counts.get(bucket);
+            if (seen >= target)
+                return Math.min(highestValueOf(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    /*
+     *  A one line summary in milliseconds.
+     */
+    String summary()
+    {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+            count(), meanNanos() / 1e6, percentileNanos(50) / 1e6, percentileNanos(90) / 1e6,
+            percentileNanos(99) / 1e6, maxNanos() / 1e6);
+    }
+}
@@ -0,0 +1,165 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+// Lucene classes
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+
+/*
+ *  A Lucene Analyzer that runs raw text through CoreNLP and emits the POS/NER-filtered
+ *  lemmas of PageLemmatizer directly into the token stream, with the POS tag as token type.
+ *  Using it both in createWriter and in query makes index-time and query-time analysis
+ *  identical, and no intermediate lemma strings are built.
+ *
+ *  Lucene reuses the components of an analyzer per thread, so every indexing or searching
+ *  thread ends up with its own CoreNLP pipeline. The analyzer of the query parser counts
+ *  the texts it analyzes as clues, that of the index writer as pages.
+ */
+class LemmaAnalyzer extends Analyzer
+{
+    private final boolean clues;
+
+    LemmaAnalyzer ()
+    {
+        this(false);
+    }
+
+    LemmaAnalyzer (boolean clues)
+    {
+        this.clues = clues;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents (String fieldName)
+    {
+        return new TokenStreamComponents(new LemmaTokenizer(clues ? PageLemmatizer.forClues() : new PageLemmatizer()));
+    }
+
+    /*
+     *  Reads the input in chunks of about CHUNK_CHARS characters, cut after a sentence end
+     *  where possible, so that a long page is never held in memory as a whole.
+     */
+    static final class LemmaTokenizer extends Tokenizer
+    {
+        static final int CHUNK_CHARS = 1 << 16;
+
+        private static class Term
+        {
+            final String text;
+            final int begin;
+            final int end;
+            final String pos;
+
+            Term (String text, int begin, int end, String pos)
+            {
+                this.text = text;
+                this.begin = begin;
+                this.end = end;
+                this.pos = pos;
+            }
+        }
+
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+        private final PageLemmatizer lemmatizer;
+        private final char[] readBuffer = new char[8192];
+        private final StringBuilder pending = new StringBuilder();
+        private final ArrayDeque<Term> terms = new ArrayDeque<>();
+        private int chunkOffset;
+        private int consumed;
+        private boolean inputDone;
+
+        LemmaTokenizer (PageLemmatizer lemmatizer)
+        {
+            this.lemmatizer = lemmatizer;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException
+        {
+            clearAttributes();
+            while (terms.isEmpty())
+            {
+                String chunk = nextChunk();
+                if (chunk == null)
+                    return false;
+                lemmatizer.analyze(chunk, (text, begin, end, pos) -> terms.add(new Term(text, begin, end, pos)));
+            }
+
+            Term term = terms.poll();
+            termAtt.setEmpty().append(term.text);
+            offsetAtt.setOffset(correctOffset(chunkOffset + term.begin), correctOffset(chunkOffset + term.end));
+            typeAtt.setType(term.pos);
+            return true;
+        }
+
+        /*
+         *  Return the next chunk of input to annotate, or null at the end of the input.
+         */
+        private String nextChunk() throws IOException
+        {
+            while (!inputDone && pending.length() < CHUNK_CHARS)
+            {
+                int read = input.read(readBuffer);
+                if (read < 0)
+                    inputDone = true;
+                else
+                    pending.append(readBuffer, 0, read);
+            }
+            if (pending.length() == 0)
+                return null;
+
+            int cut = pending.length();
+            if (!inputDone)
+            {
+                cut = pending.lastIndexOf(". ", CHUNK_CHARS - 2) + 2;
+                if (cut < 2)
+                    cut = lastWhitespace(CHUNK_CHARS) + 1;
+                if (cut < 1)
+                    cut = CHUNK_CHARS;
+            }
+
+            String chunk = pending.substring(0, cut);
+            pending.delete(0, cut);
+            chunkOffset = consumed;
+            consumed += cut;
+            return chunk;
+        }
+
+        private int lastWhitespace (int before)
+        {
+            for (int i = Math.min(before, pending.length()) - 1; i >= 0; i--)
+            {
+                if (Character.isWhitespace(pending.charAt(i)))
+                    return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public void end() throws IOException
+        {
+            super.end();
+            lemmatizer.countText();
+            int finalOffset = correctOffset(consumed);
+            offsetAtt.setOffset(finalOffset, finalOffset);
+        }
+
+        @Override
+        public void reset() throws IOException
+        {
+            super.reset();
+            pending.setLength(0);
+            terms.clear();
+            chunkOffset = 0;
+            consumed = 0;
+            inputDone = false;
+        }
+    }
+}
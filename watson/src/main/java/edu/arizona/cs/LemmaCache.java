@@ -0,0 +1,321 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ *  A compact binary file holding lemmatized wiki pages, replacing LemmatizedWikiPages.txt.
+ *
+ *      header   int magic, int version
+ *      records  one per page: int length, byte flags, vint-prefixed UTF-8 title,
+ *               vint-prefixed UTF-8 category (only if flags has HAS_CATEGORY),
+ *               vint token count followed by one vint dictionary id per content token
+ *      footer   vint token count followed by the vint-prefixed UTF-8 tokens (dictionary),
+ *               then one long offset per record (offset index)
+ *      trailer  long dictionary offset, long offset index offset, int page count, int magic
+ *
+ *  Content is stored as the sequence of its whitespace separated lemmas, each replaced by
+ *  its id in the dictionary, and read back joined by single spaces. The whitespace analyzer
+ *  sees exactly the same tokens as before.
+ *
+ *  The Reader maps the file with FileChannel.map, so any page can be read directly through
+ *  the offset index, and the file can be split into ranges that are read by several threads.
+ */
+final class LemmaCache
+{
+    static final int MAGIC = 0x574c4331; // "WLC1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int TRAILER_SIZE = 24;
+    static final byte HAS_CATEGORY = 1;
+
+    // Records are mapped in chunks of at most this many bytes, as a single mapping is limited to 2GB.
+    static final long MAX_CHUNK_SIZE = 1L << 30;
+
+    private static final Metrics.Counter BYTES_READ = Metrics.counter("read.bytes");
+
+    private LemmaCache () {}
+
+    static void writeVInt (ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static void writeString (ByteArrayOutputStream out, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static int readVInt (ByteBuffer in)
+    {
+        int value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    static String readString (ByteBuffer in)
+    {
+        byte[] bytes = new byte[readVInt(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     *  Writes pages to a new cache file. The file is written under a temporary name and only
+     *  moved into place by close(), so a crash never leaves a truncated cache behind.
+     */
+    static class Writer implements Closeable
+    {
+        private final Path path;
+        private final Path tempPath;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(4096);
+        private final Map<String, Integer> tokenIds = new HashMap<>();
+        private final List<String> tokens = new ArrayList<>();
+        private long[] offsets = new long[1024];
+        private int numPages = 0;
+        private long position = 0;
+        private boolean closed = false;
+
+        Writer (Path path) throws IOException
+        {
+            this.path = path;
+            this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            position = HEADER_SIZE;
+        }
+
+        void add (Wiki_Page wikiPage) throws IOException
+        {
+            record.reset();
+            record.write(wikiPage.Category != null ? HAS_CATEGORY : 0);
+            writeString(record, wikiPage.Title);
+            if (wikiPage.Category != null)
+                writeString(record, wikiPage.Category);
+
+            String[] lemmas = splitContent(wikiPage.Content);
+            writeVInt(record, lemmas.length);
+            for (String lemma : lemmas)
+                writeVInt(record, tokenId(lemma));
+
+            if (numPages == offsets.length)
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[numPages++] = position;
+
+            out.writeInt(record.size());
+            record.writeTo(out);
+            position += 4 + record.size();
+        }
+
+        private int tokenId (String token)
+        {
+            Integer id = tokenIds.get(token);
+            if (id == null)
+            {
+                id = tokens.size();
+                tokenIds.put(token, id);
+                tokens.add(token);
+            }
+            return id;
+        }
+
+        private static String[] splitContent (String content)
+        {
+            if (content == null)
+                return new String[0];
+            String trimmed = content.trim();
+            return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+        }
+
+        int size()
+        {
+            return numPages;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+
+            long dictionaryOffset = position;
+            ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+            writeVInt(dictionary, tokens.size());
+            for (String token : tokens)
+                writeString(dictionary, token);
+            dictionary.writeTo(out);
+
+            long offsetsOffset = dictionaryOffset + dictionary.size();
+            for (int i = 0; i < numPages; i++)
+                out.writeLong(offsets[i]);
+
+            out.writeLong(dictionaryOffset);
+            out.writeLong(offsetsOffset);
+            out.writeInt(numPages);
+            out.writeInt(MAGIC);
+            out.close();
+
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /*
+     *  Memory maps a cache file. Reading is thread-safe; every call works on its own view of
+     *  the mapped buffers.
+     */
+    static class Reader implements Closeable
+    {
+        private final FileChannel channel;
+        private final String[] tokens;
+        private final LongBuffer offsets;
+        private final int numPages;
+        private final long recordsEnd;
+        private final long[] chunkStarts;
+        private final MappedByteBuffer[] chunks;
+
+        Reader (Path path) throws IOException
+        {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE + TRAILER_SIZE)
+                throw new IOException("Not a lemma cache file: " + path);
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, fileSize - TRAILER_SIZE, TRAILER_SIZE);
+            long dictionaryOffset = trailer.getLong();
+            long offsetsOffset = trailer.getLong();
+            this.numPages = trailer.getInt();
+            if (header.getInt() != MAGIC || trailer.getInt() != MAGIC)
+                throw new IOException("Not a lemma cache file: " + path);
+            if (header.getInt() != VERSION)
+                throw new IOException("Unsupported lemma cache version in " + path);
+
+            this.recordsEnd = dictionaryOffset;
+            this.offsets = channel.map(FileChannel.MapMode.READ_ONLY, offsetsOffset, 8L * numPages).asLongBuffer();
+
+            ByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, offsetsOffset - dictionaryOffset);
+            this.tokens = new String[readVInt(dictionary)];
+            for (int i = 0; i < tokens.length; i++)
+                tokens[i] = readString(dictionary);
+
+            // Cut the record area into mappable chunks that always start at a record boundary.
+            List<Long> starts = new ArrayList<>();
+            for (int i = 0; i < numPages; i++)
+            {
+                long offset = offsets.get(i);
+                long end = (i + 1 < numPages) ? offsets.get(i + 1) : recordsEnd;
+                if (starts.isEmpty() || end - starts.get(starts.size() - 1) > MAX_CHUNK_SIZE)
+                    starts.add(offset);
+            }
+            this.chunkStarts = new long[starts.size()];
+            this.chunks = new MappedByteBuffer[starts.size()];
+            for (int c = 0; c < starts.size(); c++)
+            {
+                chunkStarts[c] = starts.get(c);
+                long chunkEnd = (c + 1 < starts.size()) ? starts.get(c + 1) : recordsEnd;
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStarts[c], chunkEnd - chunkStarts[c]);
+            }
+        }
+
+        int size()
+        {
+            return numPages;
+        }
+
+        /*
+         *  Decode the page at the given index.
+         */
+        Wiki_Page get (int index)
+        {
+            long offset = offsets.get(index);
+            int chunk = Arrays.binarySearch(chunkStarts, offset);
+            if (chunk < 0)
+                chunk = -chunk - 2;
+
+            ByteBuffer in = chunks[chunk].duplicate();
+            in.position((int) (offset - chunkStarts[chunk]) + 4);
+
+            Wiki_Page wikiPage = new Wiki_Page();
+            byte flags = in.get();
+            wikiPage.Title = readString(in);
+            if ((flags & HAS_CATEGORY) != 0)
+                wikiPage.Category = readString(in);
+
+            int numTokens = readVInt(in);
+            StringBuilder content = new StringBuilder(numTokens * 8);
+            for (int i = 0; i < numTokens; i++)
+            {
+                if (i > 0)
+                    content.append(' ');
+                content.append(tokens[readVInt(in)]);
+            }
+            wikiPage.Content = content.toString();
+            BYTES_READ.add(in.position() - (offset - chunkStarts[chunk]));
+
+            return wikiPage;
+        }
+
+        /*
+         *  A source over the pages [from, to). Closing it leaves the reader open.
+         */
+        PageSource source (int from, int to)
+        {
+            return new PageSource()
+            {
+                private int next = from;
+
+                @Override
+                public Wiki_Page next()
+                {
+                    return (next < to) ? get(next++) : null;
+                }
+
+                @Override
+                public void close() {}
+            };
+        }
+
+        /*
+         *  Split the pages into at most the given number of contiguous, equally sized ranges.
+         */
+        List<PageSource> split (int parts)
+        {
+            List<PageSource> sources = new ArrayList<>();
+            parts = Math.max(1, Math.min(parts, numPages));
+            for (int i = 0; i < parts; i++)
+            {
+                int from = (int) ((long) numPages * i / parts);
+                int to = (int) ((long) numPages * (i + 1) / parts);
+                sources.add(source(from, to));
+            }
+            return sources;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
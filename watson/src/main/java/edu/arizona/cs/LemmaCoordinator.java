@@ -0,0 +1,552 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/*
+ *  Spreads the lemmatizing of the wiki files over several worker JVMs, so that no single
+ *  heap has to hold the CoreNLP pipelines of all lemmatizer threads.
+ *
+ *  The wiki files are cut into units of filesPerUnit files. The coordinator listens on a
+ *  socket and hands one unit at a time to every worker that connects; the worker lemmatizes
+ *  the unit into its own output under the spool directory, either
+ *
+ *      index   an index with the given number of shards, later added to the final index
+ *              shard by shard with IndexWriter.addIndexes, or
+ *      cache   a LemmaCache file, later copied into the final cache,
+ *
+ *  and reports back. A unit whose worker fails, dies or times out is handed to the next
+ *  idle worker, up to retries times, so a lost worker only costs its unit. Every attempt
+ *  writes to its own directory, so a worker that is only presumed dead cannot spoil the
+ *  output of the retry.
+ *
+ *  Workers are plain "lemma-worker HOST:PORT" processes: the coordinator starts the local
+ *  ones itself, and more can be started by hand on other hosts sharing the spool directory.
+ */
+class LemmaCoordinator
+{
+    // Messages of the protocol, written with DataOutputStream.writeUTF
+    static final String HELLO = "HELLO";
+    static final String UNIT = "UNIT";
+    static final String STOP = "STOP";
+    static final String DONE = "DONE";
+    static final String FAIL = "FAIL";
+
+    private static final Metrics.Timer MERGE_TIME = Metrics.timer("coordinator.merge");
+    private static final Metrics.Counter UNITS_DONE = Metrics.counter("coordinator.units");
+    private static final Metrics.Counter UNITS_RETRIED = Metrics.counter("coordinator.retries");
+
+    private final Path spoolPath;
+    private final String output;
+    private final boolean lemmatize;
+    private final int numShards;
+    private final int filesPerUnit;
+    private final int retries;
+    private final int unitTimeoutMillis;
+    private String workerHeap;
+
+    private ServerSocket server;
+    private final BlockingDeque<Unit> pending = new LinkedBlockingDeque<>();
+    private final List<Unit> failed = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger connections = new AtomicInteger();
+    private CountDownLatch remaining;
+
+    /*
+     *  A group of consecutive wiki files lemmatized by one worker.
+     */
+    static final class Unit
+    {
+        final int id;
+        final File[] files;
+        int attempts = 0;
+        // The output of the attempt that succeeded, and its number of pages
+        Path outputPath;
+        long pages;
+        String lastError;
+
+        Unit (int id, File[] files)
+        {
+            this.id = id;
+            this.files = files;
+        }
+    }
+
+    LemmaCoordinator (Path spoolPath, String output, boolean lemmatize, int numShards, int filesPerUnit, int retries, int unitTimeoutMillis)
+    {
+        if (!"index".equals(output) && !"cache".equals(output))
+            throw new IllegalArgumentException("Unknown coordinator output: " + output);
+        this.spoolPath = spoolPath;
+        this.output = output;
+        this.lemmatize = lemmatize;
+        this.numShards = Math.max(1, numShards);
+        this.filesPerUnit = Math.max(1, filesPerUnit);
+        this.retries = Math.max(0, retries);
+        this.unitTimeoutMillis = unitTimeoutMillis;
+    }
+
+    /*
+     *  Give the local worker JVMs a maximum heap, e.g. "4g".
+     */
+    LemmaCoordinator workerHeap (String workerHeap)
+    {
+        this.workerHeap = workerHeap;
+        return this;
+    }
+
+    /*
+     *  Listen for workers on the address and return the port, which is chosen by the system
+     *  if the address has port 0.
+     */
+    int bind (InetSocketAddress address) throws IOException
+    {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address);
+        return server.getLocalPort();
+    }
+
+    /*
+     *  Lemmatize all wiki files on the workers, with localWorkers of them started here, and
+     *  merge the unit outputs into the index or cache at outputPath. Returns the number of
+     *  pages. Fails without touching outputPath if a unit failed on every attempt.
+     */
+    long run (File[] wikiFiles, Path outputPath, int localWorkers) throws IOException
+    {
+        if (server == null)
+            throw new IllegalStateException("bind the coordinator first");
+        long startTime = System.nanoTime();
+        Files.createDirectories(spoolPath);
+
+        try
+        {
+            List<Unit> units = new ArrayList<>();
+            for (int from = 0; from < wikiFiles.length; from += filesPerUnit)
+                units.add(new Unit(units.size(), Arrays.copyOfRange(wikiFiles, from, Math.min(wikiFiles.length, from + filesPerUnit))));
+            pending.addAll(units);
+            remaining = new CountDownLatch(units.size());
+            System.out.printf("Coordinating %d unit(s) of up to %d wiki file(s) on %s:%d ...\n",
+                units.size(), filesPerUnit, server.getInetAddress().getHostAddress(), server.getLocalPort());
+
+            ExecutorService handlers = Executors.newCachedThreadPool();
+            List<Process> workers = new ArrayList<>();
+            try
+            {
+                handlers.submit(() -> accept(handlers));
+                for (int i = 0; i < localWorkers; i++)
+                    workers.add(launchWorker(i));
+
+                // A local worker that died is replaced while there is work left, within a budget
+                int relaunches = localWorkers * (retries + 1);
+                while (!remaining.await(1, TimeUnit.SECONDS))
+                {
+                    for (int i = 0; i < workers.size(); i++)
+                    {
+                        if (!workers.get(i).isAlive() && relaunches > 0)
+                        {
+                            System.out.printf("Worker %d exited with %d, starting a new one.\n", i, workers.get(i).exitValue());
+                            workers.set(i, launchWorker(i));
+                            relaunches--;
+                        }
+                    }
+                    if (localWorkers > 0 && relaunches == 0 && connections.get() == 0 && workers.stream().noneMatch(Process::isAlive))
+                        throw new IOException("All lemmatizer workers died, see the logs in " + spoolPath);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while coordinating the lemmatizer workers");
+            }
+            finally
+            {
+                // Idle workers have been told to stop by now; closing the socket ends the accept loop
+                server.close();
+                handlers.shutdown();
+                stopWorkers(workers);
+                handlers.shutdownNow();
+            }
+
+            if (!failed.isEmpty())
+            {
+                StringBuilder message = new StringBuilder();
+                for (Unit unit : failed)
+                    message.append(String.format("\n    unit %d (%s): %s", unit.id, unit.files[0].getName(), unit.lastError));
+                throw new IOException(failed.size() + " unit(s) failed after " + (retries + 1) + " attempt(s):" + message);
+            }
+            System.out.printf("Lemmatized %d unit(s) in %.2f Secs.\n", units.size(), (System.nanoTime() - startTime) / 1e9);
+
+            return merge(units, outputPath);
+        }
+        finally
+        {
+            // Also those of failed attempts, and all of them if the run failed
+            deleteUnitOutputs();
+        }
+    }
+
+    /*
+     *  Delete the unit outputs in the spool directory. A worker presumed dead may still be
+     *  writing to its output, so what cannot be deleted is left behind with a warning.
+     */
+    private void deleteUnitOutputs()
+    {
+        try (Stream<Path> unitOutputs = Files.list(spoolPath))
+        {
+            for (Path unitOutput : (Iterable<Path>) unitOutputs.filter(path -> path.getFileName().toString().startsWith("unit-"))::iterator)
+                deleteRecursively(unitOutput);
+        }
+        catch (IOException e)
+        {
+            System.err.printf("Could not delete the unit outputs in %s: %s\n", spoolPath, e);
+        }
+    }
+
+    private Void accept (ExecutorService handlers)
+    {
+        while (!server.isClosed())
+        {
+            try
+            {
+                Socket socket = server.accept();
+                handlers.submit(() -> handle(socket));
+            }
+            catch (SocketException e)
+            {
+                // The server socket was closed
+                break;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /*
+     *  Hand units to one worker until there are none left or the worker is lost.
+     */
+    private Void handle (Socket socket)
+    {
+        connections.incrementAndGet();
+        String worker = socket.getRemoteSocketAddress().toString();
+        Unit unit = null;
+        try (Socket connection = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream())))
+        {
+            if (!HELLO.equals(in.readUTF()))
+                throw new IOException("not a lemmatizer worker");
+            worker = in.readUTF() + " at " + worker;
+            System.out.println("Worker connected: " + worker);
+
+            while ((unit = nextUnit()) != null)
+            {
+                Path unitOutput = spoolPath.resolve(String.format("unit-%d-%d", unit.id, unit.attempts));
+                out.writeUTF(UNIT);
+                out.writeInt(unit.id);
+                out.writeUTF(output);
+                out.writeBoolean(lemmatize);
+                out.writeInt(numShards);
+                out.writeUTF(unitOutput.toAbsolutePath().toString());
+                out.writeInt(unit.files.length);
+                for (File file : unit.files)
+                    out.writeUTF(file.getAbsolutePath());
+                out.flush();
+
+                connection.setSoTimeout(unitTimeoutMillis);
+                String reply = in.readUTF();
+                if (DONE.equals(reply))
+                {
+                    unit.outputPath = unitOutput;
+                    unit.pages = in.readLong();
+                    finished();
+                    System.out.printf("Unit %d: %d pages from %s.\n", unit.id, unit.pages, worker);
+                }
+                else
+                {
+                    failed(unit, in.readUTF());
+                }
+                unit = null;
+            }
+            out.writeUTF(STOP);
+            out.flush();
+        }
+        catch (IOException | InterruptedException e)
+        {
+            // The unit in flight, if any, goes to the next worker
+            if (unit != null)
+                failed(unit, "lost worker " + worker + ": " + e);
+        }
+        finally
+        {
+            connections.decrementAndGet();
+        }
+        return null;
+    }
+
+    /*
+     *  The next pending unit, or null once every unit has finished. Units still in flight on
+     *  other workers can come back, so an idle worker waits for them.
+     */
+    private Unit nextUnit() throws InterruptedException
+    {
+        while (remaining.getCount() > 0)
+        {
+            Unit unit = pending.poll(100, TimeUnit.MILLISECONDS);
+            if (unit != null)
+                return unit;
+        }
+        return null;
+    }
+
+    private void finished()
+    {
+        UNITS_DONE.increment();
+        remaining.countDown();
+    }
+
+    private void failed (Unit unit, String error)
+    {
+        unit.lastError = error;
+        System.out.printf("Unit %d failed (attempt %d): %s\n", unit.id, unit.attempts + 1, error);
+        if (++unit.attempts > retries)
+        {
+            failed.add(unit);
+            remaining.countDown();
+        }
+        else
+        {
+            UNITS_RETRIED.increment();
+            pending.addFirst(unit);
+        }
+    }
+
+    /*
+     *  Put the unit outputs together in unit order, i.e. in the order of the wiki files.
+     */
+    @SuppressWarnings("try")
+    private long merge (List<Unit> units, Path outputPath) throws IOException
+    {
+        try (Metrics.Stage stage = Metrics.stage(MERGE_TIME))
+        {
+            long numPages = 0;
+            if ("index".equals(output))
+            {
+                List<Path> unitIndexes = new ArrayList<>();
+                for (Unit unit : units)
+                    unitIndexes.add(unit.outputPath);
+                boolean analyzeRaw = lemmatize && Watson.LEMMA_ANALYSIS;
+                try (ShardedIndex index = ShardedIndex.create(outputPath, numShards, () -> Watson.createIndexAnalyzer(analyzeRaw)))
+                {
+                    index.addIndexes(unitIndexes);
+                    index.commit();
+                }
+                for (Unit unit : units)
+                    numPages += unit.pages;
+            }
+            else
+            {
+                try (LemmaCache.Writer writer = new LemmaCache.Writer(outputPath))
+                {
+                    for (Unit unit : units)
+                    {
+                        try (LemmaCache.Reader reader = new LemmaCache.Reader(unit.outputPath))
+                        {
+                            for (int i = 0; i < reader.size(); i++)
+                                writer.add(reader.get(i));
+                        }
+                    }
+                    numPages = writer.size();
+                }
+            }
+            System.out.printf("Merged %d pages of %d unit(s) into %s.\n", numPages, units.size(), outputPath);
+            return numPages;
+        }
+    }
+
+    private Process launchWorker (int number) throws IOException
+    {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (workerHeap != null)
+            command.add("-Xmx" + workerHeap);
+        // The workers are tuned like this JVM, but do not collect a lemma dictionary of their own
+        for (String name : System.getProperties().stringPropertyNames())
+        {
+            if (name.startsWith("watson.") && !name.startsWith("watson.coordinator.") && !name.equals("watson.lemmaDict"))
+                command.add("-D" + name + "=" + System.getProperty(name));
+        }
+        command.add("-cp");
+        command.add(workerClasspath());
+        command.add(Watson.class.getName());
+        command.add("lemma-worker");
+        // The address the coordinator listens on, or the loopback address if it listens on all
+        InetAddress address = server.getInetAddress();
+        if (address.isAnyLocalAddress())
+            address = InetAddress.getLoopbackAddress();
+        command.add(address.getHostAddress() + ":" + server.getLocalPort());
+
+        File log = spoolPath.resolve("worker-" + number + ".log").toFile();
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+    }
+
+    /*
+     *  The classpath this class was loaded from. Under mvn exec:java, java.class.path only
+     *  holds Maven's launcher, and the project classpath is that of the class loader.
+     */
+    private static String workerClasspath()
+    {
+        String classpath = System.getProperty("watson.coordinator.classpath");
+        if (classpath != null)
+            return classpath;
+        ClassLoader loader = LemmaCoordinator.class.getClassLoader();
+        if (loader instanceof URLClassLoader && ((URLClassLoader) loader).getURLs().length > 0)
+        {
+            StringJoiner joiner = new StringJoiner(File.pathSeparator);
+            for (URL url : ((URLClassLoader) loader).getURLs())
+            {
+                try
+                {
+                    joiner.add(Paths.get(url.toURI()).toString());
+                }
+                catch (Exception e)
+                {
+                    joiner.add(url.getPath());
+                }
+            }
+            return joiner.toString();
+        }
+        return System.getProperty("java.class.path");
+    }
+
+    private static void stopWorkers (List<Process> workers)
+    {
+        for (Process worker : workers)
+        {
+            try
+            {
+                if (!worker.waitFor(10, TimeUnit.SECONDS))
+                    worker.destroyForcibly();
+            }
+            catch (InterruptedException e)
+            {
+                worker.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void deleteRecursively (Path path) throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(path))
+        {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+
+    /*
+     *  Run a worker: connect to the coordinator, lemmatize the units it hands out, and return
+     *  when it says stop. Returns the number of units done.
+     */
+    static int work (String host, int port) throws IOException
+    {
+        int numUnits = 0;
+        try (Socket socket = new Socket(host, port);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())))
+        {
+            out.writeUTF(HELLO);
+            out.writeUTF(ManagementFactory.getRuntimeMXBean().getName());
+            out.flush();
+
+            while (UNIT.equals(nextCommand(in)))
+            {
+                int id = in.readInt();
+                String output = in.readUTF();
+                boolean lemmatize = in.readBoolean();
+                int numShards = in.readInt();
+                Path outputPath = Paths.get(in.readUTF());
+                File[] files = new File[in.readInt()];
+                for (int i = 0; i < files.length; i++)
+                    files[i] = new File(in.readUTF());
+
+                System.out.printf("Unit %d: %d file(s) into %s\n", id, files.length, outputPath);
+                try
+                {
+                    long pages = lemmatizeUnit(files, output, lemmatize, numShards, outputPath);
+                    out.writeUTF(DONE);
+                    out.writeLong(pages);
+                    numUnits++;
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    e.printStackTrace();
+                    out.writeUTF(FAIL);
+                    out.writeUTF(String.valueOf(e));
+                }
+                out.flush();
+            }
+        }
+        return numUnits;
+    }
+
+    /*
+     *  The next message of the coordinator. A coordinator that has finished, or died, while
+     *  this worker was connecting or idle has nothing more to hand out either.
+     */
+    private static String nextCommand (DataInputStream in) throws IOException
+    {
+        try
+        {
+            return in.readUTF();
+        }
+        catch (EOFException | SocketException e)
+        {
+            return STOP;
+        }
+    }
+
+    private static long lemmatizeUnit (File[] files, String output, boolean lemmatize, int numShards, Path outputPath) throws IOException
+    {
+        List<PageSource> sources = Watson.rawPages(files, Watson.READ_THREADS);
+        if ("index".equals(output))
+        {
+            boolean analyzeRaw = lemmatize && Watson.LEMMA_ANALYSIS;
+            try (ShardedIndex index = ShardedIndex.create(outputPath, numShards, () -> Watson.createIndexAnalyzer(analyzeRaw)))
+            {
+                return Watson.IndexDocuments(index, sources, lemmatize);
+            }
+        }
+
+        // One sink thread, as the cache writer is not thread-safe, fed in corpus order
+        AtomicLong numPages = new AtomicLong();
+        try (LemmaCache.Writer writer = new LemmaCache.Writer(outputPath))
+        {
+            IndexingPipeline pipeline = new IndexingPipeline(wikiPage ->
+            {
+                wikiPage.Title = Watson.cleanTitle(wikiPage.Title);
+                writer.add(wikiPage);
+                numPages.incrementAndGet();
+            }, Watson.LEMMA_THREADS, 1, Watson.PIPELINE_QUEUE_CAPACITY).inOrder();
+            pipeline.run(sources, lemmatize);
+        }
+        return numPages.get();
+    }
+}
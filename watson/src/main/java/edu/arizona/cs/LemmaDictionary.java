@@ -0,0 +1,149 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+// Lucene classes
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.BytesRefFSTEnum;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.Util;
+
+/*
+ *  A surface form -> lemma table stored as a Lucene FST. It is collected while the corpus
+ *  is lemmatized and lets ClueLemmatizer lemmatize a clue with one lookup per token.
+ *
+ *  When a surface form was given several lemmas (they depend on the POS tag), the most
+ *  frequent one is kept. A lemma equal to its surface form is stored as an empty output,
+ *  which keeps the FST small. Lookups are thread-safe.
+ */
+final class LemmaDictionary
+{
+    private static final ByteSequenceOutputs OUTPUTS = ByteSequenceOutputs.getSingleton();
+
+    private final FST<BytesRef> fst;
+    private final long numEntries;
+
+    private LemmaDictionary (FST<BytesRef> fst, long numEntries)
+    {
+        this.fst = fst;
+        this.numEntries = numEntries;
+    }
+
+    static LemmaDictionary load (Path path) throws IOException
+    {
+        FST<BytesRef> fst = FST.read(path, OUTPUTS);
+        long numEntries = 0;
+        BytesRefFSTEnum<BytesRef> entries = new BytesRefFSTEnum<>(fst);
+        while (entries.next() != null)
+            numEntries++;
+        return new LemmaDictionary(fst, numEntries);
+    }
+
+    /*
+     *  The lemma of the surface form, or null if it was never seen in the corpus.
+     */
+    String lookup (String surface) throws IOException
+    {
+        BytesRef lemma = Util.get(fst, new BytesRef(surface));
+        if (lemma == null)
+            return null;
+        return (lemma.length == 0) ? surface : lemma.utf8ToString();
+    }
+
+    long size()
+    {
+        return numEntries;
+    }
+
+    long ramBytesUsed()
+    {
+        return fst.ramBytesUsed();
+    }
+
+    /*
+     *  Counts how often each surface form was given each lemma. Shared by all lemmatizer
+     *  threads of a run.
+     */
+    static class Collector
+    {
+        private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> counts = new ConcurrentHashMap<>();
+
+        void add (String surface, String lemma)
+        {
+            if (surface == null || lemma == null || surface.isEmpty())
+                return;
+            counts.computeIfAbsent(surface, s -> new ConcurrentHashMap<>())
+                  .computeIfAbsent(lemma, l -> new LongAdder())
+                  .increment();
+        }
+
+        /*
+         *  Add the entries of an existing dictionary, e.g. when only part of the corpus was
+         *  lemmatized again. Each counts as a single observation.
+         */
+        void addAll (LemmaDictionary dictionary) throws IOException
+        {
+            BytesRefFSTEnum<BytesRef> entries = new BytesRefFSTEnum<>(dictionary.fst);
+            BytesRefFSTEnum.InputOutput<BytesRef> entry;
+            while ((entry = entries.next()) != null)
+            {
+                String surface = entry.input.utf8ToString();
+                add(surface, (entry.output.length == 0) ? surface : entry.output.utf8ToString());
+            }
+        }
+
+        int size()
+        {
+            return counts.size();
+        }
+
+        /*
+         *  Build the FST from the most frequent lemma of every surface form and save it.
+         */
+        LemmaDictionary write (Path path) throws IOException
+        {
+            // FST inputs must be added in sorted (UTF-8 byte) order
+            TreeMap<BytesRef, String> sorted = new TreeMap<>();
+            for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> entry : counts.entrySet())
+                sorted.put(new BytesRef(entry.getKey()), mostFrequent(entry.getValue()));
+
+            Builder<BytesRef> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, OUTPUTS);
+            IntsRefBuilder scratch = new IntsRefBuilder();
+            for (Map.Entry<BytesRef, String> entry : sorted.entrySet())
+            {
+                String surface = entry.getKey().utf8ToString();
+                BytesRef lemma = surface.equals(entry.getValue()) ? OUTPUTS.getNoOutput() : new BytesRef(entry.getValue());
+                builder.add(Util.toIntsRef(entry.getKey(), scratch), lemma);
+            }
+
+            FST<BytesRef> fst = builder.finish();
+            if (fst == null)
+                throw new IOException("No lemmas were collected for " + path);
+            fst.save(path);
+            return new LemmaDictionary(fst, sorted.size());
+        }
+
+        private static String mostFrequent (Map<String, LongAdder> lemmas)
+        {
+            String best = null;
+            long bestCount = -1;
+            for (Map.Entry<String, LongAdder> lemma : lemmas.entrySet())
+            {
+                long count = lemma.getValue().sum();
+                // Ties go to the alphabetically first lemma, so the result does not depend on thread timing
+                if (count > bestCount || (count == bestCount && lemma.getKey().compareTo(best) < 0))
+                {
+                    best = lemma.getKey();
+                    bestCount = count;
+                }
+            }
+            return best;
+        }
+    }
+}
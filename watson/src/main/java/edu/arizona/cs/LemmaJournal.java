@@ -0,0 +1,258 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ *  An append-only log of lemmatized pages, together with the in-memory manifest
+ *  title -> content hash -> position of the lemmatized page in the log.
+ *
+ *      record   int payload length, int CRC32 of the payload, payload
+ *      payload  20 byte SHA-1 of the raw page (see hash), byte flags, vint-prefixed UTF-8 title,
+ *               vint-prefixed UTF-8 category (only if flags has HAS_CATEGORY),
+ *               vint-prefixed UTF-8 lemmatized content
+ *
+ *  A later record for the same title replaces the earlier one. Appends are forced to disk
+ *  every checkpointInterval pages; when the journal is opened after a crash, a torn record
+ *  at the end is cut off, so at most the pages since the last checkpoint are lost.
+ */
+class LemmaJournal implements Closeable
+{
+    static final int HASH_SIZE = 20;
+
+    private static class Entry
+    {
+        final byte[] hash;
+        final long offset;
+
+        Entry (byte[] hash, long offset)
+        {
+            this.hash = hash;
+            this.offset = offset;
+        }
+    }
+
+    private final Path path;
+    private final int checkpointInterval;
+    private final Map<String, Entry> manifest = new HashMap<>();
+    private FileChannel channel;
+    private long position;
+    private long numRecords;
+    private int sinceCheckpoint = 0;
+
+    LemmaJournal (Path path, int checkpointInterval) throws IOException
+    {
+        this.path = path;
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    /*
+     *  Rebuild the manifest from the records on disk and cut off anything after the last
+     *  complete record.
+     */
+    private void load() throws IOException
+    {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (offset + 8 <= size)
+        {
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < HASH_SIZE || offset + 8 + length > size)
+                break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, offset + 8);
+            if (crc(payload.array()) != crc)
+                break;
+
+            payload.flip();
+            byte[] hash = new byte[HASH_SIZE];
+            payload.get(hash);
+            payload.get();
+            String title = LemmaCache.readString(payload);
+            manifest.put(title, new Entry(hash, offset));
+            numRecords++;
+
+            offset += 8 + length;
+        }
+
+        if (offset < size)
+        {
+            System.out.printf("Discarding %d bytes of an incomplete record at the end of %s.\n", size - offset, path);
+            channel.truncate(offset);
+        }
+        position = offset;
+    }
+
+    /*
+     *  The SHA-1 of the raw category and content of a page, before lemmatization, after the
+     *  signature of the lemmatizer, so that a page lemmatized with other annotators or tags
+     *  is no longer current.
+     */
+    static byte[] hash (Wiki_Page wikiPage)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(PageLemmatizer.CACHE_SIGNATURE.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (wikiPage.Category != null)
+                digest.update(wikiPage.Category.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(wikiPage.Content.getBytes(StandardCharsets.UTF_8));
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /*
+     *  Whether the journal holds the lemmatized version of exactly this raw page content.
+     */
+    synchronized boolean isCurrent (String title, byte[] hash)
+    {
+        Entry entry = manifest.get(title);
+        return entry != null && Arrays.equals(entry.hash, hash);
+    }
+
+    synchronized int size()
+    {
+        return manifest.size();
+    }
+
+    /*
+     *  Append a lemmatized page. The hash must be the one of its raw content.
+     */
+    synchronized void append (Wiki_Page wikiPage, byte[] hash) throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(wikiPage.Content.length() + 64);
+        payload.write(hash, 0, HASH_SIZE);
+        payload.write(wikiPage.Category != null ? LemmaCache.HAS_CATEGORY : 0);
+        LemmaCache.writeString(payload, wikiPage.Title);
+        if (wikiPage.Category != null)
+            LemmaCache.writeString(payload, wikiPage.Category);
+        LemmaCache.writeString(payload, wikiPage.Content);
+
+        byte[] bytes = payload.toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+        record.putInt(bytes.length);
+        record.putInt(crc(bytes));
+        record.put(bytes);
+        record.flip();
+        while (record.hasRemaining())
+            channel.write(record, position + record.position());
+
+        manifest.put(wikiPage.Title, new Entry(hash, position));
+        position += 8 + bytes.length;
+        numRecords++;
+
+        if (++sinceCheckpoint >= checkpointInterval)
+            checkpoint();
+    }
+
+    /*
+     *  Force everything appended so far to disk.
+     */
+    synchronized void checkpoint() throws IOException
+    {
+        channel.force(false);
+        sinceCheckpoint = 0;
+    }
+
+    /*
+     *  Read the lemmatized page stored for the title, or null if there is none.
+     */
+    synchronized Wiki_Page read (String title) throws IOException
+    {
+        Entry entry = manifest.get(title);
+        if (entry == null)
+            return null;
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(header, entry.offset);
+        header.flip();
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+        readFully(payload, entry.offset + 8);
+        payload.flip();
+
+        payload.position(HASH_SIZE);
+        byte flags = payload.get();
+        Wiki_Page wikiPage = new Wiki_Page();
+        wikiPage.Title = LemmaCache.readString(payload);
+        if ((flags & LemmaCache.HAS_CATEGORY) != 0)
+            wikiPage.Category = LemmaCache.readString(payload);
+        wikiPage.Content = LemmaCache.readString(payload);
+        return wikiPage;
+    }
+
+    /*
+     *  Rewrite the journal with only the given titles once more than half of its records are
+     *  stale (replaced by a later version, or of pages no longer in the corpus).
+     */
+    synchronized void compactIfNeeded (Collection<String> liveTitles) throws IOException
+    {
+        if (numRecords <= 2L * liveTitles.size())
+            return;
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        Files.deleteIfExists(compacted);
+        try (LemmaJournal target = new LemmaJournal(compacted, Integer.MAX_VALUE))
+        {
+            for (String title : liveTitles)
+            {
+                Entry entry = manifest.get(title);
+                Wiki_Page wikiPage = read(title);
+                if (wikiPage != null)
+                    target.append(wikiPage, entry.hash);
+            }
+            target.checkpoint();
+        }
+        System.out.printf("Compacted %s from %d to %d records.\n", path, numRecords, liveTitles.size());
+
+        channel.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        manifest.clear();
+        numRecords = 0;
+        load();
+    }
+
+    private void readFully (ByteBuffer buffer, long offset) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of " + path);
+        }
+    }
+
+    private static int crc (byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        checkpoint();
+        channel.close();
+    }
+}
@@ -0,0 +1,56 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/*
+ *  Reads the LemmatizedWikiPages.txt format written by earlier versions one page at a time,
+ *  so that it can be converted into a LemmaCache without holding all of it in memory.
+ */
+class LemmatizedFileReader implements PageSource
+{
+    private final BufferedReader reader;
+
+    LemmatizedFileReader (File lemmatizedFile) throws IOException
+    {
+        this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(lemmatizedFile), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Wiki_Page next() throws IOException
+    {
+        Wiki_Page wikiPage = null;
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (line.contains("__NEWPAGE__"))
+            {
+                wikiPage = new Wiki_Page();
+            }
+            else if (wikiPage == null)
+            {
+                continue;
+            }
+            else if (line.contains("TITLE"))
+            {
+                wikiPage.Title = Watson.cleanTitle(line.replace("TITLE:", ""));
+            }
+            else if (line.contains("CATEGORIES"))
+            {
+                wikiPage.Category = line;
+            }
+            else if (line.contains("CONTENT"))
+            {
+                wikiPage.Content = line;
+                return wikiPage;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+}
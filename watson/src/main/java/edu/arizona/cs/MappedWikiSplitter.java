@@ -0,0 +1,415 @@
+package edu.arizona.cs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ *  Reads the raw wiki dump files through memory mappings instead of line by line. Every
+ *  file is mapped with FileChannel.map and scanned byte by byte for the title lines that
+ *  start a page (a line starting with "[[" followed by at least one character and "]]",
+ *  the lines TITLE_REGEX matches). The start offset of every page goes into a page index,
+ *  so that
+ *
+ *      - any page can be read directly, as a read-only slice of the mapping (no copy) or
+ *        decoded into a Wiki_Page,
+ *      - the pages can be split into ranges of about the same number of bytes at page
+ *        boundaries, also within one large file, and read by several threads at once.
+ *
+ *  Files are scanned in parallel, and files larger than scanChunkSize also in chunks.
+ *  The pages are the same as those of the RawWikiReader: the line containing "CATEGORIES"
+ *  becomes the category, the other non-empty lines are concatenated into the content, and
+ *  anything before the first title of a file is skipped. A mapping cannot exceed 2GB, so
+ *  larger files are mapped in several windows that end at a page boundary; only a single
+ *  page of 2GB or more cannot be read. The files are closed right after they are mapped;
+ *  the mappings stay valid until the splitter is garbage collected.
+ */
+class MappedWikiSplitter
+{
+    static final int DEFAULT_SCAN_CHUNK_SIZE = 64 << 20;
+    private static final int SCAN_WINDOW_SIZE = 64 << 10;
+
+    private static final byte[] CATEGORIES = "CATEGORIES".getBytes(StandardCharsets.US_ASCII);
+    private static final Metrics.Counter BYTES_READ = Metrics.counter("read.bytes");
+
+    // The mapped windows of the files, each ending at a page boundary or the end of its file
+    private final ByteBuffer[] buffers;
+    // Page i is bytes [pageStarts[i], pageEnds[i]) of window pageFiles[i]
+    private final int[] pageFiles;
+    private final int[] pageStarts;
+    private final int[] pageEnds;
+
+    MappedWikiSplitter (File[] wikiFiles, int scanThreads) throws IOException
+    {
+        this(wikiFiles, scanThreads, DEFAULT_SCAN_CHUNK_SIZE);
+    }
+
+    MappedWikiSplitter (File[] wikiFiles, int scanThreads, int scanChunkSize) throws IOException
+    {
+        this(wikiFiles, scanThreads, scanChunkSize, Integer.MAX_VALUE);
+    }
+
+    /*
+     *  Files larger than maxWindowSize bytes are mapped in several windows.
+     */
+    MappedWikiSplitter (File[] wikiFiles, int scanThreads, int scanChunkSize, int maxWindowSize) throws IOException
+    {
+        long startTime = System.nanoTime();
+        List<ByteBuffer> windows = new ArrayList<>();
+        long totalBytes = 0;
+        for (File wikiFile : wikiFiles)
+        {
+            try (FileChannel channel = FileChannel.open(wikiFile.toPath(), StandardOpenOption.READ))
+            {
+                long size = channel.size();
+                totalBytes += size;
+                long from = 0;
+                do
+                {
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(maxWindowSize, size - from));
+                    int length = window.capacity();
+                    if (from + length < size)
+                    {
+                        length = lastTitleLine(window);
+                        if (length <= 0)
+                            throw new IOException(wikiFile + " has a page of more than " + maxWindowSize + " bytes at offset " + from);
+                        window.limit(length);
+                    }
+                    windows.add(window.slice());
+                    from += length;
+                }
+                while (from < size);
+            }
+        }
+        this.buffers = windows.toArray(new ByteBuffer[0]);
+
+        // One scan task per chunk; every task lists the title lines starting within its chunk
+        List<int[]> chunks = new ArrayList<>();
+        for (int f = 0; f < buffers.length; f++)
+        {
+            int size = buffers[f].limit();
+            for (int from = 0; from == 0 || from < size; from += scanChunkSize)
+                chunks.add(new int[] { f, from, (int) Math.min(size, (long) from + scanChunkSize) });
+        }
+        List<int[]> titleLines = scanAll(chunks, scanThreads);
+
+        int numPages = 0;
+        for (int[] starts : titleLines)
+            numPages += starts.length;
+        this.pageFiles = new int[numPages];
+        this.pageStarts = new int[numPages];
+        this.pageEnds = new int[numPages];
+        int page = 0;
+        for (int c = 0; c < chunks.size(); c++)
+        {
+            int file = chunks.get(c)[0];
+            for (int start : titleLines.get(c))
+            {
+                // A page ends where the next one in the same file starts, or at the end of the file
+                if (page > 0 && pageFiles[page - 1] == file)
+                    pageEnds[page - 1] = start;
+                pageFiles[page] = file;
+                pageStarts[page] = start;
+                pageEnds[page] = buffers[file].limit();
+                page++;
+            }
+        }
+
+        System.out.printf("Mapped %d wiki files (%.1f MB) and found %d pages in %.2f Secs.\n",
+            wikiFiles.length, totalBytes / 1048576.0, numPages, (System.nanoTime() - startTime) / 1e9);
+    }
+
+    /*
+     *  The offset of the last title line of the window, where the page it cuts off starts,
+     *  or 0 if there is none after the start of the window.
+     */
+    private static int lastTitleLine (ByteBuffer window)
+    {
+        int end = window.limit();
+        for (int position = end - 1; position > 0; position--)
+        {
+            if (window.get(position) == '[' && isLineStart(window, position) && isTitle(window, position, lineEnd(window, position, end)))
+                return position;
+        }
+        return 0;
+    }
+
+    private List<int[]> scanAll (List<int[]> chunks, int scanThreads) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(scanThreads, chunks.size())));
+        List<Future<int[]>> futures = new ArrayList<>(chunks.size());
+        try
+        {
+            for (int[] chunk : chunks)
+                futures.add(executor.submit(() -> scan(buffers[chunk[0]], chunk[1], chunk[2])));
+            List<int[]> titleLines = new ArrayList<>(chunks.size());
+            for (Future<int[]> future : futures)
+                titleLines.add(future.get());
+            return titleLines;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning the wiki files");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Scanning the wiki files failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     *  The offsets of the title lines starting in [from, to) of the buffer. The buffer is
+     *  read in windows copied to an array, in which the line starts are looked for; only
+     *  lines starting with '[' are then checked for a title in the buffer itself.
+     */
+    static int[] scan (ByteBuffer buffer, int from, int to)
+    {
+        int[] starts = new int[16];
+        int count = 0;
+        int end = buffer.limit();
+        int position = from;
+        // Move to the first line starting at or after from
+        if (position > 0 && !isLineStart(buffer, position))
+            position = skipTerminator(buffer, lineEnd(buffer, position, end), end);
+
+        byte[] window = new byte[SCAN_WINDOW_SIZE];
+        ByteBuffer view = buffer.duplicate();
+        boolean lineStart = true;
+        while (position < to)
+        {
+            int length = Math.min(window.length, end - position);
+            view.position(position);
+            view.get(window, 0, length);
+            for (int i = 0; i < length; i++)
+            {
+                if (lineStart)
+                {
+                    if (position + i >= to)
+                        return Arrays.copyOf(starts, count);
+                    if (window[i] == '[' && isTitle(buffer, position + i, lineEnd(buffer, position + i, end)))
+                    {
+                        if (count == starts.length)
+                            starts = Arrays.copyOf(starts, count * 2);
+                        starts[count++] = position + i;
+                    }
+                    lineStart = false;
+                }
+                while (i < length && window[i] != '\n' && window[i] != '\r')
+                    i++;
+                if (i == length)
+                    break;
+                if (window[i] == '\n')
+                {
+                    lineStart = true;
+                }
+                else
+                {
+                    // The '\n' of a "\r\n" starts the next line instead
+                    byte next = (i + 1 < length) ? window[i + 1] : (position + i + 1 < end) ? buffer.get(position + i + 1) : 0;
+                    lineStart = (next != '\n');
+                }
+            }
+            position += length;
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    private static boolean isLineStart (ByteBuffer buffer, int position)
+    {
+        byte previous = buffer.get(position - 1);
+        return previous == '\n' || (previous == '\r' && (position >= buffer.limit() || buffer.get(position) != '\n'));
+    }
+
+    /*
+     *  The offset of the '\n' or '\r' ending the line at position, or the end of the buffer.
+     */
+    private static int lineEnd (ByteBuffer buffer, int position, int end)
+    {
+        while (position < end)
+        {
+            byte b = buffer.get(position);
+            if (b == '\n' || b == '\r')
+                return position;
+            position++;
+        }
+        return end;
+    }
+
+    private static int skipTerminator (ByteBuffer buffer, int lineEnd, int end)
+    {
+        if (lineEnd >= end)
+            return end;
+        if (buffer.get(lineEnd) == '\r' && lineEnd + 1 < end && buffer.get(lineEnd + 1) == '\n')
+            return lineEnd + 2;
+        return lineEnd + 1;
+    }
+
+    private static boolean isTitle (ByteBuffer buffer, int start, int end)
+    {
+        if (end - start < 5 || buffer.get(start) != '[' || buffer.get(start + 1) != '[')
+            return false;
+        for (int i = start + 3; i + 1 < end; i++)
+        {
+            if (buffer.get(i) == ']' && buffer.get(i + 1) == ']')
+                return true;
+        }
+        return false;
+    }
+
+    int size()
+    {
+        return pageStarts.length;
+    }
+
+    /*
+     *  The bytes of the page, from its title line up to the next title, as a read-only view
+     *  of the mapping.
+     */
+    ByteBuffer slice (int page)
+    {
+        ByteBuffer slice = buffers[pageFiles[page]].duplicate();
+        slice.limit(pageEnds[page]).position(pageStarts[page]);
+        return slice.slice();
+    }
+
+    /*
+     *  Decode the page. Thread-safe, as it only reads through its own view of the mapping.
+     */
+    Wiki_Page page (int page)
+    {
+        return decode(slice(page));
+    }
+
+    /*
+     *  Turn the bytes of a page into a Wiki_Page. The page is copied out of the mapping in
+     *  one go, its content lines are moved together within that copy, and the title, the
+     *  category and the content are decoded as one string each.
+     */
+    static Wiki_Page decode (ByteBuffer page)
+    {
+        byte[] bytes = new byte[page.remaining()];
+        page.duplicate().get(bytes);
+        int end = bytes.length;
+
+        Wiki_Page wikiPage = new Wiki_Page();
+        int titleEnd = lineEnd(bytes, 0, end);
+        wikiPage.Title = new String(bytes, 0, titleEnd, StandardCharsets.UTF_8);
+
+        // Content lines only ever move towards the start, over lines already consumed
+        int contentLength = 0;
+        for (int position = skipTerminator(bytes, titleEnd, end); position < end; )
+        {
+            int lineEnd = lineEnd(bytes, position, end);
+            if (contains(bytes, position, lineEnd, CATEGORIES))
+            {
+                wikiPage.Category = new String(bytes, position, lineEnd - position, StandardCharsets.UTF_8);
+            }
+            else
+            {
+                System.arraycopy(bytes, position, bytes, contentLength, lineEnd - position);
+                contentLength += lineEnd - position;
+            }
+            position = skipTerminator(bytes, lineEnd, end);
+        }
+        wikiPage.Content = new String(bytes, 0, contentLength, StandardCharsets.UTF_8);
+        BYTES_READ.add(end);
+
+        return wikiPage;
+    }
+
+    private static int lineEnd (byte[] bytes, int position, int end)
+    {
+        while (position < end && bytes[position] != '\n' && bytes[position] != '\r')
+            position++;
+        return position;
+    }
+
+    private static int skipTerminator (byte[] bytes, int lineEnd, int end)
+    {
+        if (lineEnd >= end)
+            return end;
+        if (bytes[lineEnd] == '\r' && lineEnd + 1 < end && bytes[lineEnd + 1] == '\n')
+            return lineEnd + 2;
+        return lineEnd + 1;
+    }
+
+    private static boolean contains (byte[] bytes, int start, int end, byte[] pattern)
+    {
+        for (int i = start; i + pattern.length <= end; i++)
+        {
+            if (bytes[i] != pattern[0])
+                continue;
+            int j = 1;
+            while (j < pattern.length && bytes[i + j] == pattern[j])
+                j++;
+            if (j == pattern.length)
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     *  A source over the pages [from, to). Closing it leaves the splitter open.
+     */
+    PageSource source (int from, int to)
+    {
+        return new PageSource()
+        {
+            private int next = from;
+
+            @Override
+            public Wiki_Page next()
+            {
+                return (next < to) ? page(next++) : null;
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    PageSource source()
+    {
+        return source(0, size());
+    }
+
+    /*
+     *  Split the pages into at most the given number of contiguous ranges of about the same
+     *  number of bytes.
+     */
+    List<PageSource> split (int parts)
+    {
+        long totalBytes = 0;
+        for (int page = 0; page < size(); page++)
+            totalBytes += pageEnds[page] - pageStarts[page];
+
+        List<PageSource> sources = new ArrayList<>();
+        parts = Math.max(1, Math.min(parts, size()));
+        int from = 0;
+        long bytes = 0;
+        for (int page = 0; page < size(); page++)
+        {
+            bytes += pageEnds[page] - pageStarts[page];
+            if (bytes >= totalBytes * (sources.size() + 1) / parts && sources.size() < parts - 1)
+            {
+                sources.add(source(from, page + 1));
+                from = page + 1;
+            }
+        }
+        if (from < size() || sources.isEmpty())
+            sources.add(source(from, size()));
+        return sources;
+    }
+}
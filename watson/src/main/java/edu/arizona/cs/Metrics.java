@@ -0,0 +1,282 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *  Process-wide timers and counters of the pipeline stages.
+ *
+ *  A Timer records nanosecond durations into a LatencyStats histogram, so that besides the
+ *  total it gives percentiles (a whole stage is one sample, a question or a page is one
+ *  sample each). Stages are timed with
+ *
+ *      try (Metrics.Stage stage = Metrics.stage(TIMER))
+ *      {
+ *          ...
+ *      }
+ *
+ *  in a method marked @SuppressWarnings("try"), as javac -Xlint warns about a resource the
+ *  body never uses. The stage also emits a JFR event when the JVM has Flight Recorder and
+ *  JfrEvents was built, so that a recording shows the stages next to GC and I/O. Counters add up pages, tokens, hits and bytes.
+ *  Everything can be printed, or exported as JSON or in the Prometheus text format.
+ */
+final class Metrics
+{
+    // The JFR events of the stages, or null without Flight Recorder or JfrEvents
+    private static final StageEvents EVENTS = stageEvents();
+
+    private static final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+
+    private Metrics ()
+    {
+    }
+
+    static Timer timer (String name)
+    {
+        return timers.computeIfAbsent(name, Timer::new);
+    }
+
+    static Counter counter (String name)
+    {
+        return counters.computeIfAbsent(name, Counter::new);
+    }
+
+    static Stage stage (Timer timer)
+    {
+        return new Stage(timer, null);
+    }
+
+    /*
+     *  A stage whose JFR event carries a detail, such as the clue being searched.
+     */
+    static Stage stage (Timer timer, String detail)
+    {
+        return new Stage(timer, detail);
+    }
+
+    /*
+     *  Begins and commits the JFR event of a stage. Implemented by JfrEvents, which needs
+     *  jdk.jfr and is therefore compiled apart from the other sources and loaded by name.
+     */
+    interface StageEvents
+    {
+        Object begin (String stage, String detail);
+
+        void commit (Object event);
+    }
+
+    private static StageEvents stageEvents()
+    {
+        if (Boolean.getBoolean("watson.metrics.noJfr"))
+            return null;
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return (StageEvents) Class.forName("edu.arizona.cs.JfrEvents").getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return null;
+        }
+    }
+
+    static final class Timer
+    {
+        final String name;
+        private final LatencyStats stats = new LatencyStats();
+        private final LongAdder totalNanos = new LongAdder();
+
+        private Timer (String name)
+        {
+            this.name = name;
+        }
+
+        void record (long nanos)
+        {
+            stats.record(nanos);
+            totalNanos.add(nanos);
+        }
+
+        long count()
+        {
+            return stats.count();
+        }
+
+        long totalNanos()
+        {
+            return totalNanos.sum();
+        }
+
+        LatencyStats stats()
+        {
+            return stats;
+        }
+    }
+
+    static final class Counter
+    {
+        final String name;
+        private final LongAdder value = new LongAdder();
+
+        private Counter (String name)
+        {
+            this.name = name;
+        }
+
+        void increment()
+        {
+            value.increment();
+        }
+
+        void add (long amount)
+        {
+            value.add(amount);
+        }
+
+        long get()
+        {
+            return value.sum();
+        }
+    }
+
+    /*
+     *  Times the code up to close. Not meant to be shared between threads.
+     */
+    static final class Stage implements AutoCloseable
+    {
+        private final Timer timer;
+        private final Object event;
+        private final long startTime;
+
+        private Stage (Timer timer, String detail)
+        {
+            this.timer = timer;
+            this.event = (EVENTS != null) ? EVENTS.begin(timer.name, detail) : null;
+            this.startTime = System.nanoTime();
+        }
+
+        @Override
+        public void close()
+        {
+            timer.record(System.nanoTime() - startTime);
+            if (event != null)
+                EVENTS.commit(event);
+        }
+    }
+
+    /*
+     *  A human readable summary, one line per timer and counter that was used.
+     */
+    static String summary()
+    {
+        StringBuilder summary = new StringBuilder();
+        for (Timer timer : timers.values())
+        {
+            if (timer.count() == 0)
+                continue;
+            LatencyStats stats = timer.stats();
+            summary.append(String.format(Locale.ROOT, "%-22s %8d x  total %10.2f ms", timer.name, timer.count(), timer.totalNanos() / 1e6));
+            if (timer.count() > 1)
+                summary.append(String.format(Locale.ROOT, "  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  max %.3f ms",
+                    stats.meanNanos() / 1e6, stats.percentileNanos(50) / 1e6, stats.percentileNanos(90) / 1e6,
+                    stats.percentileNanos(99) / 1e6, stats.maxNanos() / 1e6));
+            summary.append('\n');
+        }
+        for (Counter counter : counters.values())
+        {
+            if (counter.get() != 0)
+                summary.append(String.format(Locale.ROOT, "%-22s %8d\n", counter.name, counter.get()));
+        }
+        return summary.toString();
+    }
+
+    static String toJson()
+    {
+        StringBuilder json = new StringBuilder("{\"timers\":{");
+        boolean first = true;
+        for (Timer timer : timers.values())
+        {
+            if (!first)
+                json.append(',');
+            first = false;
+            LatencyStats stats = timer.stats();
+            json.append(Json.quote(timer.name)).append(":{\"count\":").append(timer.count())
+                .append(",\"totalNanos\":").append(timer.totalNanos())
+                .append(",\"meanNanos\":").append(Json.number(stats.meanNanos()))
+                .append(",\"p50Nanos\":").append(stats.percentileNanos(50))
+                .append(",\"p90Nanos\":").append(stats.percentileNanos(90))
+                .append(",\"p99Nanos\":").append(stats.percentileNanos(99))
+                .append(",\"p999Nanos\":").append(stats.percentileNanos(99.9))
+                .append(",\"maxNanos\":").append(stats.maxNanos()).append('}');
+        }
+        json.append("},\"counters\":{");
+        first = true;
+        for (Counter counter : counters.values())
+        {
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append(Json.quote(counter.name)).append(':').append(counter.get());
+        }
+        return json.append("}}").toString();
+    }
+
+    /*
+     *  Timers become summaries in seconds (watson_<name>_seconds) and counters become
+     *  counters (watson_<name>_total), following the Prometheus naming conventions.
+     */
+    static String toPrometheus()
+    {
+        StringBuilder text = new StringBuilder();
+        for (Timer timer : timers.values())
+        {
+            String name = "watson_" + metricName(timer.name) + "_seconds";
+            LatencyStats stats = timer.stats();
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 })
+            {
+                text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(stats.percentileNanos(quantile * 100))).append('\n');
+            }
+            text.append(name).append("_sum ").append(seconds(timer.totalNanos())).append('\n');
+            text.append(name).append("_count ").append(timer.count()).append('\n');
+        }
+        for (Counter counter : counters.values())
+        {
+            String name = "watson_" + metricName(counter.name) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(counter.get()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /*
+     *  Write the metrics to the files named by watson.metrics.json and watson.metrics.prometheus, if set.
+     */
+    static void export() throws IOException
+    {
+        String jsonFile = System.getProperty("watson.metrics.json");
+        if (jsonFile != null)
+            Files.write(Paths.get(jsonFile), toJson().getBytes(StandardCharsets.UTF_8));
+        String prometheusFile = System.getProperty("watson.metrics.prometheus");
+        if (prometheusFile != null)
+            Files.write(Paths.get(prometheusFile), toPrometheus().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String metricName (String name)
+    {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    private static String seconds (double nanos)
+    {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
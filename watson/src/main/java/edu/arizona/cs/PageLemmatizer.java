@@ -0,0 +1,321 @@
+package edu.arizona.cs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.*;
+// Standford NLP classes
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.PartOfSpeechAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.LemmaAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+
+/*
+ *  Turns the raw content of a wiki page into the space separated lemmas that get indexed.
+ *  Only tokens whose POS and NER tags are both in the lists below are kept.
+ *
+ *  A PageLemmatizer owns its StanfordCoreNLP pipeline and is meant to be used by one
+ *  thread at a time. The heavy models behind the pipeline are shared by CoreNLP itself,
+ *  so creating one lemmatizer per worker thread is cheap after the first.
+ *
+ *  With a SentenceCache, the text is only split into sentences first, and a sentence goes
+ *  through the pipeline only if the cache has no entry for it yet. Its entry holds every
+ *  token of the sentence:
+ *
+ *      entry    vint token count, per token: byte flags (KEPT, SAME_LEMMA), UTF-8 word,
+ *               UTF-8 lemma (unless SAME_LEMMA), vint begin and end offsets in the sentence,
+ *               UTF-8 POS tag (only if KEPT)
+ *
+ *  so the terms, offsets and collected lemmas are the same as if it had been annotated.
+ *  A sentence is annotated on its own; its POS and NER tags only depend on the sentence.
+ *  Lemmas depend on the POS tag as well as the word ("saw" is "see" as a verb but "saw" as
+ *  a noun), so a word has no lemma of its own, but as the entries are per sentence, every
+ *  cached lemma comes with the tag it was made from.
+ */
+class PageLemmatizer
+{
+    // The Part-of-Speech tags, which I will only considers important and extract from the contents
+    static final Set<String> POS_TAGS = new HashSet<>(Arrays.asList("NN", "NNS", "NNP", "NNPS", "VB", "VBN", "VBP", "VBD", "VBZ", "JJ"));
+    static final Set<String> NER_TAGS = new HashSet<>(Arrays.asList("PERSON", "LOCATION", "ORGANIZATION", "MISC", "NUMBER", "DATE", "TIME", "DURATION", "SET"));
+
+    private static final Metrics.Timer PAGE_TIME = Metrics.timer("lemmatize.page");
+    private static final Metrics.Counter PAGES = Metrics.counter("pages.lemmatized");
+    private static final Metrics.Counter TOKENS = Metrics.counter("lemmatize.tokens");
+    private static final Metrics.Counter TERMS = Metrics.counter("lemmatize.terms");
+    // Clues analyzed by the LemmaAnalyzer of the query parser are counted apart from the pages
+    private static final Metrics.Counter CLUES = Metrics.counter("clues.lemmatized");
+    private static final Metrics.Counter CLUE_TOKENS = Metrics.counter("lemmatize.clue.tokens");
+    private static final Metrics.Counter CLUE_TERMS = Metrics.counter("lemmatize.clue.terms");
+
+    private static final byte KEPT = 1;
+    private static final byte SAME_LEMMA = 2;
+    // Everything the entries of the sentence cache and the pages of a LemmaJournal depend on
+    // besides the text itself
+    static final String CACHE_SIGNATURE = pipelineProperties() + " " + new TreeSet<>(POS_TAGS) + " " + new TreeSet<>(NER_TAGS);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final StanfordCoreNLP pipeline;
+    private final LemmaDictionary.Collector collector;
+    private final SentenceCache sentenceCache;
+    private final StanfordCoreNLP splitter;
+    private final Metrics.Counter texts;
+    private final Metrics.Counter tokens;
+    private final Metrics.Counter terms;
+
+    PageLemmatizer ()
+    {
+        this(null);
+    }
+
+    /*
+     *  When a collector is given, the surface form and lemma of every token (kept or not)
+     *  are added to it, to build the LemmaDictionary used to lemmatize clues. Sentences are
+     *  cached in the shared SentenceCache, if one is configured.
+     */
+    PageLemmatizer (LemmaDictionary.Collector collector)
+    {
+        this(collector, SentenceCache.shared());
+    }
+
+    PageLemmatizer (LemmaDictionary.Collector collector, SentenceCache sentenceCache)
+    {
+        this(collector, sentenceCache, false);
+    }
+
+    /*
+     *  A lemmatizer of clues rather than pages, which only differs in the metrics it counts to.
+     */
+    static PageLemmatizer forClues()
+    {
+        return new PageLemmatizer(null, SentenceCache.shared(), true);
+    }
+
+    private PageLemmatizer (LemmaDictionary.Collector collector, SentenceCache sentenceCache, boolean clues)
+    {
+        this.texts = clues ? CLUES : PAGES;
+        this.tokens = clues ? CLUE_TOKENS : TOKENS;
+        this.terms = clues ? CLUE_TERMS : TERMS;
+        this.pipeline = new StanfordCoreNLP(pipelineProperties());
+        this.collector = collector;
+        this.sentenceCache = sentenceCache;
+        if (sentenceCache != null)
+        {
+            Properties props = new Properties();
+            props.setProperty("annotators", "tokenize, ssplit");
+            this.splitter = new StanfordCoreNLP(props);
+        }
+        else
+        {
+            this.splitter = null;
+        }
+    }
+
+    /*
+     *  The pipeline only loads the annotators that the POS/NER filter needs. Fine grained
+     *  NER is turned off so that tokens are tagged with the coarse classes listed in NER_TAGS
+     *  (LOCATION rather than CITY, COUNTRY, ...).
+     */
+    static Properties pipelineProperties()
+    {
+        Properties props = new Properties();
+        props.setProperty("annotators", "tokenize, ssplit, pos, lemma, ner");
+        props.setProperty("ner.applyFineGrained", "false");
+        return props;
+    }
+
+    /*
+     *  Receives the terms of a text, with the character offsets of the token they come from.
+     */
+    interface TermConsumer
+    {
+        void accept (String term, int begin, int end, String pos);
+    }
+
+    /*
+     *  Annotate the content and return the filtered lemmas, separated by single spaces.
+     */
+    @SuppressWarnings("try")
+    String lemmatize (String content)
+    {
+        try (Metrics.Stage stage = Metrics.stage(PAGE_TIME))
+        {
+            StringBuilder lemmas = new StringBuilder();
+            analyze(content, (term, begin, end, pos) ->
+            {
+                if (lemmas.length() > 0)
+                    lemmas.append(' ');
+                lemmas.append(term);
+            });
+            countText();
+            return lemmas.toString();
+        }
+    }
+
+    /*
+     *  Count one more page (or clue) as lemmatized. lemmatize does so itself; callers of
+     *  analyze call it once per text, as analyze may only see a part of it.
+     */
+    void countText()
+    {
+        texts.increment();
+    }
+
+    /*
+     *  Annotate the text and hand the terms of the kept tokens to the consumer. Characters of
+     *  a lemma that are neither letters nor digits split it into several terms, exactly as the
+     *  whitespace analyzer splits the cleaned lemma string that used to be indexed.
+     */
+    void analyze (String text, TermConsumer consumer)
+    {
+        if (sentenceCache == null)
+        {
+            annotate(text, consumer);
+            return;
+        }
+
+        Annotation annotation = new Annotation(text);
+        splitter.annotate(annotation);
+        try
+        {
+            for (CoreMap sentence : annotation.get(SentencesAnnotation.class))
+            {
+                List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+                if (tokens.isEmpty())
+                    continue;
+                int begin = tokens.get(0).beginPosition();
+                String sentenceText = text.substring(begin, tokens.get(tokens.size() - 1).endPosition());
+
+                byte[] hash = SentenceCache.hash(CACHE_SIGNATURE, sentenceText);
+                byte[] entry = sentenceCache.get(hash);
+                if (entry == null)
+                {
+                    long startCpu = THREADS.getCurrentThreadCpuTime();
+                    entry = encode(sentenceText);
+                    sentenceCache.put(hash, entry, THREADS.getCurrentThreadCpuTime() - startCpu);
+                }
+                replay(entry, begin, consumer);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Cannot use the sentence cache", e);
+        }
+    }
+
+    /*
+     *  Run the whole pipeline on the text, without the sentence cache.
+     */
+    private void annotate (String text, TermConsumer consumer)
+    {
+        Annotation annotation = new Annotation(text);
+        pipeline.annotate(annotation);
+        List<CoreMap> sentences = annotation.get(SentencesAnnotation.class);
+        long numTokens = 0, numKept = 0;
+        for (CoreMap sentence : sentences)
+        {
+            for (CoreLabel token : sentence.get(TokensAnnotation.class))
+            {
+                numTokens++;
+                if (collector != null)
+                    collector.add(token.word(), token.get(LemmaAnnotation.class));
+                if (keep(token))
+                {
+                    numKept++;
+                    splitLemma(token.get(LemmaAnnotation.class), token.beginPosition(), token.endPosition(), token.tag(), consumer);
+                }
+            }
+        }
+        tokens.add(numTokens);
+        terms.add(numKept);
+    }
+
+    /*
+     *  Annotate a single sentence and encode the cache entry of its tokens.
+     */
+    private byte[] encode (String sentenceText)
+    {
+        Annotation annotation = new Annotation(sentenceText);
+        pipeline.annotate(annotation);
+        List<CoreLabel> tokens = annotation.get(TokensAnnotation.class);
+        ByteArrayOutputStream entry = new ByteArrayOutputStream(tokens.size() * 24);
+        LemmaCache.writeVInt(entry, tokens.size());
+        for (CoreLabel token : tokens)
+        {
+            String word = token.word();
+            String lemma = token.get(LemmaAnnotation.class);
+            boolean kept = keep(token);
+            entry.write((kept ? KEPT : 0) | (word.equals(lemma) ? SAME_LEMMA : 0));
+            LemmaCache.writeString(entry, word);
+            if (!word.equals(lemma))
+                LemmaCache.writeString(entry, lemma);
+            LemmaCache.writeVInt(entry, token.beginPosition());
+            LemmaCache.writeVInt(entry, token.endPosition());
+            if (kept)
+                LemmaCache.writeString(entry, token.tag());
+        }
+        return entry.toByteArray();
+    }
+
+    /*
+     *  Hand the terms of a cache entry to the consumer and the collector as analyze would,
+     *  for the sentence starting at offset begin of the text.
+     */
+    private void replay (byte[] entry, int begin, TermConsumer consumer)
+    {
+        ByteBuffer in = ByteBuffer.wrap(entry);
+        int numTokens = LemmaCache.readVInt(in);
+        long numKept = 0;
+        for (int i = 0; i < numTokens; i++)
+        {
+            byte flags = in.get();
+            String word = LemmaCache.readString(in);
+            String lemma = ((flags & SAME_LEMMA) != 0) ? word : LemmaCache.readString(in);
+            int tokenBegin = begin + LemmaCache.readVInt(in);
+            int tokenEnd = begin + LemmaCache.readVInt(in);
+            if (collector != null)
+                collector.add(word, lemma);
+            if ((flags & KEPT) != 0)
+            {
+                numKept++;
+                splitLemma(lemma, tokenBegin, tokenEnd, LemmaCache.readString(in), consumer);
+            }
+        }
+        tokens.add(numTokens);
+        terms.add(numKept);
+    }
+
+    private static void splitLemma (String lemma, int begin, int end, String pos, TermConsumer consumer)
+    {
+        int start = -1;
+        for (int i = 0; i < lemma.length(); )
+        {
+            int codePoint = lemma.codePointAt(i);
+            boolean termChar = Character.isAlphabetic(codePoint) || Character.isDigit(codePoint) || codePoint == '^';
+            if (termChar && start < 0)
+                start = i;
+            else if (!termChar && start >= 0)
+            {
+                consumer.accept(lemma.substring(start, i), begin, end, pos);
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        if (start >= 0)
+            consumer.accept(lemma.substring(start), begin, end, pos);
+    }
+
+    static boolean keep (CoreLabel token)
+    {
+        String pos = token.get(PartOfSpeechAnnotation.class);
+        String ner = token.get(NamedEntityTagAnnotation.class);
+        return POS_TAGS.contains(pos) && NER_TAGS.contains(ner);
+    }
+}
@@ -0,0 +1,14 @@
+package edu.arizona.cs;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+ *  A pull-based stream of wiki pages. Each call to next() hands back the next page in
+ *  corpus order, or null once the source is exhausted. Sources are not thread-safe;
+ *  a single reader thread is expected to drain them.
+ */
+interface PageSource extends Closeable
+{
+    Wiki_Page next() throws IOException;
+}
@@ -0,0 +1,95 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+// Lucene classes
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/*
+ *  The ranked titles and scores of the top hits for one clue.
+ */
+class QueryResult
+{
+    private static final Set<String> TITLE_FIELD = Collections.singleton("title");
+
+    final String[] titles;
+    final float[] scores;
+    // Whether reranking was cut short by its latency budget, which makes the ranking depend on timing
+    final boolean truncated;
+
+    QueryResult (String[] titles, float[] scores)
+    {
+        this(titles, scores, false);
+    }
+
+    QueryResult (String[] titles, float[] scores, boolean truncated)
+    {
+        this.titles = titles;
+        this.scores = scores;
+        this.truncated = truncated;
+    }
+
+    /*
+     *  The same hits, marked as cut short.
+     */
+    QueryResult truncated()
+    {
+        return new QueryResult(titles, scores, true);
+    }
+
+    /*
+     *  Resolve the titles of the hits from the title doc values. Segments of indexes built
+     *  before titles had doc values fall back to loading the stored title of each document.
+     */
+    static QueryResult of (IndexSearcher searcher, TopDocs docs) throws IOException
+    {
+        ScoreDoc[] hits = docs.scoreDocs;
+        String[] titles = new String[hits.length];
+        float[] scores = new float[hits.length];
+
+        // Doc values iterators only move forward, so visit the hits in doc id order
+        Integer[] byDoc = new Integer[hits.length];
+        for (int i = 0; i < hits.length; i++)
+            byDoc[i] = i;
+        Arrays.sort(byDoc, (a, b) -> Integer.compare(hits[a].doc, hits[b].doc));
+
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = null;
+        SortedDocValues titleValues = null;
+        for (int i : byDoc)
+        {
+            int doc = hits[i].doc;
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc())
+            {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                titleValues = leaf.reader().getSortedDocValues("title");
+            }
+
+            if (titleValues != null && titleValues.advanceExact(doc - leaf.docBase))
+            {
+                titles[i] = titleValues.binaryValue().utf8ToString();
+            }
+            else
+            {
+                Document document = searcher.doc(doc, TITLE_FIELD);
+                titles[i] = document.get("title");
+            }
+            scores[i] = hits[i].score;
+        }
+        return new QueryResult(titles, scores);
+    }
+
+    int size()
+    {
+        return titles.length;
+    }
+}
@@ -0,0 +1,151 @@
+package edu.arizona.cs;
+
+import java.util.*;
+// Lucene classes
+import org.apache.lucene.index.IndexReader;
+
+/*
+ *  Keeps the QueryResult of recently searched clues, so that a repeated clue skips parsing,
+ *  searching and loading titles. Clues are keyed on their lemmatized form with whitespace
+ *  normalized, together with the number of hits asked for.
+ *
+ *  Entries are evicted least recently used first, once there are more than maxEntries of
+ *  them or they take more than about maxBytes. The results only hold for one point in time
+ *  of the index: as soon as a different IndexReader is used (a reopened or rebuilt index)
+ *  the whole cache is dropped. All methods are thread-safe.
+ */
+class QueryResultCache
+{
+    // Rough per-entry cost of the map entry, key, result and arrays on a 64 bit JVM
+    private static final long ENTRY_OVERHEAD = 160;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, QueryResult> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private Object readerKey;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    QueryResultCache (int maxEntries, long maxBytes)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /*
+     *  The cache key of a lemmatized clue, the same for clues that only differ in whitespace.
+     */
+    static String key (String lemmatizedClue, int hitsPerPage)
+    {
+        StringBuilder key = new StringBuilder().append(hitsPerPage).append(':');
+        for (String token : lemmatizedClue.trim().split("\\s+"))
+        {
+            if (!token.isEmpty())
+                key.append(token).append(' ');
+        }
+        return key.toString();
+    }
+
+    /*
+     *  The cached result of the key for this reader, or null.
+     */
+    synchronized QueryResult get (IndexReader reader, String key)
+    {
+        checkReader(reader);
+        QueryResult result = entries.get(key);
+        if (result != null)
+            hits++;
+        else
+            misses++;
+        return result;
+    }
+
+    synchronized void put (IndexReader reader, String key, QueryResult result)
+    {
+        checkReader(reader);
+        QueryResult previous = entries.put(key, result);
+        if (previous != null)
+            bytes -= sizeOf(key, previous);
+        bytes += sizeOf(key, result);
+
+        Iterator<Map.Entry<String, QueryResult>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || (bytes > maxBytes && entries.size() > 1))
+        {
+            Map.Entry<String, QueryResult> entry = eldest.next();
+            bytes -= sizeOf(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void checkReader (IndexReader reader)
+    {
+        Object key = readerKey(reader);
+        if (key != readerKey)
+        {
+            if (readerKey != null)
+                invalidations++;
+            readerKey = key;
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /*
+     *  Readers that can be cached have a key that changes whenever their content does;
+     *  other readers are compared by identity.
+     */
+    private static Object readerKey (IndexReader reader)
+    {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        return (cacheHelper != null) ? cacheHelper.getKey() : reader;
+    }
+
+    private static long sizeOf (String key, QueryResult result)
+    {
+        long size = ENTRY_OVERHEAD + 2L * key.length() + 4L * result.scores.length;
+        for (String title : result.titles)
+            size += 48 + 2L * ((title == null) ? 0 : title.length());
+        return size;
+    }
+
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    synchronized long bytes()
+    {
+        return bytes;
+    }
+
+    synchronized long hits()
+    {
+        return hits;
+    }
+
+    synchronized long misses()
+    {
+        return misses;
+    }
+
+    synchronized long evictions()
+    {
+        return evictions;
+    }
+
+    synchronized long invalidations()
+    {
+        return invalidations;
+    }
+
+    synchronized String summary()
+    {
+        long lookups = hits + misses;
+        return String.format("%d entries (%d KB), %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations",
+            entries.size(), bytes / 1024, hits, misses, (lookups == 0) ? 0.0 : 100.0 * hits / lookups, evictions, invalidations);
+    }
+}
@@ -0,0 +1,333 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+// Lucene classes
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.ReferenceManager;
+// JDK HTTP server
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ *  A long-running query server. The CoreNLP models and the index are loaded once at
+ *  startup, and clues are then answered over HTTP on the loopback interface:
+ *
+ *      GET /search?q=<clue>[&hits=N][&category=<category>]   ranked titles with their scores
+ *      GET /stats                      request count and p50/p90/p99 latency
+ *      GET /metrics                    all Metrics in the Prometheus text format
+ *
+ *  With an IndexUpdater, single pages can also be changed while the server answers clues;
+ *  the changes are searchable after the updater's next refresh:
+ *
+ *      PUT /pages?title=<title>[&category=<line>]   add or replace the page, raw content as body
+ *      DELETE /pages?title=<title>                  delete the page
+ *
+ *  Requests are handled concurrently by a fixed pool of threads, each with its own clue
+ *  lemmatizer and query parser. Searchers come from a SearcherManager (a ShardSearcherManager
+ *  for a sharded index), which is refreshed periodically so that a rebuilt or updated index,
+ *  or a rebuilt shard, is picked up without a restart.
+ *  Repeated clues are answered from a QueryResultCache, which is dropped on every refresh
+ *  that changes the index.
+ */
+class QueryServer implements Closeable
+{
+    private final ReferenceManager<IndexSearcher> searcherManager;
+    private final IndexUpdater updater;
+    private final QueryResultCache resultCache;
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final ScheduledExecutorService refresher;
+    private final LatencyStats latency = new LatencyStats();
+    private final ThreadLocal<ClueLemmatizer> lemmatizers = ThreadLocal.withInitial(ClueLemmatizer::new);
+    private final ThreadLocal<QueryParser> parsers = ThreadLocal.withInitial(
+        () -> new QueryParser("content", Watson.createQueryAnalyzer()));
+
+    QueryServer (ReferenceManager<IndexSearcher> searcherManager, QueryResultCache resultCache, int port, int numThreads, long refreshSeconds) throws IOException
+    {
+        this(searcherManager, null, resultCache, port, numThreads, refreshSeconds);
+    }
+
+    /*
+     *  A server that also updates pages through the updater, if it is not null. The updater
+     *  is closed with the server.
+     */
+    QueryServer (ReferenceManager<IndexSearcher> searcherManager, IndexUpdater updater, QueryResultCache resultCache, int port, int numThreads, long refreshSeconds) throws IOException
+    {
+        this.searcherManager = searcherManager;
+        this.updater = updater;
+        this.resultCache = resultCache;
+        this.requestExecutor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(requestExecutor);
+        server.createContext("/search", this::handleSearch);
+        server.createContext("/stats", this::handleStats);
+        server.createContext("/metrics", this::handleMetrics);
+        if (updater != null)
+            server.createContext("/pages", this::handlePages);
+
+        this.refresher = Executors.newSingleThreadScheduledExecutor();
+        refresher.scheduleWithFixedDelay(this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /*
+     *  Load the models into every request thread and run one query, so that the first
+     *  real request does not pay for any of it. Then start accepting requests.
+     */
+    void start (int numThreads) throws IOException
+    {
+        long startTime = System.nanoTime();
+        // Every warm-up waits for the others to start, so each lands on a different thread
+        CountDownLatch started = new CountDownLatch(numThreads);
+        List<Future<?>> warmups = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++)
+        {
+            warmups.add(requestExecutor.submit(() ->
+            {
+                started.countDown();
+                started.await();
+                return search("warm up", Watson.HITS_PER_PAGE);
+            }));
+        }
+        try
+        {
+            for (Future<?> warmup : warmups)
+                warmup.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while warming up");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Warming up the query server failed", e.getCause());
+        }
+
+        server.start();
+        System.out.printf("Query server warmed up in %.2f Secs, listening on http://%s:%d/search?q=...\n",
+            (System.nanoTime() - startTime) / 1e9, server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    QueryResult search (String clue, int hits) throws IOException, ParseException
+    {
+        return search(clue, null, hits);
+    }
+
+    /*
+     *  Search for the clue of the category (may be null), which only matters when reranking.
+     */
+    QueryResult search (String clue, String category, int hits) throws IOException, ParseException
+    {
+        String lemmatizedClue = lemmatizers.get().lemmatize(clue);
+        IndexSearcher searcher = searcherManager.acquire();
+        try
+        {
+            return Watson.search(searcher, parsers.get(), resultCache, lemmatizedClue, category, hits);
+        }
+        finally
+        {
+            searcherManager.release(searcher);
+        }
+    }
+
+    LatencyStats latency()
+    {
+        return latency;
+    }
+
+    private void handleSearch (HttpExchange exchange) throws IOException
+    {
+        long startTime = System.nanoTime();
+        try
+        {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String clue = params.get("q");
+            if (clue == null || clue.trim().isEmpty())
+            {
+                respond(exchange, 400, "{\"error\":\"missing parameter q\"}");
+                return;
+            }
+            int hits = params.containsKey("hits") ? Integer.parseInt(params.get("hits")) : Watson.HITS_PER_PAGE;
+
+            QueryResult result = search(clue, params.get("category"), Math.max(1, Math.min(hits, 1000)));
+            long tookNanos = System.nanoTime() - startTime;
+            latency.record(tookNanos);
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\"clue\":").append(Json.quote(clue)).append(",\"hits\":[");
+            for (int i = 0; i < result.size(); i++)
+            {
+                if (i > 0)
+                    json.append(',');
+                json.append("{\"title\":").append(Json.quote(result.titles[i]))
+                    .append(",\"score\":").append(Json.number(result.scores[i])).append('}');
+            }
+            json.append("],\"tookMillis\":").append(Json.number(tookNanos / 1e6)).append('}');
+            respond(exchange, 200, json.toString());
+        }
+        catch (ParseException | NumberFormatException e)
+        {
+            respond(exchange, 400, "{\"error\":" + Json.quote(e.getMessage()) + "}");
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            respond(exchange, 500, "{\"error\":" + Json.quote(String.valueOf(e)) + "}");
+        }
+    }
+
+    private void handlePages (HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String title = params.get("title");
+            if (title == null || Watson.cleanTitle(title).isEmpty())
+            {
+                respond(exchange, 400, "{\"error\":\"missing parameter title\"}");
+                return;
+            }
+
+            long seqNo;
+            switch (exchange.getRequestMethod())
+            {
+                case "PUT":
+                case "POST":
+                    Wiki_Page wikiPage = new Wiki_Page();
+                    wikiPage.Title = title;
+                    wikiPage.Category = params.get("category");
+                    wikiPage.Content = readBody(exchange);
+                    seqNo = updater.update(wikiPage);
+                    break;
+                case "DELETE":
+                    seqNo = updater.delete(title);
+                    break;
+                default:
+                    respond(exchange, 405, "{\"error\":\"use PUT or DELETE\"}");
+                    return;
+            }
+            respond(exchange, 200, "{\"title\":" + Json.quote(Watson.cleanTitle(title)) + ",\"seqNo\":" + seqNo + "}");
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            respond(exchange, 500, "{\"error\":" + Json.quote(String.valueOf(e)) + "}");
+        }
+    }
+
+    private static String readBody (HttpExchange exchange) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody())
+        {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                body.write(buffer, 0, n);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void handleStats (HttpExchange exchange) throws IOException
+    {
+        String json = "{\"requests\":" + latency.count()
+            + ",\"meanMillis\":" + Json.number(latency.meanNanos() / 1e6)
+            + ",\"p50Millis\":" + Json.number(latency.percentileNanos(50) / 1e6)
+            + ",\"p90Millis\":" + Json.number(latency.percentileNanos(90) / 1e6)
+            + ",\"p99Millis\":" + Json.number(latency.percentileNanos(99) / 1e6)
+            + ",\"maxMillis\":" + Json.number(latency.maxNanos() / 1e6)
+            + ",\"lemmaDictHitRate\":" + Json.number(ClueLemmatizer.clueHitRate());
+        if (resultCache != null)
+        {
+            json += ",\"resultCache\":{\"entries\":" + resultCache.size()
+                + ",\"bytes\":" + resultCache.bytes()
+                + ",\"hits\":" + resultCache.hits()
+                + ",\"misses\":" + resultCache.misses()
+                + ",\"evictions\":" + resultCache.evictions()
+                + ",\"invalidations\":" + resultCache.invalidations() + "}";
+        }
+        LRUQueryCache queryCache = Watson.queryCache();
+        if (queryCache != null)
+        {
+            json += ",\"queryCache\":{\"entries\":" + queryCache.getCacheSize()
+                + ",\"bytes\":" + queryCache.ramBytesUsed()
+                + ",\"hits\":" + queryCache.getHitCount()
+                + ",\"misses\":" + queryCache.getMissCount()
+                + ",\"evictions\":" + queryCache.getEvictionCount() + "}";
+        }
+        respond(exchange, 200, json + "}");
+    }
+
+    private void handleMetrics (HttpExchange exchange) throws IOException
+    {
+        byte[] bytes = Metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery (String rawQuery) throws UnsupportedEncodingException
+    {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null)
+            return params;
+        for (String pair : rawQuery.split("&"))
+        {
+            int eq = pair.indexOf('=');
+            String key = (eq < 0) ? pair : pair.substring(0, eq);
+            String value = (eq < 0) ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    private static void respond (HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+
+    private void refresh()
+    {
+        try
+        {
+            searcherManager.maybeRefresh();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        server.stop(1);
+        refresher.shutdownNow();
+        requestExecutor.shutdownNow();
+        System.out.println("Query latency: " + latency.summary());
+        if (resultCache != null)
+            System.out.println("Result cache: " + resultCache.summary());
+        if (updater != null)
+            updater.close();
+        else
+            searcherManager.close();
+    }
+}
@@ -0,0 +1,112 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+
+/*
+ *  Reads the raw wiki dump files one page at a time. A page starts at a "[[Title]]" line,
+ *  the line containing "CATEGORIES" becomes its category, and every other non-empty line
+ *  is appended to its content. The returned pages carry the raw (not yet lemmatized) content.
+ */
+class RawWikiReader implements PageSource
+{
+    private static final Metrics.Counter BYTES_READ = Metrics.counter("read.bytes");
+
+    private final File[] wikiFiles;
+    private int fileIndex = 0;
+    private BufferedReader reader;
+    private String pendingTitle;
+
+    RawWikiReader (File[] wikiFiles)
+    {
+        this.wikiFiles = wikiFiles;
+    }
+
+    @Override
+    public Wiki_Page next() throws IOException
+    {
+        while (true)
+        {
+            if (reader == null)
+            {
+                if (fileIndex >= wikiFiles.length)
+                    return null;
+                File file = wikiFiles[fileIndex++];
+                System.out.println("Tokenizing File: " + file.getName() + " ...");
+                BYTES_READ.add(file.length());
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+                pendingTitle = null;
+            }
+
+            Wiki_Page wikiPage = readPage();
+            if (wikiPage != null)
+                return wikiPage;
+
+            reader.close();
+            reader = null;
+        }
+    }
+
+    /*
+     *  Read lines up to the next title line (or the end of the current file) and return the
+     *  page that they make up. Returns null when the current file has no more pages.
+     */
+    private Wiki_Page readPage() throws IOException
+    {
+        Wiki_Page wikiPage = null;
+        StringBuilder content = new StringBuilder();
+
+        if (pendingTitle != null)
+        {
+            wikiPage = new Wiki_Page();
+            wikiPage.Title = pendingTitle;
+            pendingTitle = null;
+        }
+
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            Matcher m = Watson.pattern.matcher(line);
+            if (m.find())
+            {
+                if (wikiPage != null)
+                {
+                    pendingTitle = line;
+                    break;
+                }
+                wikiPage = new Wiki_Page();
+                wikiPage.Title = line;
+            }
+            else if (wikiPage == null)
+            {
+                // Anything before the first title of a file does not belong to a page.
+                continue;
+            }
+            else if (line.contains("CATEGORIES"))
+            {
+                wikiPage.Category = line;
+            }
+            else if (!line.isEmpty())
+            {
+                content.append(line);
+            }
+        }
+
+        if (wikiPage != null)
+            wikiPage.Content = content.toString();
+
+        return wikiPage;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (reader != null)
+        {
+            reader.close();
+            reader = null;
+        }
+        fileIndex = wikiFiles.length;
+    }
+}
@@ -0,0 +1,302 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.util.*;
+// Lucene classes
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+
+/*
+ *  The second stage of a search: rescores the top candidates of the content query with
+ *
+ *      category   the share of the words of the clue's category among the page categories,
+ *                 from the category_terms doc values
+ *      title      the share of the title words that occur in the clue, from the title doc
+ *                 values (Jeopardy answers rarely appear in their own clue, so its default
+ *                 weight is negative)
+ *      proximity  1/d for the smallest distance d between two different clue terms in the
+ *                 content, from the positions in the postings
+ *
+ *  added with their weights to the first stage score divided by the best one. Nothing is
+ *  read from stored fields.
+ *
+ *  Reranking is cut short when the query has used up its latency budget: the features of a
+ *  stage are only used if the stage finished for every candidate within the budget, so all
+ *  candidates are always scored alike. If the doc values stage does not finish, the first
+ *  stage ranking is returned as it is. Results cut short are marked truncated, so that they
+ *  are not cached.
+ */
+final class Reranker
+{
+    static final String CATEGORY_TERMS = "category_terms";
+
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+        "the", "and", "for", "from", "with", "that", "this", "its", "are", "was", "categories", "null"));
+    // Positions read per clue term and candidate, which bounds the cost of the proximity stage
+    private static final int MAX_POSITIONS = 64;
+
+    private static final Metrics.Timer RERANK_TIME = Metrics.timer("search.rerank");
+    private static final Metrics.Counter TRUNCATED = Metrics.counter("rerank.truncated");
+
+    private final int candidates;
+    private final long budgetNanos;
+    private final float categoryWeight;
+    private final float titleWeight;
+    private final float proximityWeight;
+
+    Reranker (int candidates, long budgetNanos, float categoryWeight, float titleWeight, float proximityWeight)
+    {
+        this.candidates = candidates;
+        this.budgetNanos = budgetNanos;
+        this.categoryWeight = categoryWeight;
+        this.titleWeight = titleWeight;
+        this.proximityWeight = proximityWeight;
+    }
+
+    /*
+     *  The number of first stage hits to rerank for the top hitsPerPage.
+     */
+    int candidates (int hitsPerPage)
+    {
+        return Math.max(candidates, hitsPerPage);
+    }
+
+    /*
+     *  The words of a category line, title or clue that the features compare: lower case
+     *  words of three or more letters without stop words, and without a plural "s". Both
+     *  sides of a comparison go through it, so "Paris" in a title still matches "paris" in
+     *  the clue.
+     */
+    static Set<String> terms (String text)
+    {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null)
+            return terms;
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}]+"))
+        {
+            if (word.length() < 3 || STOP_WORDS.contains(word))
+                continue;
+            if (word.length() > 4 && word.endsWith("s") && !word.endsWith("ss"))
+                word = word.substring(0, word.length() - 1);
+            terms.add(word);
+        }
+        return terms;
+    }
+
+    /*
+     *  Rerank the first stage hits of the query for a clue of the category (may be null) and
+     *  return the top hitsPerPage. startNanos is when the query started, for the budget.
+     */
+    @SuppressWarnings("try")
+    QueryResult rerank (IndexSearcher searcher, Query query, TopDocs firstStage, String category, int hitsPerPage, long startNanos) throws IOException
+    {
+        ScoreDoc[] hits = firstStage.scoreDocs;
+        if (hits.length == 0)
+            return QueryResult.of(searcher, firstStage);
+
+        try (Metrics.Stage stage = Metrics.stage(RERANK_TIME))
+        {
+            Set<Term> termSet = new HashSet<>();
+            searcher.createWeight(searcher.rewrite(query), false, 1f).extractTerms(termSet);
+            List<Term> clueTerms = new ArrayList<>();
+            Set<String> clueWords = new HashSet<>();
+            for (Term term : termSet)
+            {
+                if ("content".equals(term.field()))
+                {
+                    clueTerms.add(term);
+                    clueWords.addAll(terms(term.text()));
+                }
+            }
+
+            float maxScore = 0f;
+            for (ScoreDoc hit : hits)
+                maxScore = Math.max(maxScore, hit.score);
+            float[] scores = new float[hits.length];
+            for (int i = 0; i < hits.length; i++)
+                scores[i] = (maxScore > 0f) ? hits[i].score / maxScore : 0f;
+
+            // Doc values and postings only move forward, so visit the candidates in doc id order
+            Integer[] byDoc = new Integer[hits.length];
+            for (int i = 0; i < hits.length; i++)
+                byDoc[i] = i;
+            Arrays.sort(byDoc, (a, b) -> Integer.compare(hits[a].doc, hits[b].doc));
+
+            float[] docValueScores = docValueFeatures(searcher, hits, byDoc, terms(category), clueWords, startNanos);
+            if (docValueScores == null)
+            {
+                TRUNCATED.increment();
+                return QueryResult.of(searcher, top(hits, scores, hitsPerPage)).truncated();
+            }
+            for (int i = 0; i < hits.length; i++)
+                scores[i] += docValueScores[i];
+
+            if (proximityWeight != 0f && clueTerms.size() > 1)
+            {
+                float[] proximity = proximity(searcher, hits, byDoc, clueTerms, startNanos);
+                if (proximity == null)
+                {
+                    TRUNCATED.increment();
+                    return QueryResult.of(searcher, top(hits, scores, hitsPerPage)).truncated();
+                }
+                for (int i = 0; i < hits.length; i++)
+                    scores[i] += proximityWeight * proximity[i];
+            }
+            return QueryResult.of(searcher, top(hits, scores, hitsPerPage));
+        }
+    }
+
+    private boolean overBudget (long startNanos)
+    {
+        return budgetNanos > 0 && System.nanoTime() - startNanos > budgetNanos;
+    }
+
+    /*
+     *  The weighted category and title features of every candidate, or null if the budget
+     *  ran out before they were all read.
+     */
+    private float[] docValueFeatures (IndexSearcher searcher, ScoreDoc[] hits, Integer[] byDoc, Set<String> categoryTerms,
+                                      Set<String> clueWords, long startNanos) throws IOException
+    {
+        float[] features = new float[hits.length];
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = null;
+        SortedDocValues titles = null;
+        SortedSetDocValues categories = null;
+        // Ords of the clue's category terms in the current segment
+        Set<Long> categoryOrds = new HashSet<>();
+
+        for (int i : byDoc)
+        {
+            if (overBudget(startNanos))
+                return null;
+
+            int doc = hits[i].doc;
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc())
+            {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                titles = leaf.reader().getSortedDocValues("title");
+                categories = leaf.reader().getSortedSetDocValues(CATEGORY_TERMS);
+                categoryOrds.clear();
+                for (String term : (categories == null) ? Collections.<String>emptySet() : categoryTerms)
+                {
+                    long ord = categories.lookupTerm(new BytesRef(term));
+                    if (ord >= 0)
+                        categoryOrds.add(ord);
+                }
+            }
+            int leafDoc = doc - leaf.docBase;
+
+            if (!categoryOrds.isEmpty() && categories.advanceExact(leafDoc))
+            {
+                int matches = 0;
+                for (long ord = categories.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = categories.nextOrd())
+                {
+                    if (categoryOrds.contains(ord))
+                        matches++;
+                }
+                features[i] += categoryWeight * matches / categoryTerms.size();
+            }
+
+            if (titleWeight != 0f && titles != null && titles.advanceExact(leafDoc))
+            {
+                Set<String> titleTerms = terms(titles.binaryValue().utf8ToString());
+                int matches = 0;
+                for (String term : titleTerms)
+                {
+                    if (clueWords.contains(term))
+                        matches++;
+                }
+                if (!titleTerms.isEmpty())
+                    features[i] += titleWeight * matches / titleTerms.size();
+            }
+        }
+        return features;
+    }
+
+    /*
+     *  The proximity feature of every candidate, or null if the budget ran out before it
+     *  was computed for all of them.
+     */
+    private float[] proximity (IndexSearcher searcher, ScoreDoc[] hits, Integer[] byDoc, List<Term> clueTerms, long startNanos) throws IOException
+    {
+        float[] proximity = new float[hits.length];
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = null;
+        PostingsEnum[] postings = new PostingsEnum[clueTerms.size()];
+        // (position << 16 | term) of the current candidate, sorted by position
+        long[] positions = new long[clueTerms.size() * MAX_POSITIONS];
+
+        for (int i : byDoc)
+        {
+            if (overBudget(startNanos))
+                return null;
+
+            int doc = hits[i].doc;
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc())
+            {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                Terms terms = leaf.reader().terms("content");
+                TermsEnum termsEnum = (terms == null || !terms.hasPositions()) ? null : terms.iterator();
+                for (int t = 0; t < postings.length; t++)
+                {
+                    postings[t] = (termsEnum != null && termsEnum.seekExact(clueTerms.get(t).bytes()))
+                        ? termsEnum.postings(null, PostingsEnum.POSITIONS) : null;
+                }
+            }
+            int leafDoc = doc - leaf.docBase;
+
+            int numPositions = 0;
+            for (int t = 0; t < postings.length; t++)
+            {
+                PostingsEnum termPostings = postings[t];
+                if (termPostings == null || termPostings.docID() > leafDoc)
+                    continue;
+                if (termPostings.docID() < leafDoc && termPostings.advance(leafDoc) == DocIdSetIterator.NO_MORE_DOCS)
+                    continue;
+                if (termPostings.docID() != leafDoc)
+                    continue;
+                for (int p = 0; p < Math.min(termPostings.freq(), MAX_POSITIONS); p++)
+                    positions[numPositions++] = ((long) termPostings.nextPosition() << 16) | t;
+            }
+            Arrays.sort(positions, 0, numPositions);
+
+            long closest = Long.MAX_VALUE;
+            for (int p = 1; p < numPositions; p++)
+            {
+                if ((positions[p] & 0xFFFF) != (positions[p - 1] & 0xFFFF))
+                    closest = Math.min(closest, (positions[p] >>> 16) - (positions[p - 1] >>> 16));
+            }
+            proximity[i] = (closest == Long.MAX_VALUE) ? 0f : 1f / Math.max(1L, closest);
+        }
+        return proximity;
+    }
+
+    /*
+     *  The hitsPerPage best candidates by their new score; equal scores keep the first stage order.
+     */
+    private static TopDocs top (ScoreDoc[] hits, float[] scores, int hitsPerPage)
+    {
+        Integer[] order = new Integer[hits.length];
+        for (int i = 0; i < hits.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> (scores[a] != scores[b]) ? Float.compare(scores[b], scores[a]) : Integer.compare(a, b));
+
+        ScoreDoc[] top = new ScoreDoc[Math.min(hitsPerPage, hits.length)];
+        for (int i = 0; i < top.length; i++)
+            top[i] = new ScoreDoc(hits[order[i]].doc, scores[order[i]]);
+        return new TopDocs(top.length, top, (top.length == 0) ? Float.NaN : top[0].score);
+    }
+}
@@ -0,0 +1,512 @@
+package edu.arizona.cs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+// Lucene classes
+import org.apache.lucene.util.BytesRef;
+
+/*
+ *  A content-addressed cache of annotated sentences: the SHA-1 of a sentence -> the entry
+ *  PageLemmatizer encoded for it, so that sentences repeated within and across wiki dumps
+ *  (boilerplate, templates, navigation text) only go through CoreNLP once.
+ *
+ *  Recently used entries are kept in memory, least recently used first evicted once they
+ *  take more than about maxBytes. Every entry is also appended to a log on disk, which is
+ *  what makes the cache last across runs:
+ *
+ *      record   int payload length, int CRC32 of the payload, payload
+ *      payload  20 byte SHA-1, vint CPU microseconds annotating the sentence took, entry
+ *
+ *  Only the first 8 bytes of every hash and the offset of its record are kept in memory
+ *  for the log; the full hash in the record is compared when it is read. As in LemmaJournal,
+ *  a torn record at the end of the log is cut off when it is opened. The log is locked by
+ *  the JVM that opened it; other processes (e.g. lemma workers) get a cache in memory only.
+ *
+ *  All methods are thread-safe. Lookups in memory take no lock: the entries are in a
+ *  ConcurrentHashMap, and the least recently used order is approximated with the CLOCK
+ *  algorithm, a used flag per entry that eviction clears once before it evicts the entry.
+ *  Lookups on disk share a read lock, which only appending to the log excludes.
+ */
+final class SentenceCache implements Closeable
+{
+    static final int HASH_SIZE = 20;
+
+    // Rough per-entry cost of the map entry, key and value on a 64 bit JVM
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private static boolean sharedOpened = false;
+    private static SentenceCache shared;
+
+    private static final class Entry
+    {
+        final byte[] bytes;
+        final int cpuMicros;
+        // Set by every lookup, cleared by eviction
+        volatile boolean used;
+
+        Entry (byte[] bytes, int cpuMicros)
+        {
+            this.bytes = bytes;
+            this.cpuMicros = cpuMicros;
+        }
+    }
+
+    private final Path path;
+    private final long maxBytes;
+    private final ConcurrentHashMap<BytesRef, Entry> entries = new ConcurrentHashMap<>();
+    // The keys of the entries in the order they were cached in, for eviction; guarded by itself
+    private final Queue<BytesRef> clock = new ArrayDeque<>();
+    private final AtomicLong bytes = new AtomicLong();
+    // Guards the log: the offsets, the channel and the position
+    private final ReadWriteLock logLock = new ReentrantReadWriteLock();
+    private final OffsetTable offsets = new OffsetTable();
+    private FileChannel channel;
+    private FileLock lock;
+    private long position;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder cpuSavedMicros = new LongAdder();
+    private final LongAdder cpuSpentMicros = new LongAdder();
+
+    /*
+     *  A cache in memory only if path is null.
+     */
+    SentenceCache (Path path, long maxBytes) throws IOException
+    {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        if (path == null)
+            return;
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            lock = channel.tryLock();
+        }
+        catch (OverlappingFileLockException e)
+        {
+            // Already open in this JVM
+            lock = null;
+        }
+        if (lock == null)
+        {
+            System.out.printf("Sentence cache %s is already in use, sentences are only cached in memory.\n", path);
+            channel.close();
+            channel = null;
+            return;
+        }
+        load();
+    }
+
+    /*
+     *  The cache at SENTENCE_CACHE_FILE, opened once per JVM, or null if none is configured.
+     */
+    static synchronized SentenceCache shared()
+    {
+        if (!sharedOpened)
+        {
+            sharedOpened = true;
+            if (Watson.SENTENCE_CACHE_FILE != null)
+            {
+                Path path = Paths.get(Watson.SENTENCE_CACHE_FILE);
+                try
+                {
+                    shared = new SentenceCache(path, Watson.SENTENCE_CACHE_MB * 1024L * 1024L);
+                    System.out.printf("Sentence cache %s: %d sentences on disk.\n", path, shared.diskSize());
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException("Cannot open the sentence cache " + path, e);
+                }
+            }
+        }
+        return shared;
+    }
+
+    /*
+     *  Print the summary of the shared cache, if it was used, and close it.
+     */
+    static synchronized void closeShared() throws IOException
+    {
+        if (shared != null)
+        {
+            System.out.println("Sentence cache: " + shared.summary());
+            shared.close();
+            shared = null;
+        }
+    }
+
+    /*
+     *  Rebuild the offsets from the records on disk and cut off anything after the last
+     *  complete record.
+     */
+    private void load() throws IOException
+    {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(8 + HASH_SIZE);
+        while (offset + header.capacity() <= size)
+        {
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < HASH_SIZE || offset + 8 + length > size)
+                break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, offset + 8);
+            if (crc(payload.array()) != crc)
+                break;
+
+            offsets.put(header.getLong(), offset);
+            offset += 8 + length;
+        }
+
+        if (offset < size)
+        {
+            System.out.printf("Discarding %d bytes of an incomplete record at the end of %s.\n", size - offset, path);
+            channel.truncate(offset);
+        }
+        position = offset;
+    }
+
+    /*
+     *  The SHA-1 of the sentence, prefixed by a signature of everything else its entry
+     *  depends on (annotators, filters), so that entries of another configuration never match.
+     */
+    static byte[] hash (String signature, String sentence)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(signature.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(sentence.getBytes(StandardCharsets.UTF_8));
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /*
+     *  The entry of the hash, from memory or from the log, or null.
+     */
+    byte[] get (byte[] hash) throws IOException
+    {
+        BytesRef key = new BytesRef(hash);
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            entry = readLog(hash);
+            if (entry != null)
+            {
+                diskHits.increment();
+                remember(key, entry);
+            }
+        }
+
+        if (entry == null)
+        {
+            misses.increment();
+            return null;
+        }
+        entry.used = true;
+        hits.increment();
+        cpuSavedMicros.add(entry.cpuMicros);
+        return entry.bytes;
+    }
+
+    /*
+     *  Add the entry of a sentence whose annotation took cpuNanos, and append it to the log.
+     */
+    void put (byte[] hash, byte[] entry, long cpuNanos) throws IOException
+    {
+        int cpuMicros = (int) Math.min(Integer.MAX_VALUE, cpuNanos / 1000);
+        cpuSpentMicros.add(cpuMicros);
+        if (!remember(new BytesRef(hash), new Entry(entry, cpuMicros)))
+            return;
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(HASH_SIZE + 5 + entry.length);
+        payload.write(hash, 0, HASH_SIZE);
+        LemmaCache.writeVInt(payload, cpuMicros);
+        payload.write(entry, 0, entry.length);
+
+        byte[] payloadBytes = payload.toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadBytes.length);
+        record.putInt(payloadBytes.length);
+        record.putInt(crc(payloadBytes));
+        record.put(payloadBytes);
+        record.flip();
+
+        long hashPrefix = ByteBuffer.wrap(hash).getLong();
+        logLock.writeLock().lock();
+        try
+        {
+            if (channel == null || offsets.get(hashPrefix) >= 0)
+                return;
+            while (record.hasRemaining())
+                channel.write(record, position + record.position());
+            offsets.put(hashPrefix, position);
+            position += record.capacity();
+        }
+        finally
+        {
+            logLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     *  Keep the entry in memory, unless there already is one for the key, and evict entries
+     *  until they fit in maxBytes again. Returns whether the entry was added.
+     */
+    private boolean remember (BytesRef key, Entry entry)
+    {
+        if (entries.putIfAbsent(key, entry) != null)
+            return false;
+        bytes.addAndGet(cost(entry));
+
+        synchronized (clock)
+        {
+            clock.add(key);
+            while (bytes.get() > maxBytes && clock.size() > 1)
+            {
+                BytesRef eldest = clock.poll();
+                Entry evicted = entries.get(eldest);
+                if (evicted.used)
+                {
+                    // Used since it last came around: give it another round
+                    evicted.used = false;
+                    clock.add(eldest);
+                }
+                else
+                {
+                    entries.remove(eldest);
+                    bytes.addAndGet(-cost(evicted));
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long cost (Entry entry)
+    {
+        return ENTRY_OVERHEAD + HASH_SIZE + entry.bytes.length;
+    }
+
+    /*
+     *  The entry of the hash from the log, or null if it is not there.
+     */
+    private Entry readLog (byte[] hash) throws IOException
+    {
+        logLock.readLock().lock();
+        try
+        {
+            if (channel == null)
+                return null;
+            long offset = offsets.get(ByteBuffer.wrap(hash).getLong());
+            return (offset < 0) ? null : read(hash, offset);
+        }
+        finally
+        {
+            logLock.readLock().unlock();
+        }
+    }
+
+    /*
+     *  The entry of the record at the offset, or null if the record is of another hash with
+     *  the same first 8 bytes.
+     */
+    private Entry read (byte[] hash, long offset) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        header.flip();
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+        readFully(payload, offset + 8);
+        payload.flip();
+
+        byte[] recordHash = new byte[HASH_SIZE];
+        payload.get(recordHash);
+        if (!Arrays.equals(recordHash, hash))
+            return null;
+        int cpuMicros = LemmaCache.readVInt(payload);
+        byte[] entry = new byte[payload.remaining()];
+        payload.get(entry);
+        return new Entry(entry, cpuMicros);
+    }
+
+    private void readFully (ByteBuffer buffer, long offset) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of " + path);
+        }
+    }
+
+    private static int crc (byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    int diskSize()
+    {
+        logLock.readLock().lock();
+        try
+        {
+            return offsets.size();
+        }
+        finally
+        {
+            logLock.readLock().unlock();
+        }
+    }
+
+    long hits()
+    {
+        return hits.sum();
+    }
+
+    long diskHits()
+    {
+        return diskHits.sum();
+    }
+
+    long misses()
+    {
+        return misses.sum();
+    }
+
+    long cpuSavedNanos()
+    {
+        return cpuSavedMicros.sum() * 1000;
+    }
+
+    String summary()
+    {
+        long hits = hits(), misses = misses();
+        long lookups = hits + misses;
+        return String.format("%d hits (%d from disk), %d misses (%.1f%% hit rate), %.2f CPU Secs saved, %.2f CPU Secs annotating misses, %d sentences (%d KB) in memory, %d on disk",
+            hits, diskHits(), misses, (lookups == 0) ? 0.0 : 100.0 * hits / lookups, cpuSavedMicros.sum() / 1e6, cpuSpentMicros.sum() / 1e6,
+            entries.size(), bytes.get() / 1024, diskSize());
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        logLock.writeLock().lock();
+        try
+        {
+            if (channel != null)
+            {
+                channel.force(false);
+                lock.release();
+                channel.close();
+                channel = null;
+            }
+        }
+        finally
+        {
+            logLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     *  Open addressing hash table from the first 8 bytes of a hash to the offset of its
+     *  record, 16 bytes per slot instead of a boxed map entry per sentence.
+     */
+    private static final class OffsetTable
+    {
+        private long[] keys = new long[1024];
+        private long[] values = new long[1024];
+        // Key 0 marks an empty slot, so it is stored apart
+        private long zeroValue = -1;
+        private int size;
+
+        long get (long key)
+        {
+            if (key == 0)
+                return zeroValue;
+            for (int slot = slot(key, keys.length); keys[slot] != 0; slot = (slot + 1) & (keys.length - 1))
+            {
+                if (keys[slot] == key)
+                    return values[slot];
+            }
+            return -1;
+        }
+
+        void put (long key, long value)
+        {
+            if (key == 0)
+            {
+                if (zeroValue < 0)
+                    size++;
+                zeroValue = value;
+                return;
+            }
+            if (2 * (size + 1) > keys.length)
+                grow();
+            int slot = slot(key, keys.length);
+            while (keys[slot] != 0 && keys[slot] != key)
+                slot = (slot + 1) & (keys.length - 1);
+            if (keys[slot] == 0)
+                size++;
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        private void grow()
+        {
+            long[] oldKeys = keys, oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldKeys[i] == 0)
+                    continue;
+                int slot = slot(oldKeys[i], keys.length);
+                while (keys[slot] != 0)
+                    slot = (slot + 1) & (keys.length - 1);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        private static int slot (long key, int capacity)
+        {
+            // The keys are hash bytes already, so the low bits are well distributed
+            return (int) key & (capacity - 1);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package edu.arizona.cs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+// Lucene classes
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/*
+ *  An index split into shards by the hash of the page title. With N > 1 shards, shard i is
+ *  an ordinary index in <index>/shard-i; a single shard is the index directory itself, as
+ *  it always was. As a page always lands in the same shard, every shard can be rebuilt on
+ *  its own from the full corpus.
+ *
+ *  Every shard has its own IndexWriter, so the shards flush, merge and commit in parallel.
+ *  They are searched together through a MultiReader: an IndexSearcher over it takes its term
+ *  statistics from all shards, so scores are the same as those of one unsharded index, and
+ *  with an executor it searches the segments of all shards concurrently and merges their
+ *  top hits.
+ */
+final class ShardedIndex implements Closeable
+{
+    static final String SHARD_PREFIX = "shard-";
+
+    private static final Metrics.Timer COMMIT_TIME = Metrics.timer("index.commit");
+
+    private final Path indexPath;
+    private final int numShards;
+    // The writers of the shards being built, null for the others
+    private final IndexWriter[] writers;
+
+    private ShardedIndex (Path indexPath, int numShards, IndexWriter[] writers)
+    {
+        this.indexPath = indexPath;
+        this.numShards = numShards;
+        this.writers = writers;
+    }
+
+    /*
+     *  Open a writer on each of the shards and delete their documents, to build the whole
+     *  index anew. Fails if the directory holds an index with another number of shards.
+     */
+    static ShardedIndex create (Path indexPath, int numShards, Supplier<Analyzer> analyzers) throws IOException
+    {
+        int existing = numShards(indexPath);
+        if (existing != 0 && existing != numShards)
+            throw new IOException(indexPath + " holds an index of " + existing + " shard(s), remove it before building one of " + numShards);
+
+        IndexWriter[] writers = new IndexWriter[numShards];
+        try
+        {
+            for (int shard = 0; shard < numShards; shard++)
+            {
+                writers[shard] = Watson.createWriter(analyzers.get(), shardPath(indexPath, shard, numShards));
+                writers[shard].deleteAll();
+            }
+        }
+        catch (IOException e)
+        {
+            closeAll(writers);
+            throw e;
+        }
+        return new ShardedIndex(indexPath, numShards, writers);
+    }
+
+    /*
+     *  Open a writer on one shard of an existing sharded index and delete its documents, to
+     *  rebuild it from a source of all pages. The other shards are left untouched.
+     */
+    static ShardedIndex rebuild (Path indexPath, int shard, Supplier<Analyzer> analyzers) throws IOException
+    {
+        int numShards = numShards(indexPath);
+        if (numShards < 2)
+            throw new IOException(indexPath + " is not a sharded index");
+        if (shard < 0 || shard >= numShards)
+            throw new IOException("No shard " + shard + " in " + indexPath + ", which has " + numShards + " shards");
+
+        IndexWriter[] writers = new IndexWriter[numShards];
+        writers[shard] = Watson.createWriter(analyzers.get(), shardPath(indexPath, shard, numShards));
+        writers[shard].deleteAll();
+        return new ShardedIndex(indexPath, numShards, writers);
+    }
+
+    /*
+     *  The shard a page belongs to. String.hashCode is fixed by the language specification,
+     *  so the assignment is the same on every JVM and in every run.
+     */
+    static int shardOf (String title, int numShards)
+    {
+        return Math.floorMod(Watson.cleanTitle(title).hashCode(), numShards);
+    }
+
+    static Path shardPath (Path indexPath, int shard, int numShards)
+    {
+        return (numShards == 1) ? indexPath : indexPath.resolve(SHARD_PREFIX + shard);
+    }
+
+    /*
+     *  The number of shards of the index in the directory: the number of shard-i directories,
+     *  1 for an unsharded index and 0 if there is no index at all.
+     */
+    static int numShards (Path indexPath) throws IOException
+    {
+        if (!Files.isDirectory(indexPath))
+            return 0;
+        int shards;
+        try (Stream<Path> files = Files.list(indexPath))
+        {
+            shards = (int) files.filter(file -> Files.isDirectory(file) && file.getFileName().toString().startsWith(SHARD_PREFIX)).count();
+        }
+        if (shards > 0)
+            return shards;
+        try (Directory directory = FSDirectory.open(indexPath))
+        {
+            return DirectoryReader.indexExists(directory) ? 1 : 0;
+        }
+    }
+
+    int numShards()
+    {
+        return numShards;
+    }
+
+    /*
+     *  The number of shards this index writes to: all of them, or the one being rebuilt.
+     */
+    int numWriters()
+    {
+        int count = 0;
+        for (IndexWriter writer : writers)
+        {
+            if (writer != null)
+                count++;
+        }
+        return count;
+    }
+
+    /*
+     *  A sink adding each page to the writer of its shard. Pages of shards that are not being
+     *  written are dropped; filter them out of the source beforehand to not lemmatize them.
+     */
+    IndexingPipeline.PageSink sink (boolean rawContent)
+    {
+        return wikiPage ->
+        {
+            IndexWriter writer = writers[shardOf(wikiPage.Title, numShards)];
+            if (writer != null)
+                writer.addDocument(Watson.createDocument(wikiPage, rawContent));
+        };
+    }
+
+    /*
+     *  The pages of the source that belong to the shards being written.
+     */
+    PageSource filter (PageSource source)
+    {
+        if (numWriters() == numShards)
+            return source;
+        return new PageSource()
+        {
+            @Override
+            public Wiki_Page next() throws IOException
+            {
+                Wiki_Page wikiPage;
+                while ((wikiPage = source.next()) != null)
+                {
+                    if (writers[shardOf(wikiPage.Title, numShards)] != null)
+                        return wikiPage;
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                source.close();
+            }
+        };
+    }
+
+    /*
+     *  Commit all writers at once, one thread each, and print the documents of every shard.
+     */
+    @SuppressWarnings("try")
+    void commit() throws IOException
+    {
+        try (Metrics.Stage stage = Metrics.stage(COMMIT_TIME))
+        {
+            forEachWriter(IndexWriter::commit);
+        }
+        for (int shard = 0; shard < numShards; shard++)
+        {
+            if (writers[shard] != null && numShards > 1)
+                System.out.printf("Shard %d: %d pages.\n", shard, writers[shard].getDocStats().numDocs);
+        }
+    }
+
+    /*
+     *  Add the documents of other indexes with the same number of shards, such as the unit
+     *  indexes of the lemmatizer workers, shard by shard. The segments are copied as they are
+     *  with IndexWriter.addIndexes, so nothing is analyzed again.
+     */
+    void addIndexes (List<Path> indexPaths) throws IOException
+    {
+        for (Path path : indexPaths)
+        {
+            if (numShards(path) != numShards)
+                throw new IOException(path + " does not have the " + numShards + " shard(s) of " + indexPath);
+        }
+        forEachShard((shard, writer) ->
+        {
+            Directory[] directories = new Directory[indexPaths.size()];
+            try
+            {
+                for (int i = 0; i < directories.length; i++)
+                    directories[i] = FSDirectory.open(shardPath(indexPaths.get(i), shard, numShards));
+                writer.addIndexes(directories);
+            }
+            finally
+            {
+                for (Directory directory : directories)
+                {
+                    if (directory != null)
+                        directory.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        forEachWriter(IndexWriter::close);
+    }
+
+    private interface WriterAction
+    {
+        void apply (IndexWriter writer) throws IOException;
+    }
+
+    private interface ShardAction
+    {
+        void apply (int shard, IndexWriter writer) throws IOException;
+    }
+
+    private void forEachWriter (WriterAction action) throws IOException
+    {
+        forEachShard((shard, writer) -> action.apply(writer));
+    }
+
+    /*
+     *  Apply the action to the writer of every shard being built, in parallel if there are
+     *  several, with the number of the shard.
+     */
+    private void forEachShard (ShardAction action) throws IOException
+    {
+        if (numWriters() == 1)
+        {
+            for (int shard = 0; shard < writers.length; shard++)
+            {
+                if (writers[shard] != null)
+                    action.apply(shard, writers[shard]);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numWriters());
+        List<Future<?>> futures = new ArrayList<>();
+        try
+        {
+            for (int shard = 0; shard < writers.length; shard++)
+            {
+                int number = shard;
+                IndexWriter writer = writers[shard];
+                if (writer != null)
+                    futures.add(executor.submit(() -> { action.apply(number, writer); return null; }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while committing the shards of " + indexPath);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("A shard writer failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void closeAll (IndexWriter[] writers)
+    {
+        for (IndexWriter writer : writers)
+        {
+            try
+            {
+                if (writer != null)
+                    writer.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     *  Open the index with the given storage: a DirectoryReader for an unsharded index, and
+     *  a ShardReader over one DirectoryReader per shard otherwise.
+     */
+    static IndexReader openReader (Path indexPath, String storage, int warmupTerms) throws IOException
+    {
+        int numShards = numShards(indexPath);
+        if (numShards <= 1)
+            return IndexStorage.openReader(indexPath, storage, warmupTerms);
+
+        DirectoryReader[] shards = new DirectoryReader[numShards];
+        try
+        {
+            for (int shard = 0; shard < numShards; shard++)
+                shards[shard] = IndexStorage.openReader(shardPath(indexPath, shard, numShards), storage, warmupTerms);
+            return new ShardReader(shards);
+        }
+        finally
+        {
+            // The ShardReader holds its own reference to every shard
+            for (DirectoryReader shard : shards)
+            {
+                if (shard != null)
+                    shard.decRef();
+            }
+        }
+    }
+
+    /*
+     *  A MultiReader over the DirectoryReaders of the shards, which it holds a reference to.
+     */
+    static final class ShardReader extends MultiReader
+    {
+        ShardReader (DirectoryReader[] shards) throws IOException
+        {
+            super(shards, false);
+        }
+
+        DirectoryReader[] shards()
+        {
+            return getSequentialSubReaders().toArray(new DirectoryReader[0]);
+        }
+    }
+
+    /*
+     *  The SearcherManager of a sharded index: a refresh reopens the shards that changed and
+     *  puts them together with the unchanged ones in a new ShardReader.
+     */
+    static final class ShardSearcherManager extends ReferenceManager<IndexSearcher>
+    {
+        private final SearcherFactory searcherFactory;
+
+        ShardSearcherManager (ShardReader reader, SearcherFactory searcherFactory) throws IOException
+        {
+            this.searcherFactory = (searcherFactory != null) ? searcherFactory : new SearcherFactory();
+            this.current = SearcherManager.getSearcher(this.searcherFactory, reader, null);
+        }
+
+        @Override
+        protected void decRef (IndexSearcher reference) throws IOException
+        {
+            reference.getIndexReader().decRef();
+        }
+
+        @Override
+        protected IndexSearcher refreshIfNeeded (IndexSearcher referenceToRefresh) throws IOException
+        {
+            ShardReader previous = (ShardReader) referenceToRefresh.getIndexReader();
+            DirectoryReader[] shards = previous.shards();
+            DirectoryReader[] refreshed = new DirectoryReader[shards.length];
+            boolean changed = false;
+            try
+            {
+                for (int shard = 0; shard < shards.length; shard++)
+                {
+                    refreshed[shard] = DirectoryReader.openIfChanged(shards[shard]);
+                    changed |= (refreshed[shard] != null);
+                }
+                if (!changed)
+                    return null;
+
+                DirectoryReader[] readers = new DirectoryReader[shards.length];
+                for (int shard = 0; shard < shards.length; shard++)
+                    readers[shard] = (refreshed[shard] != null) ? refreshed[shard] : shards[shard];
+                return SearcherManager.getSearcher(searcherFactory, new ShardReader(readers), previous);
+            }
+            finally
+            {
+                for (DirectoryReader shard : refreshed)
+                {
+                    if (shard != null)
+                        shard.decRef();
+                }
+            }
+        }
+
+        @Override
+        protected boolean tryIncRef (IndexSearcher reference)
+        {
+            return reference.getIndexReader().tryIncRef();
+        }
+
+        @Override
+        protected int getRefCount (IndexSearcher reference)
+        {
+            return reference.getIndexReader().getRefCount();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package edu.arizona.cs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+// Lucene classes
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.BooleanSimilarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+
+/*
+ *  Answers the question set once for every configuration of a grid of similarities over a
+ *  single IndexReader, so that a tuning run opens and warms the index only once. Every
+ *  configuration is searched by its own task with its own IndexSearcher and QueryParser,
+ *  and the tasks run concurrently on a thread pool.
+ *
+ *  The similarity is only a query time choice here: Classic, Boolean and BM25 all read the
+ *  same length norms, so any of them can score an index built with the default BM25.
+ */
+class SimilaritySweep implements Closeable
+{
+    /*
+     *  A named similarity of the grid.
+     */
+    static final class Configuration
+    {
+        final String name;
+        final Similarity similarity;
+
+        Configuration (String name, Similarity similarity)
+        {
+            this.name = name;
+            this.similarity = similarity;
+        }
+    }
+
+    /*
+     *  The ranks and the latencies of the questions searched with one configuration.
+     */
+    static final class Outcome
+    {
+        final Configuration configuration;
+        final Evaluation evaluation = new Evaluation();
+        final LatencyStats latency = new LatencyStats();
+
+        Outcome (Configuration configuration)
+        {
+            this.configuration = configuration;
+        }
+    }
+
+    private final IndexReader reader;
+    private final ExecutorService executor;
+    private final int hitsPerPage;
+
+    SimilaritySweep (IndexReader reader, int threads, int hitsPerPage)
+    {
+        this.reader = reader;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.hitsPerPage = hitsPerPage;
+    }
+
+    /*
+     *  The configurations named in the comma separated list of similarities ("classic",
+     *  "boolean", "bm25"); "bm25" stands for every combination of the k1 and b values.
+     */
+    static List<Configuration> grid (String similarities, double[] k1Values, double[] bValues)
+    {
+        List<Configuration> grid = new ArrayList<>();
+        for (String name : similarities.split(","))
+        {
+            switch (name.trim())
+            {
+                case "classic":
+                    grid.add(new Configuration("classic", new ClassicSimilarity()));
+                    break;
+                case "boolean":
+                    grid.add(new Configuration("boolean", new BooleanSimilarity()));
+                    break;
+                case "bm25":
+                    for (double k1 : k1Values)
+                    {
+                        for (double b : bValues)
+                            grid.add(new Configuration(String.format(Locale.ROOT, "bm25 k1=%.2f b=%.2f", k1, b), new BM25Similarity((float) k1, (float) b)));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown similarity: " + name);
+            }
+        }
+        return grid;
+    }
+
+    /*
+     *  Parse a comma separated list of numbers such as "0.9,1.2,1.5".
+     */
+    static double[] values (String list)
+    {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Double.parseDouble(parts[i].trim());
+        return values;
+    }
+
+    /*
+     *  Search every question with every configuration and return the outcomes in the order
+     *  of the configurations. The questions are searched once beforehand, untimed, so that
+     *  the first configurations do not pay for loading the index and compiling the code.
+     */
+    List<Outcome> run (List<Configuration> grid, List<Questions> questions) throws IOException, ParseException
+    {
+        search(new Outcome(new Configuration("warm-up", IndexSearcher.getDefaultSimilarity())), questions);
+
+        List<Future<Outcome>> futures = new ArrayList<>(grid.size());
+        for (Configuration configuration : grid)
+            futures.add(executor.submit(() -> search(new Outcome(configuration), questions)));
+
+        List<Outcome> outcomes = new ArrayList<>(grid.size());
+        try
+        {
+            for (Future<Outcome> future : futures)
+                outcomes.add(future.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sweeping");
+        }
+        catch (ExecutionException e)
+        {
+            for (Future<Outcome> future : futures)
+                future.cancel(true);
+            if (e.getCause() instanceof ParseException)
+                throw (ParseException) e.getCause();
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Sweep failed", e.getCause());
+        }
+        return outcomes;
+    }
+
+    private Outcome search (Outcome outcome, List<Questions> questions) throws IOException, ParseException
+    {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(outcome.configuration.similarity);
+        QueryParser parser = new QueryParser("content", Watson.createQueryAnalyzer());
+
+        for (Questions question : questions)
+        {
+            long startTime = System.nanoTime();
+            QueryResult result = Watson.search(searcher, parser, question.Clue, question.Category, hitsPerPage);
+            outcome.latency.record(System.nanoTime() - startTime);
+            outcome.evaluation.add(question, result);
+        }
+        return outcome;
+    }
+
+    /*
+     *  One line per configuration, best MRR first.
+     */
+    static String table (List<Outcome> outcomes)
+    {
+        List<Outcome> sorted = new ArrayList<>(outcomes);
+        sorted.sort((a, b) -> Double.compare(b.evaluation.mrr(), a.evaluation.mrr()));
+
+        StringBuilder table = new StringBuilder();
+        table.append(String.format(Locale.ROOT, "%-22s %7s %9s %8s %10s %10s %10s\n",
+            "similarity", "MRR", "accuracy", "found", "mean ms", "p50 ms", "p99 ms"));
+        for (Outcome outcome : sorted)
+        {
+            Evaluation evaluation = outcome.evaluation;
+            LatencyStats latency = outcome.latency;
+            table.append(String.format(Locale.ROOT, "%-22s %7.4f %8.2f%% %7.2f%% %10.3f %10.3f %10.3f\n",
+                outcome.configuration.name, evaluation.mrr(), evaluation.accuracy() * 100, evaluation.foundRate() * 100,
+                latency.meanNanos() / 1e6, latency.percentileNanos(50) / 1e6, latency.percentileNanos(99) / 1e6));
+        }
+        return table.toString();
+    }
+
+    @Override
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+}
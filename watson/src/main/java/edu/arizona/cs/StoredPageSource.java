@@ -0,0 +1,53 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+// Lucene classes
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+/*
+ *  Reads the wiki pages back from the stored fields of an index built with the old layout,
+ *  where title, categories and the lemmatized content were all stored. Used to rebuild such
+ *  an index in the current layout without lemmatizing the corpus again.
+ */
+class StoredPageSource implements PageSource
+{
+    private final IndexReader reader;
+    private final Bits liveDocs;
+    private int nextDoc;
+
+    StoredPageSource (IndexReader reader)
+    {
+        this.reader = reader;
+        this.liveDocs = MultiFields.getLiveDocs(reader);
+    }
+
+    @Override
+    public Wiki_Page next() throws IOException
+    {
+        while (nextDoc < reader.maxDoc())
+        {
+            int doc = nextDoc++;
+            if (liveDocs != null && !liveDocs.get(doc))
+                continue;
+
+            Document document = reader.document(doc);
+            Wiki_Page wikiPage = new Wiki_Page();
+            wikiPage.Title = document.get("title");
+            wikiPage.Category = document.get("categories");
+            wikiPage.Content = document.get("content");
+            if (wikiPage.Title == null || wikiPage.Content == null)
+                throw new IOException("Document " + doc + " has no stored title or content, the index cannot be rebuilt from it;"
+                    + " it is either in the current layout already or must be rebuilt from the wiki pages");
+            return wikiPage;
+        }
+        return null;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
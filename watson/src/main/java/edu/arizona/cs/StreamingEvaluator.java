@@ -0,0 +1,247 @@
+package edu.arizona.cs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+// Lucene classes
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+
+/*
+ *  Answers the questions of a questions file of any size while it is being read:
+ *
+ *      reader (calling thread) -> clue lemmatizer workers -> search workers -> Tally
+ *
+ *  The stages are connected by bounded queues, like those of the IndexingPipeline, so only
+ *  a few queues' worth of questions are alive at a time and the first answers are checked
+ *  while the file is still being parsed. The ranks of the answers are not kept per question
+ *  but summed up in a Tally, whose size depends only on the number of hits per question.
+ *  Every snapshotInterval questions a snapshot of the metrics so far is printed.
+ *
+ *  Questions are answered in no particular order; the metrics do not depend on it.
+ */
+class StreamingEvaluator
+{
+    // Handed down the queues once the file is drained to tell the workers to stop, see BoundedStages.
+    private static final Questions END_OF_QUESTIONS = new Questions();
+
+    private static final Metrics.Timer CLUE_TIME = Metrics.timer("lemmatize.clue");
+
+    private final IndexSearcher searcher;
+    private final QueryResultCache resultCache;
+    private final int lemmaThreads;
+    private final int searchThreads;
+    private final int queueCapacity;
+    private final int hitsPerPage;
+    private final long snapshotInterval;
+
+    private final ThreadLocal<QueryParser> parsers = ThreadLocal.withInitial(
+        () -> new QueryParser("content", Watson.createQueryAnalyzer()));
+
+    /*
+     *  The online metrics of the answers checked so far. Thread-safe.
+     *
+     *      MRR        the mean of 1/rank over all questions (0 for an answer that was not found)
+     *      accuracy   the share of questions whose first hit is the answer
+     *      recall@k   the share of questions whose answer is among their first k hits
+     */
+    static final class Tally
+    {
+        // Questions per rank of their answer, 0 for not found
+        private final long[] ranks;
+        private long size = 0;
+        private double sumOfReciprocalRank = 0.0;
+
+        Tally (int hitsPerPage)
+        {
+            this.ranks = new long[hitsPerPage + 1];
+        }
+
+        synchronized long add (int rank)
+        {
+            ranks[Math.min(rank, ranks.length - 1)]++;
+            if (rank > 0)
+                sumOfReciprocalRank += 1.0 / rank;
+            return ++size;
+        }
+
+        synchronized long size()
+        {
+            return size;
+        }
+
+        synchronized double mrr()
+        {
+            return (size == 0) ? 0.0 : sumOfReciprocalRank / size;
+        }
+
+        double accuracy()
+        {
+            return recall(1);
+        }
+
+        synchronized double recall (int k)
+        {
+            long found = 0;
+            for (int rank = 1; rank <= Math.min(k, ranks.length - 1); rank++)
+                found += ranks[rank];
+            return (size == 0) ? 0.0 : (double) found / size;
+        }
+
+        /*
+         *  MRR, accuracy and recall at 1, 5 and the number of hits, e.g.
+         *  "MRR 0.42, P@1 35.00%, R@5 52.00%, R@10 60.00%".
+         */
+        synchronized String summary()
+        {
+            StringBuilder summary = new StringBuilder();
+            summary.append(String.format(Locale.ROOT, "MRR %.4f, P@1 %.2f%%", mrr(), accuracy() * 100));
+            int hits = ranks.length - 1;
+            if (hits > 5)
+                summary.append(String.format(Locale.ROOT, ", R@5 %.2f%%", recall(5) * 100));
+            if (hits > 1)
+                summary.append(String.format(Locale.ROOT, ", R@%d %.2f%%", hits, recall(hits) * 100));
+            return summary.toString();
+        }
+    }
+
+    StreamingEvaluator (IndexSearcher searcher, QueryResultCache resultCache, int lemmaThreads, int searchThreads,
+                        int queueCapacity, int hitsPerPage, long snapshotInterval)
+    {
+        this.searcher = searcher;
+        this.resultCache = resultCache;
+        this.lemmaThreads = Math.max(1, lemmaThreads);
+        this.searchThreads = Math.max(1, searchThreads);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.hitsPerPage = hitsPerPage;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /*
+     *  Answer every question of the file and return the tally of their ranks. With lemmatize,
+     *  the clues are lemmatized by a ClueLemmatizer per worker; otherwise they are searched
+     *  as they are. The reader is closed.
+     */
+    Tally run (BufferedReader questionsFile, boolean lemmatize) throws IOException, ParseException
+    {
+        BlockingQueue<Questions> rawQuestions = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Questions> lemmatizedQuestions = new ArrayBlockingQueue<>(queueCapacity);
+        int numLemmatizers = lemmatize ? lemmaThreads : 0;
+
+        Tally tally = new Tally(hitsPerPage);
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(numLemmatizers + searchThreads);
+        List<Future<?>> workers = new CopyOnWriteArrayList<>();
+        AtomicInteger lemmatizersLeft = new AtomicInteger(numLemmatizers);
+
+        try
+        {
+            for (int i = 0; i < numLemmatizers; i++)
+                workers.add(executor.submit(() -> lemmatizeStage(rawQuestions, lemmatizedQuestions, lemmatizersLeft, workers)));
+            for (int i = 0; i < searchThreads; i++)
+                workers.add(executor.submit(() -> searchStage(lemmatizedQuestions, tally, start)));
+
+            BlockingQueue<Questions> firstQueue = lemmatize ? rawQuestions : lemmatizedQuestions;
+            Questions question;
+            while ((question = next(questionsFile)) != null)
+                BoundedStages.put(firstQueue, question, workers);
+            BoundedStages.end(firstQueue, END_OF_QUESTIONS, lemmatize ? numLemmatizers : searchThreads, workers);
+
+            for (Future<?> worker : workers)
+                worker.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while answering questions");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof ParseException)
+                throw (ParseException) e.getCause();
+            throw new IOException("A question pipeline stage failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+            questionsFile.close();
+        }
+
+        return tally;
+    }
+
+    /*
+     *  Read the next question (category, clue and answer lines, then a separator line) or
+     *  return null at the end of the file. Blank lines before a question are skipped, and a
+     *  question cut off by the end of the file is dropped.
+     */
+    static Questions next (BufferedReader questionsFile) throws IOException
+    {
+        String category;
+        do
+        {
+            category = questionsFile.readLine();
+            if (category == null)
+                return null;
+        }
+        while (category.trim().isEmpty());
+
+        Questions question = new Questions();
+        question.Category = category;
+        question.Clue = questionsFile.readLine();
+        question.Answer = questionsFile.readLine();
+        if (question.Clue == null || question.Answer == null)
+            return null;
+        questionsFile.readLine();
+        return question;
+    }
+
+    @SuppressWarnings("try")
+    private Void lemmatizeStage (BlockingQueue<Questions> in, BlockingQueue<Questions> out, AtomicInteger lemmatizersLeft, List<Future<?>> workers)
+        throws InterruptedException, ExecutionException
+    {
+        // Created on the first clue, so that an empty file never loads the models
+        ClueLemmatizer lemmatizer = null;
+        while (true)
+        {
+            Questions question = in.take();
+            if (question == END_OF_QUESTIONS)
+                break;
+
+            if (lemmatizer == null)
+                lemmatizer = new ClueLemmatizer();
+            try (Metrics.Stage stage = Metrics.stage(CLUE_TIME))
+            {
+                question.Clue = lemmatizer.lemmatize(question.Clue);
+            }
+            BoundedStages.put(out, question, workers);
+        }
+
+        // The last lemmatizer to finish tells the searchers that nothing more is coming.
+        BoundedStages.finish(lemmatizersLeft, out, END_OF_QUESTIONS, searchThreads, workers);
+        return null;
+    }
+
+    private Void searchStage (BlockingQueue<Questions> in, Tally tally, long start) throws InterruptedException, IOException, ParseException
+    {
+        while (true)
+        {
+            Questions question = in.take();
+            if (question == END_OF_QUESTIONS)
+                break;
+
+            QueryResult result = Watson.search(searcher, parsers.get(), resultCache, question.Clue, question.Category, hitsPerPage);
+            long answered = tally.add(Evaluation.rankOf(question.Answer, result));
+            if (answered == 1)
+                System.out.printf("First question answered after %.1f ms\n", (System.nanoTime() - start) / 1e6);
+            if (snapshotInterval > 0 && answered % snapshotInterval == 0)
+                System.out.printf("Answered %d questions (%.0f/s): %s\n", answered,
+                    answered / ((System.nanoTime() - start) / 1e9), tally.summary());
+        }
+        return null;
+    }
+}
@@ -3,30 +3,45 @@ package edu.arizona.cs;
 // Java classes
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 // Lucene classes
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.search.similarities.BooleanSimilarity;
@@ -60,19 +75,22 @@ class Questions
     String Answer;
 }
 
-class RunningTime
-{
-    long lemmatizing;
-    long retrieving;
-    long indexing;
-    long searching;
-}
-
 public class Watson
 {
     // A regular expression pattern to find the page title
     public static final String TITLE_REGEX = "^\\[\\[(.+)\\]\\]";
     public static final String INDEX_DIR = "./wiki-index-dir"; 
+    // Binary cache of the lemmatized wiki pages (see LemmaCache)
+    public static final String LEMMA_CACHE_FILE = System.getProperty("watson.lemmaCache", "./lemmatized-wiki.cache");
+    // Journal of lemmatized pages keyed by title and content hash, and how many pages are appended between checkpoints
+    public static final String LEMMA_JOURNAL_FILE = System.getProperty("watson.lemmaJournal", "./lemmatized-wiki.journal");
+    public static final int CHECKPOINT_INTERVAL = Integer.getInteger("watson.checkpointInterval", 1000);
+    // Surface form -> lemma dictionary collected while lemmatizing and used to lemmatize clues (unset: disabled)
+    public static final String LEMMA_DICT_FILE = System.getProperty("watson.lemmaDict");
+    // Content-addressed cache of annotated sentences shared by all lemmatizers and runs (see SentenceCache;
+    // unset: disabled), and the memory its most recently used sentences may take
+    public static final String SENTENCE_CACHE_FILE = System.getProperty("watson.sentenceCache");
+    public static final int SENTENCE_CACHE_MB = Integer.getInteger("watson.sentenceCache.memoryMB", 64);
 
     public static final Pattern pattern = Pattern.compile(TITLE_REGEX);
 
@@ -80,84 +98,357 @@ public class Watson
     public static final int CLUE        = 1;
     public static final int ANSWER      = 2;
     public static final int WHITESPACE  = 3;
-    public static final double NUMBER_OF_Q = 100.0;
+    public static final int HITS_PER_PAGE = 10;
+
+    // How the raw wiki files are read: "mapped" (MappedWikiSplitter, the default) or "stream" (RawWikiReader,
+    // line by line), and the number of threads scanning and reading them when they are mapped
+    public static final String RAW_READER = System.getProperty("watson.rawReader", "mapped");
+    public static final int READ_THREADS = Integer.getInteger("watson.read.threads", 2);
+    // Number of worker threads, each with its own CoreNLP pipeline, used to lemmatize the wiki pages
+    public static final int LEMMA_THREADS = Integer.getInteger("watson.lemma.threads", Runtime.getRuntime().availableProcessors());
+    // Number of threads calling IndexWriter.addDocument and the capacity of the queues between pipeline stages
+    public static final int INDEX_THREADS = Integer.getInteger("watson.index.threads", 2);
+    public static final int PIPELINE_QUEUE_CAPACITY = Integer.getInteger("watson.pipeline.queue", 256);
+    // IndexWriter RAM buffer before a segment is flushed, and the merge policy ("tiered", "log" or "none")
+    public static final double INDEX_RAM_BUFFER_MB = Double.parseDouble(System.getProperty("watson.index.ramBufferMB", "256"));
+    public static final String INDEX_MERGE_POLICY = System.getProperty("watson.index.mergePolicy", "tiered");
+    // Shards the index is partitioned into by title hash, each built by its own IndexWriter (see ShardedIndex)
+    public static final int INDEX_SHARDS = Integer.getInteger("watson.index.shards", 1);
+    // Directory implementation the index is opened with (see IndexStorage), and the number of most frequent
+    // terms per field whose postings are read when a searcher is opened (0: no warm-up)
+    public static final String INDEX_STORAGE = System.getProperty("watson.index.storage", "fs");
+    public static final int WARMUP_TERMS = Integer.getInteger("watson.index.warmupTerms", 0);
+    // Questions searched in parallel, and threads each query uses to search the index segments (1: serial)
+    public static final int SEARCH_THREADS = Integer.getInteger("watson.search.threads", Runtime.getRuntime().availableProcessors());
+    public static final int SEGMENT_THREADS = Integer.getInteger("watson.search.segmentThreads", Runtime.getRuntime().availableProcessors());
+    // Results of repeated clues kept by QueryResultCache (0 entries: disabled), and the size of Lucene's LRUQueryCache
+    public static final int RESULT_CACHE_ENTRIES = Integer.getInteger("watson.resultCache.entries", 10000);
+    public static final int RESULT_CACHE_MB = Integer.getInteger("watson.resultCache.maxMB", 64);
+    public static final int QUERY_CACHE_ENTRIES = Integer.getInteger("watson.queryCache.entries", 1000);
+    public static final int QUERY_CACHE_MB = Integer.getInteger("watson.queryCache.maxMB", 32);
+    // Loopback port, request threads and searcher refresh interval of the query server
+    public static final int SERVER_PORT = Integer.getInteger("watson.server.port", 8585);
+    public static final int SERVER_THREADS = Integer.getInteger("watson.server.threads", Runtime.getRuntime().availableProcessors());
+    public static final long SERVER_REFRESH_SECONDS = Long.getLong("watson.server.refreshSeconds", 60);
+    // Let the query server update and delete single pages (see IndexUpdater), how soon changes become searchable,
+    // how often they are committed, and the merge threads of the updating writers
+    public static final boolean SERVER_UPDATES = Boolean.getBoolean("watson.server.updates");
+    public static final long UPDATE_REFRESH_MILLIS = Long.getLong("watson.update.refreshMillis", 1000);
+    public static final long UPDATE_COMMIT_SECONDS = Long.getLong("watson.update.commitSeconds", 60);
+    public static final int UPDATE_MERGE_THREADS = Integer.getInteger("watson.update.mergeThreads", 1);
+    // "corenlp" lemmatizes inside Lucene's analysis chain (LemmaAnalyzer) at index and query time;
+    // "whitespace" indexes content lemmatized beforehand, as the downloadable index was built
+    public static final boolean LEMMA_ANALYSIS = "corenlp".equals(System.getProperty("watson.analysis", "whitespace"));
+    // Similarities compared by the sweep mode, the BM25 k1 and b values they are combined from, and its threads
+    public static final String SWEEP_SIMILARITIES = System.getProperty("watson.sweep.similarities", "classic,boolean,bm25");
+    public static final String SWEEP_K1 = System.getProperty("watson.sweep.k1", "0.6,0.9,1.2,1.5,1.8");
+    public static final String SWEEP_B = System.getProperty("watson.sweep.b", "0.25,0.5,0.75,1.0");
+    public static final int SWEEP_THREADS = Integer.getInteger("watson.sweep.threads", Runtime.getRuntime().availableProcessors());
+    // The coordinate mode: local worker JVMs and their heap, the address workers connect to (0.0.0.0 to let
+    // workers on other hosts in), wiki files per unit, retries of a failed unit, how long a unit may take,
+    // "index" or "cache" as output, and the spool directory of the unit outputs (shared with remote workers)
+    public static final int COORDINATOR_WORKERS = Integer.getInteger("watson.coordinator.workers", 2);
+    public static final String COORDINATOR_WORKER_HEAP = System.getProperty("watson.coordinator.workerHeap");
+    public static final String COORDINATOR_HOST = System.getProperty("watson.coordinator.host", "127.0.0.1");
+    public static final int COORDINATOR_PORT = Integer.getInteger("watson.coordinator.port", 8586);
+    public static final int COORDINATOR_UNIT_FILES = Integer.getInteger("watson.coordinator.unitFiles", 1);
+    public static final int COORDINATOR_RETRIES = Integer.getInteger("watson.coordinator.retries", 2);
+    public static final int COORDINATOR_UNIT_TIMEOUT_SECONDS = Integer.getInteger("watson.coordinator.unitTimeoutSeconds", 3600);
+    public static final String COORDINATOR_OUTPUT = System.getProperty("watson.coordinator.output", "index");
+    public static final String COORDINATOR_SPOOL = System.getProperty("watson.coordinator.spool", "./lemma-spool");
+    // Rerank the top RERANK_CANDIDATES hits of the content query on category, title and proximity features
+    // (see Reranker), within a latency budget per query (0: none), with the weights of the features
+    public static final boolean RERANK = Boolean.getBoolean("watson.rerank");
+    public static final int RERANK_CANDIDATES = Integer.getInteger("watson.rerank.candidates", 50);
+    public static final long RERANK_BUDGET_MICROS = Long.getLong("watson.rerank.budgetMicros", 5000);
+    public static final float RERANK_CATEGORY_WEIGHT = Float.parseFloat(System.getProperty("watson.rerank.categoryWeight", "0.3"));
+    public static final float RERANK_TITLE_WEIGHT = Float.parseFloat(System.getProperty("watson.rerank.titleWeight", "-0.3"));
+    public static final float RERANK_PROXIMITY_WEIGHT = Float.parseFloat(System.getProperty("watson.rerank.proximityWeight", "0.2"));
+    // Questions between the metric snapshots printed by the search-stream mode (0: none)
+    public static final long STREAM_SNAPSHOT_INTERVAL = Long.getLong("watson.stream.snapshotInterval", 10000);
 
     private Directory indexDirectory;
     private StandardAnalyzer analyzer;
     private Wiki_Page wikiPage = new Wiki_Page();
-    private static RunningTime runningTime = new RunningTime();
-
-    // An array list of Part-of-Speech tags, which I will only considers important and extract from the contents
-    private static ArrayList<String> posTags = new ArrayList<>(Arrays.asList("NN", "NNS", "NNP", "NNPS", "VB", "VBN", "VBP", "VBD", "VBZ", "JJ"));
-    private static ArrayList<String> nerTags = new ArrayList<>(Arrays.asList("PERSON", "LOCATION", "ORGANIZATION", "MISC", "NUMBER", "DATE", "TIME", "DURATION", "SET"));
+    // Timers and counters of the main stages, see Metrics
+    private static final Metrics.Timer LEMMATIZE_TIME = Metrics.timer("lemmatize");
+    private static final Metrics.Timer RETRIEVE_TIME = Metrics.timer("retrieve");
+    private static final Metrics.Timer INDEX_TIME = Metrics.timer("index");
+    private static final Metrics.Timer SEARCH_TIME = Metrics.timer("search");
+    private static final Metrics.Timer QUESTION_TIME = Metrics.timer("search.question");
+    private static final Metrics.Timer CLUE_TIME = Metrics.timer("lemmatize.clue");
+    private static final Metrics.Counter QUESTIONS = Metrics.counter("search.questions");
+    private static final Metrics.Counter HITS = Metrics.counter("search.hits");
+    private static final Metrics.Counter PAGES_RETRIEVED = Metrics.counter("pages.retrieved");
+    private static LRUQueryCache queryCache;
+    private static volatile Reranker reranker = RERANK ? createReranker() : null;
 
+    /*
+     *  Usage: Watson [mode]
+     *      search            (default) answer the questions in Questions.txt against INDEX_DIR
+     *      search-stream [FILE]  answer the questions of FILE (default: Questions.txt) while reading it, see StreamingEvaluator
+     *      index             stream the raw wiki pages through the lemmatizer into a new index
+     *      lemmatize         lemmatize the raw wiki pages and store them in LEMMA_CACHE_FILE
+     *      lemmatize-incremental  like lemmatize, but only for pages changed since the last run (see LEMMA_JOURNAL_FILE)
+     *      index-lemmatized  index the pages stored in LEMMA_CACHE_FILE
+     *      rebuild-shard N SOURCE  rebuild shard N of a sharded INDEX_DIR from LEMMA_CACHE_FILE ("cache") or the raw pages ("raw")
+     *      coordinate        lemmatize the raw wiki pages on COORDINATOR_WORKERS worker JVMs into INDEX_DIR or LEMMA_CACHE_FILE
+     *      lemma-worker HOST:PORT  lemmatize the units handed out by a coordinator, see LemmaCoordinator
+     *      update FILE...    add or replace the pages of raw wiki files in INDEX_DIR, keyed by title
+     *      delete TITLE...   delete the pages with these titles from INDEX_DIR
+     *      serve             answer clues over HTTP on SERVER_PORT until the process is stopped
+     *      convert-cache     convert a LemmatizedWikiPages.txt from earlier versions into LEMMA_CACHE_FILE
+     *      migrate-index     rebuild an INDEX_DIR with stored titles and content in the doc values layout
+     *      lemma-dict-eval   compare clues lemmatized with LEMMA_DICT_FILE against the CoreNLP pipeline
+     *      sweep             answer the questions with every similarity of the SWEEP_* grid on one reader
+     */
+    @SuppressWarnings("try")
     public static void main( String[] args ) throws java.io.FileNotFoundException,java.io.IOException, ParseException, java.net.URISyntaxException
     {
-        // Initializing the running times of each operation to 0 at the beginning of the program.
-        runningTime.lemmatizing = 0;
-        runningTime.retrieving = 0;
-        runningTime.indexing = 0;
-        runningTime.searching = 0;
+        // Declaring the main Watson object.
+        Watson watson = new Watson();
+        configureQueryCache();
 
+        String mode = (args.length > 0) ? args[0] : "search";
+        switch (mode)
+        {
+            case "search":
+                search(watson);
+                break;
+            case "search-stream":
+                searchStream((args.length > 1) ? new File(args[1]) : watson.getFile("Questions.txt"));
+                break;
+            case "index":
+                File[] wikiFiles = watson.getWikiFiles();
+                System.out.printf("%d wiki files retrieved.\n", wikiFiles.length);
+                IndexDocuments(rawPages(wikiFiles, READ_THREADS), true);
+                break;
+            case "lemmatize":
+                lemmatizeWikiPages(watson.getWikiFiles());
+                break;
+            case "lemmatize-incremental":
+                try (Metrics.Stage stage = Metrics.stage(LEMMATIZE_TIME))
+                {
+                    IncrementalLemmatizer incremental = new IncrementalLemmatizer(Paths.get(LEMMA_JOURNAL_FILE), LEMMA_THREADS, CHECKPOINT_INTERVAL);
+                    // Unchanged pages are not lemmatized again, so keep the lemmas collected for them before
+                    LemmaDictionary.Collector collector = lemmaCollector();
+                    if (collector != null && Files.exists(Paths.get(LEMMA_DICT_FILE)))
+                        collector.addAll(LemmaDictionary.load(Paths.get(LEMMA_DICT_FILE)));
+                    incremental.collectLemmas(collector).run(watson.getWikiFiles(), Paths.get(LEMMA_CACHE_FILE));
+                    saveLemmaDictionary(collector);
+                }
+                break;
+            case "index-lemmatized":
+                try (LemmaCache.Reader cache = new LemmaCache.Reader(Paths.get(LEMMA_CACHE_FILE)))
+                {
+                    IndexDocuments(cache);
+                }
+                break;
+            case "rebuild-shard":
+                if (args.length < 3 || !(args[2].equals("cache") || args[2].equals("raw")))
+                {
+                    System.err.println("Usage: rebuild-shard <shard> cache|raw");
+                    System.exit(1);
+                }
+                rebuildShard(watson, Integer.parseInt(args[1]), args[2].equals("cache"));
+                break;
+            case "coordinate":
+                coordinate(watson);
+                break;
+            case "lemma-worker":
+                if (args.length < 2 || args[1].lastIndexOf(':') < 0)
+                {
+                    System.err.println("Usage: lemma-worker <host>:<port>");
+                    System.exit(1);
+                }
+                int separator = args[1].lastIndexOf(':');
+                System.out.printf("Lemmatized %d unit(s).\n", LemmaCoordinator.work(args[1].substring(0, separator), Integer.parseInt(args[1].substring(separator + 1))));
+                break;
+            case "update":
+                updatePages(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "delete":
+                deletePages(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "serve":
+                serve();
+                return;
+            case "convert-cache":
+                convertLemmatizedFile(watson.getFile("LemmatizedWikiPages.txt"));
+                break;
+            case "migrate-index":
+                migrateIndex(Paths.get(INDEX_DIR));
+                break;
+            case "lemma-dict-eval":
+                evaluateLemmaDictionary(watson.getFile("Questions.txt"));
+                break;
+            case "sweep":
+                sweep(watson);
+                break;
+            default:
+                System.err.println("Unknown mode: " + mode);
+                System.exit(1);
+        }
+
+        SentenceCache.closeShared();
+
+        // Prints processing time for each main functionalities of the program 
+        System.out.println("=======================================================");
+        System.out.println("Processing Time:");
+        System.out.print(Metrics.summary());
+        System.out.println("=======================================================");
+        Metrics.export();
+    }
+
+    /*
+     *  Run a QueryServer on the index under INDEX_DIR until the JVM is shut down. With
+     *  SERVER_UPDATES, the server also updates and deletes pages through an IndexUpdater.
+     */
+    private static void serve () throws java.io.IOException
+    {
+        SearcherFactory searcherFactory = new SearcherFactory()
+        {
+            // Refreshed readers are warmed up before they replace the current one
+            @Override
+            public IndexSearcher newSearcher (IndexReader reader, IndexReader previousReader) throws IOException
+            {
+                if (previousReader != null && WARMUP_TERMS > 0)
+                    IndexStorage.warmUp(reader, WARMUP_TERMS);
+                return new IndexSearcher(reader);
+            }
+        };
+        ReferenceManager<IndexSearcher> searcherManager;
+        IndexUpdater updater = null;
+        if (SERVER_UPDATES)
+        {
+            updater = new IndexUpdater(Paths.get(INDEX_DIR), true, searcherFactory, UPDATE_MERGE_THREADS, UPDATE_REFRESH_MILLIS, UPDATE_COMMIT_SECONDS);
+            searcherManager = updater.searcherManager();
+        }
+        else
+        {
+            IndexReader reader = ShardedIndex.openReader(Paths.get(INDEX_DIR), INDEX_STORAGE, WARMUP_TERMS);
+            if (reader instanceof ShardedIndex.ShardReader)
+                searcherManager = new ShardedIndex.ShardSearcherManager((ShardedIndex.ShardReader) reader, searcherFactory);
+            else
+                searcherManager = new SearcherManager((DirectoryReader) reader, searcherFactory);
+        }
+        QueryServer server = new QueryServer(searcherManager, updater, createResultCache(), SERVER_PORT, SERVER_THREADS, SERVER_REFRESH_SECONDS);
+        server.start(SERVER_THREADS);
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            try
+            {
+                server.close();
+                // main returns without closing the cache in this mode
+                SentenceCache.closeShared();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            stopped.countDown();
+        }));
+
+        try
+        {
+            stopped.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     *  Answer the questions in Questions.txt against the index under INDEX_DIR and print the MRR and accuracy.
+     */
+    private static void search (Watson watson) throws java.io.FileNotFoundException,java.io.IOException, ParseException, java.net.URISyntaxException
+    {
         File   questionsFile;
         ArrayList<Questions> questions = new ArrayList<>();
 
-        // Declaring the main Watson object.
-        Watson watson = new Watson();
-
         // Retrieve questions file
         questionsFile = watson.getFile("Questions.txt");
         System.out.println("A questions file: " + questionsFile.toString() + " retrieved.");
 
         // Tokenize and lemmatize each search query
         questions = watson.LemmatizeQuestions(questionsFile); 
-      
-        File[] wikiFiles;
-        ArrayList<Wiki_Page> wikiPages = new ArrayList<>();
-
-        // Get wikipedia files
-        wikiFiles = watson.getWikiFiles();
-        System.out.printf("%d wiki files retrieved.\n", wikiFiles.length);
-
-        // The commented out code stub is for lemmatizing and indexing. Since both operations
-        // are already completed and stored on disk, they are not necessary to re-run. Though,
-        // it's needed for any future work and record, I'm leaving it in here rather than removing it
-        /* ******************************************************************************************
-        // Tokenize and lemmatize each wiki page's content and store it into wiki page list
-        wikiPages = watson.lemmatizeWikiPages(wikiFiles);
+        if (ClueLemmatizer.sharedDictionary() != null)
+            System.out.println("Lemma dictionary: " + ClueLemmatizer.stats());
 
-        watson.addLemmatizedDocsToFile(wikiPages);
-
-        // Tokenize and lemmatize each search query
-        questions = watson.LemmatizeQuestions(questionsFile); 
-     
-        File lemmatizedFile = watson.getFile("LemmatizedWikiPages.txt"); 
-        wikiPages = watson.retrieveLammatizedWiki(lemmatizedFile);
-
-        // Index each lemmatized wiki page
-        watson.IndexDocuments(wikiPages);
-        **********************************************************************************************/
-        HashMap<String, Double> positions = new HashMap<>();
+        Evaluation evaluation = new Evaluation();
         IndexSearcher searcher = createSearcher();
+        QueryResultCache resultCache = createResultCache();
 
-        int numberCorrectlyFound = watson.query(searcher, questions, positions);
-        double correctness = ((double)numberCorrectlyFound / NUMBER_OF_Q) * 100;
-        double mrr = watson.MRR(positions);
+        if (SEARCH_THREADS > 1)
+            queryBatch(searcher.getIndexReader(), resultCache, questions, evaluation);
+        else
+            query(searcher, resultCache, questions, evaluation);
+        printCacheStats(resultCache);
 
         // Prints MRR and accuracy of querying
         System.out.println("=======================================================");
         System.out.println("Measurements:");
-        System.out.printf("MRR: %.2f.\n", mrr);
-        System.out.printf("The correctness: %.2f%%\n", correctness);
-        
-        // Prints processing time for each main functionalities of the program 
+        System.out.printf("MRR: %.2f.\n", evaluation.mrr());
+        System.out.printf("The correctness: %.2f%% (%d/%d answers in the top %d)\n", evaluation.foundRate() * 100, evaluation.found(), evaluation.size(), HITS_PER_PAGE);
+        System.out.printf("Precision at 1: %.2f%%\n", evaluation.accuracy() * 100);
+    }
+
+    /*
+     *  Answer the questions of the file through a StreamingEvaluator, with LEMMA_THREADS clue
+     *  lemmatizers and SEARCH_THREADS searchers, and print the MRR, accuracy and recall. Memory
+     *  and the time to the first answer do not depend on the number of questions.
+     */
+    @SuppressWarnings("try")
+    private static void searchStream (File questionsFile) throws java.io.IOException, ParseException
+    {
+        System.out.println("Streaming questions from " + questionsFile);
+        QueryResultCache resultCache = createResultCache();
+        StreamingEvaluator.Tally tally;
+        try (IndexReader reader = ShardedIndex.openReader(Paths.get(INDEX_DIR), INDEX_STORAGE, WARMUP_TERMS))
+        {
+            StreamingEvaluator evaluator = new StreamingEvaluator(new IndexSearcher(reader), resultCache,
+                LEMMA_THREADS, SEARCH_THREADS, PIPELINE_QUEUE_CAPACITY, HITS_PER_PAGE, STREAM_SNAPSHOT_INTERVAL);
+            try (Metrics.Stage stage = Metrics.stage(SEARCH_TIME))
+            {
+                tally = evaluator.run(Files.newBufferedReader(questionsFile.toPath()), true);
+            }
+        }
+        printCacheStats(resultCache);
+        if (ClueLemmatizer.sharedDictionary() != null)
+            System.out.println("Lemma dictionary: " + ClueLemmatizer.stats());
+
         System.out.println("=======================================================");
-        System.out.println("Processing Time:");
-        System.out.printf("Lemmatizing took %d Secs.\n", runningTime.lemmatizing);
-        System.out.printf("Retrieving lemmatized pages took %d Secs.\n", runningTime.retrieving);
-        System.out.printf("Indexing took %d Secs.\n", runningTime.indexing);
-        System.out.printf("Searching took %d mSecs.\n", runningTime.searching);
+        System.out.println("Measurements:");
+        System.out.printf("%d questions: %s\n", tally.size(), tally.summary());
+    }
+
+    /*
+     *  Answer the questions in Questions.txt with every similarity of the grid given by
+     *  SWEEP_SIMILARITIES, SWEEP_K1 and SWEEP_B, all on one reader of INDEX_DIR, and print
+     *  the MRR, accuracy and latency of each.
+     */
+    @SuppressWarnings("try")
+    private static void sweep (Watson watson) throws java.io.FileNotFoundException,java.io.IOException, ParseException, java.net.URISyntaxException
+    {
+        ArrayList<Questions> questions = LemmatizeQuestions(watson.getFile("Questions.txt"));
+        List<SimilaritySweep.Configuration> grid = SimilaritySweep.grid(SWEEP_SIMILARITIES,
+            SimilaritySweep.values(SWEEP_K1), SimilaritySweep.values(SWEEP_B));
+
+        System.out.printf("Sweeping %d configuration(s) over %d questions with %d thread(s) ...\n", grid.size(), questions.size(), SWEEP_THREADS);
+        List<SimilaritySweep.Outcome> outcomes;
+        try (Metrics.Stage stage = Metrics.stage(SEARCH_TIME);
+             IndexReader reader = ShardedIndex.openReader(Paths.get(INDEX_DIR), INDEX_STORAGE, WARMUP_TERMS);
+             SimilaritySweep sweep = new SimilaritySweep(reader, SWEEP_THREADS, HITS_PER_PAGE))
+        {
+            outcomes = sweep.run(grid, questions);
+        }
+
         System.out.println("=======================================================");
+        System.out.println("Similarity sweep:");
+        System.out.print(SimilaritySweep.table(outcomes));
     }
 
     /*
@@ -170,6 +461,8 @@ public class Watson
         ClassLoader classLoader = getClass().getClassLoader();
         File wikiPageDir = new File(classLoader.getResource(corpusDir).getFile());
         File[] wikiFiles = wikiPageDir.listFiles();
+        // listFiles() gives no ordering guarantee; sort so every run sees the corpus in the same order
+        Arrays.sort(wikiFiles);
 
         return wikiFiles;
     }
@@ -186,235 +479,494 @@ public class Watson
     }
 
     /*
-     *  For each wiki page stored in the wikiFiles, lemmatize and tokenize the content,
-     *  and store it into the wikiPages list. Then, return the list back to the caller.
-     *  Tokenize and lemmatize the wiki pages with StanfordNLP core.
+     *  Tokenize and lemmatize the wiki pages with StanfordNLP core and store them in the
+     *  binary LemmaCache file at LEMMA_CACHE_FILE, which is mapped back into memory for
+     *  indexing. The pages stream through the lemmatizer stage of an IndexingPipeline on
+     *  LEMMA_THREADS workers and are written in corpus order as soon as all pages before
+     *  them are done, so no more than a few queues' worth of pages are in memory. Returns
+     *  the number of pages stored.
      */
-    public static ArrayList<Wiki_Page> lemmatizeWikiPages (File[] wikiFiles)
+    @SuppressWarnings("try")
+    public static long lemmatizeWikiPages (File[] wikiFiles) throws java.io.IOException
     {
-        long startTime = System.nanoTime();
-        ArrayList<Wiki_Page> wikiPages = new ArrayList<>();
-
-        String content = "";
+        try (Metrics.Stage stage = Metrics.stage(LEMMATIZE_TIME);
+             LemmaCache.Writer writer = new LemmaCache.Writer(Paths.get(LEMMA_CACHE_FILE)))
+        {
+            LemmaDictionary.Collector collector = lemmaCollector();
+            // A single writer thread, as the cache file is appended to one record at a time
+            IndexingPipeline pipeline = new IndexingPipeline(wikiPage ->
+            {
+                wikiPage.Title = cleanTitle(wikiPage.Title);
+                writer.add(wikiPage);
+            }, LEMMA_THREADS, 1, PIPELINE_QUEUE_CAPACITY).collectLemmas(collector).inOrder();
+            long numPages = pipeline.run(rawPages(wikiFiles, 1).get(0), true);
+            saveLemmaDictionary(collector);
+
+            System.out.printf("%d lemmatized pages stored in %s.\n", numPages, LEMMA_CACHE_FILE);
+            return numPages;
+        }
+    }
 
-        Properties props = new Properties();
-        props.setProperty("LemmaAnnotators", "tokenize, ssplit, pos, lemma, ner");
-        StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+    /*
+     *  Convert a LemmatizedWikiPages.txt file written by earlier versions into a LemmaCache file,
+     *  without holding the pages in memory.
+     */
+    private static void convertLemmatizedFile (File lemmatizedFile) throws java.io.IOException
+    {
+        int numPages = 0;
+        try (LemmatizedFileReader reader = new LemmatizedFileReader(lemmatizedFile);
+             LemmaCache.Writer writer = new LemmaCache.Writer(Paths.get(LEMMA_CACHE_FILE)))
+        {
+            Wiki_Page wikiPage;
+            while ((wikiPage = reader.next()) != null)
+            {
+                // The text format keeps the "CONTENT:" marker on the content line
+                wikiPage.Content = wikiPage.Content.replaceFirst("^CONTENT:", "");
+                writer.add(wikiPage);
+                numPages++;
+            }
+        }
+        System.out.printf("%d lemmatized pages converted from %s to %s.\n", numPages, lemmatizedFile, LEMMA_CACHE_FILE);
+    }
 
-        System.out.println("Begin tokenizing and lemmatizing wiki pages...");
+    /*
+     *  Read every page of a LemmaCache file back into memory.
+     */
+    @SuppressWarnings("try")
+    static ArrayList<Wiki_Page> retrieveLammatizedWiki (File lemmatizedFile) throws java.io.IOException
+    {
+        try (Metrics.Stage stage = Metrics.stage(RETRIEVE_TIME))
+        {
+            System.out.println ("Begin retreiving lemmatized pages from file ...");
 
-        // This is simply to track how many files have been lemmatized during the process
-        int fileNum = 1;
+            ArrayList<Wiki_Page> wikiPages = new ArrayList<>();
 
-        // Traverse each wiki page file
-        for (File file : wikiFiles)
-        {
-            System.out.println("Tokenizing File: " + (file.getName()).toString() + " ...");
-            boolean newPage = true;
-            try (Scanner scanner = new Scanner(file))
+            try (LemmaCache.Reader reader = new LemmaCache.Reader(lemmatizedFile.toPath()))
             {
-                Wiki_Page wikiPage = null;
-                while (scanner.hasNextLine())
+                for (int i = 0; i < reader.size(); i++)
                 {
-                    String line = scanner.nextLine();
-                    Matcher m = pattern.matcher(line);
-                    if (m.find())
-                    {
-                        if (!newPage)
-                        {
-                            Annotation cont = new Annotation(content);
-                            pipeline.annotate(cont);
-                            List<CoreMap> sentences = cont.get(SentencesAnnotation.class);
-                            String lemmas = "";
-                            for (CoreMap sentence : sentences)
-                            {
-                                for (CoreLabel token : sentence.get(TokensAnnotation.class))
-                                {
-                                    // Construct a new string of lemmas only based on the POS tags that I considers imortant
-                                    String pos = token.get(PartOfSpeechAnnotation.class);
-                                    String ner = token.get(NamedEntityTagAnnotation.class);
-                                    if (posTags.contains(pos) && nerTags.contains(ner))
-                                    {
-                                        lemmas += (token.get(LemmaAnnotation.class) + " ");
-                                    }
-                                }
-                            }
-                            String cleanedLemma = lemmas.replaceAll("[^\\p{IsAlphabetic}^\\p{IsDigit}]", " ");
-                            // Add the lemmatized content to the wikiPage.Content
-                            wikiPage.Content = cleanedLemma;
-                            // Add to the list of wiki pages
-                            wikiPages.add(wikiPage);
-                            content = "";
-                            newPage = true;
-                        }
-                        wikiPage = new Wiki_Page();
-                        wikiPage.Title = line;
-                        newPage = false;
-                        System.out.printf("Currently lemmatizing Page: %s from file: %s. File number: %d\n", line, (file.getName()).toString(), fileNum);
-                    }
-                    else if (line.contains("CATEGORIES"))
-                    {
-                        wikiPage.Category = line;
-                    }
-                    else
-                    {
-                        if (!line.isEmpty() && line != null)
-                            content += line;
-                    }
+                    wikiPages.add(reader.get(i));
                 }
             }
-            catch (IOException e)
+
+            PAGES_RETRIEVED.add(wikiPages.size());
+
+            return wikiPages;
+        }
+    }
+
+    /*
+     *  Strip the "[[" and "]]" around a page title.
+     */
+    static String cleanTitle (String title)
+    {
+        return title.replaceAll("\\[|\\]", "").trim();
+    }
+
+    /*
+     *  By using the lemmatized wiki pages, index each page into individual documents.
+     *  Documents are handed to the writer one at a time, so no second copy of the corpus is built.
+     */
+    @SuppressWarnings("try")
+    private void IndexDocuments (ArrayList<Wiki_Page> wikiPages) throws java.io.IOException
+    {
+        try (Metrics.Stage stage = Metrics.stage(INDEX_TIME))
+        {
+            System.out.println("Begin indexing...");
+
+            try (IndexWriter writer = createWriter())
             {
-                e.printStackTrace();
+                writer.deleteAll();
+
+                int numPageRemain = wikiPages.size();
+                for (int i = 0; i < wikiPages.size(); i++)
+                {
+                    numPageRemain--;
+                    System.out.printf("Indexing document: %s. %d / %d remaining\n", (wikiPages.get(i)).Title, numPageRemain, wikiPages.size());
+                    writer.addDocument(createDocument(wikiPages.get(i)));
+                }
+
+                writer.commit();
             }
-            fileNum++;
         }
-        long endTime = System.nanoTime();
-        runningTime.lemmatizing = ((endTime - startTime)/1000000000);
-
-        return wikiPages;
     }
 
     /*
-     *  In order to avoid the long process of lemmatizing entire wiki pages again,
-     *  this function will store all lemmatized pages into the file specified by the path.
-     *  This file will be called and repopulated on memory for indexing.
+     *  Stream the pages of the source through the lemmatizer and indexer stages of an
+     *  IndexingPipeline into the INDEX_SHARDS shards under INDEX_DIR. Set lemmatize to false
+     *  when the source yields already lemmatized pages. Lemmatizing time is included in the
+     *  indexing time here, as both stages overlap.
      */
-    private void addLemmatizedDocsToFile (ArrayList<Wiki_Page> wikiPages) throws java.io.IOException
+    static long IndexDocuments (PageSource source, boolean lemmatize) throws java.io.IOException
     {
-        String path = "/Users/hlim1/CourseWorks/583/CSC583/Project/watson/target/classes/LemmatizedWikiPages.txt";
-        FileWriter write = new FileWriter(path, false);
-        PrintWriter printWriter = new PrintWriter(write);
+        return IndexDocuments(Collections.singletonList(source), lemmatize);
+    }
 
-        for (int i = 0; i < wikiPages.size(); i++)
+    /*
+     *  Same as IndexDocuments(source, lemmatize), with every source read by its own thread.
+     */
+    static long IndexDocuments (List<PageSource> sources, boolean lemmatize) throws java.io.IOException
+    {
+        boolean analyzeRaw = lemmatize && LEMMA_ANALYSIS;
+        try (ShardedIndex index = ShardedIndex.create(Paths.get(INDEX_DIR), INDEX_SHARDS, () -> createIndexAnalyzer(analyzeRaw)))
         {
-            if ((wikiPages.get(i)).Category == null)
-                (wikiPages.get(i)).Category = "CATEGORIES: NULL";
-            printWriter.printf("__NEWPAGE__\n");
-            printWriter.printf("TITLE: %s\n", (wikiPages.get(i)).Title);
-            printWriter.printf("%s\n", (wikiPages.get(i)).Category);
-            printWriter.printf("CONTENT: %s\n", (wikiPages.get(i)).Content);
+            return IndexDocuments(index, sources, lemmatize);
         }
     }
 
-    private static ArrayList<Wiki_Page> retrieveLammatizedWiki (File lemmatizedFile) throws java.io.IOException
+    /*
+     *  The raw pages of the wiki files as the given number of sources of consecutive pages
+     *  of the mapped files. With RAW_READER "stream" they are one RawWikiReader instead,
+     *  whatever the number of parts asked for.
+     */
+    static List<PageSource> rawPages (File[] wikiFiles, int parts) throws java.io.IOException
     {
-        long startTime = System.nanoTime();
-        System.out.println ("Begin retreiving lemmatized pages from file ...");
+        if ("stream".equals(RAW_READER))
+            return Collections.singletonList(new RawWikiReader(wikiFiles));
+        return new MappedWikiSplitter(wikiFiles, READ_THREADS).split(parts);
+    }
+
+    /*
+     *  Lemmatize the wiki files on worker JVMs through a LemmaCoordinator and merge their
+     *  outputs into the INDEX_SHARDS shards of INDEX_DIR, or into LEMMA_CACHE_FILE.
+     */
+    @SuppressWarnings("try")
+    private static long coordinate (Watson watson) throws java.io.IOException, ParseException, java.net.URISyntaxException
+    {
+        File[] wikiFiles = watson.getWikiFiles();
+        boolean cache = "cache".equals(COORDINATOR_OUTPUT);
+        try (Metrics.Stage stage = Metrics.stage(cache ? LEMMATIZE_TIME : INDEX_TIME))
+        {
+            LemmaCoordinator coordinator = new LemmaCoordinator(Paths.get(COORDINATOR_SPOOL), COORDINATOR_OUTPUT, true, INDEX_SHARDS,
+                COORDINATOR_UNIT_FILES, COORDINATOR_RETRIES, COORDINATOR_UNIT_TIMEOUT_SECONDS * 1000).workerHeap(COORDINATOR_WORKER_HEAP);
+            coordinator.bind(new java.net.InetSocketAddress(COORDINATOR_HOST, COORDINATOR_PORT));
+            return coordinator.run(wikiFiles, Paths.get(cache ? LEMMA_CACHE_FILE : INDEX_DIR), COORDINATOR_WORKERS);
+        }
+    }
 
-        ArrayList<Wiki_Page> wikiPages = new ArrayList<>();
-        Wiki_Page wikiPage = null;
+    /*
+     *  Index the pages of a LemmaCache file into the INDEX_SHARDS shards under INDEX_DIR,
+     *  reading INDEX_THREADS ranges of the file in parallel.
+     */
+    static long IndexDocuments (LemmaCache.Reader cache) throws java.io.IOException
+    {
+        try (ShardedIndex index = ShardedIndex.create(Paths.get(INDEX_DIR), INDEX_SHARDS, () -> createIndexAnalyzer(false)))
+        {
+            return IndexDocuments(index, cache);
+        }
+    }
 
-        try (Scanner scanner = new Scanner(lemmatizedFile))
+    /*
+     *  Rebuild one shard of the sharded index under INDEX_DIR. Only the pages of that shard
+     *  are lemmatized and indexed; the other shards are not touched. The shard must come from
+     *  the same source as the others, so the caller says whether the index was built from
+     *  LEMMA_CACHE_FILE (index-lemmatized) or from the raw pages (index); a cache that merely
+     *  exists may be older than the corpus the index was built from.
+     */
+    private static long rebuildShard (Watson watson, int shard, boolean fromCache) throws java.io.IOException, ParseException, java.net.URISyntaxException
+    {
+        System.out.printf("Rebuilding shard %d of %s from %s...\n", shard, INDEX_DIR, fromCache ? LEMMA_CACHE_FILE : "the raw pages");
+        if (fromCache)
         {
-            while (scanner.hasNextLine())
+            try (LemmaCache.Reader cache = new LemmaCache.Reader(Paths.get(LEMMA_CACHE_FILE));
+                 ShardedIndex index = ShardedIndex.rebuild(Paths.get(INDEX_DIR), shard, () -> createIndexAnalyzer(false)))
             {
-                String line = scanner.nextLine();
-                if (line.contains("__NEWPAGE__"))
-                {
-                    wikiPage = new Wiki_Page();
-                }
-                else if (line.contains("TITLE"))
-                {
-                    String removeTITLE = line.replace("TITLE:", "");
-                    String onlyTitle = removeTITLE.replaceAll("\\[|\\]", "");
-                    wikiPage.Title = onlyTitle.trim();
-                }
-                else if (line.contains("CATEGORIES"))
-                {
-                    wikiPage.Category = line;
-                }
-                else if (line.contains("CONTENT"))
-                {
-                    wikiPage.Content = line;
-                    wikiPages.add(wikiPage);
-                }
+                return IndexDocuments(index, cache);
             }
         }
-        catch (IOException e)
+
+        try (ShardedIndex index = ShardedIndex.rebuild(Paths.get(INDEX_DIR), shard, () -> createIndexAnalyzer(LEMMA_ANALYSIS)))
         {
-            e.printStackTrace();
+            return IndexDocuments(index, rawPages(watson.getWikiFiles(), READ_THREADS), true);
+        }
+    }
+
+    @SuppressWarnings("try")
+    static long IndexDocuments (ShardedIndex index, List<PageSource> sources, boolean lemmatize) throws java.io.IOException
+    {
+        try (Metrics.Stage stage = Metrics.stage(INDEX_TIME))
+        {
+            System.out.printf("Begin indexing into %d of %d shard(s)...\n", index.numWriters(), index.numShards());
+
+            // With LEMMA_ANALYSIS the LemmaAnalyzer lemmatizes the raw content inside addDocument,
+            // so the pipeline has no lemmatizer stage and runs LEMMA_THREADS indexer threads instead.
+            boolean analyzeRaw = lemmatize && LEMMA_ANALYSIS;
+            // Each shard being written gets at least one indexer thread
+            int indexThreads = Math.max(analyzeRaw ? LEMMA_THREADS : INDEX_THREADS, index.numWriters());
+
+            LemmaDictionary.Collector collector = (lemmatize && !analyzeRaw) ? lemmaCollector() : null;
+            IndexingPipeline pipeline = new IndexingPipeline(index.sink(analyzeRaw), analyzeRaw ? 1 : LEMMA_THREADS, indexThreads, PIPELINE_QUEUE_CAPACITY)
+                .collectLemmas(collector);
+            List<PageSource> filtered = new ArrayList<>();
+            for (PageSource source : sources)
+                filtered.add(index.filter(source));
+            long numIndexed = pipeline.run(filtered, lemmatize && !analyzeRaw);
+            index.commit();
+
+            System.out.printf("Indexed %d pages.\n", numIndexed);
+            // A dictionary collected from one shard would not cover the corpus
+            if (index.numWriters() == index.numShards())
+                saveLemmaDictionary(collector);
+
+            return numIndexed;
         }
+    }
 
-        long endTime = System.nanoTime();
-        runningTime.retrieving = ((endTime - startTime)/1000000000);
+    @SuppressWarnings("try")
+    private static long IndexDocuments (ShardedIndex index, LemmaCache.Reader cache) throws java.io.IOException
+    {
+        try (Metrics.Stage stage = Metrics.stage(INDEX_TIME))
+        {
+            System.out.printf("Begin indexing %d lemmatized pages into %d of %d shard(s)...\n", cache.size(), index.numWriters(), index.numShards());
+
+            int indexThreads = Math.max(INDEX_THREADS, index.numWriters());
+            List<PageSource> sources = new ArrayList<>();
+            for (PageSource source : cache.split(indexThreads))
+                sources.add(index.filter(source));
+
+            IndexingPipeline pipeline = new IndexingPipeline(index.sink(false), LEMMA_THREADS, indexThreads, PIPELINE_QUEUE_CAPACITY);
+            long numIndexed = pipeline.indexLemmatized(sources);
+            index.commit();
+
+            System.out.printf("Indexed %d pages.\n", numIndexed);
 
-        return wikiPages;
+            return numIndexed;
+        }
     }
 
     /*
-     *  By using the lemmatized wiki pages, index each page into individual documents.
+     *  Rebuild an index of the old layout, with stored title and content, in the current one.
+     *  The pages are read back from the stored fields, so nothing is lemmatized again. The new
+     *  index replaces the old one, which is kept next to it with a ".legacy" suffix.
      */
-    private void IndexDocuments (ArrayList<Wiki_Page> wikiPages) throws java.io.IOException
+    static long migrateIndex (Path indexPath) throws java.io.IOException
     {
         long startTime = System.nanoTime();
-        System.out.println("Begin indexing...");
+        Path migratedPath = indexPath.resolveSibling(indexPath.getFileName() + ".migrating");
+        Path legacyPath = indexPath.resolveSibling(indexPath.getFileName() + ".legacy");
+        if (Files.exists(legacyPath))
+            throw new IOException(legacyPath + " already exists, remove it before migrating again");
+
+        long numPages;
+        try (Directory directory = FSDirectory.open(indexPath);
+             DirectoryReader reader = DirectoryReader.open(directory);
+             IndexWriter writer = createWriter(createIndexAnalyzer(false), migratedPath))
+        {
+            System.out.printf("Migrating %d pages from %s...\n", reader.numDocs(), indexPath);
+            writer.deleteAll();
+            IndexingPipeline pipeline = new IndexingPipeline(writer, 1, INDEX_THREADS, PIPELINE_QUEUE_CAPACITY);
+            numPages = pipeline.run(new StoredPageSource(reader), false);
+            writer.commit();
+        }
 
-        IndexWriter writer = createWriter();
-        List<Document> documents = new ArrayList<>();
+        Files.move(indexPath, legacyPath);
+        Files.move(migratedPath, indexPath);
+        System.out.printf("Migrated %d pages in %.2f Secs: %d MB -> %d MB, the old index is kept in %s.\n",
+            numPages, (System.nanoTime() - startTime) / 1e9,
+            directorySize(legacyPath) >> 20, directorySize(indexPath) >> 20, legacyPath);
+        return numPages;
+    }
 
-        int numPageRemain = wikiPages.size();
-        for (int i = 0; i < wikiPages.size(); i++)
+    private static long directorySize (Path path) throws java.io.IOException
+    {
+        try (java.util.stream.Stream<Path> files = Files.walk(path))
         {
-            numPageRemain--;
-            System.out.printf("Indexing document: %s. %d / %d remaining\n", (wikiPages.get(i)).Title, numPageRemain, wikiPages.size());
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
 
-            // If either category or content field is null (or empty), set it to "NULL" string as adding null to document is an invalid operation.
-            if ((wikiPages.get(i)).Category == null)
-                (wikiPages.get(i)).Category = "NULL";
-            if ((wikiPages.get(i)).Content == null)
-                (wikiPages.get(i)).Content = "NULL";
+    /*
+     *  A collector for the lemma dictionary, or null if no LEMMA_DICT_FILE is configured.
+     */
+    static LemmaDictionary.Collector lemmaCollector()
+    {
+        return (LEMMA_DICT_FILE == null) ? null : new LemmaDictionary.Collector();
+    }
 
-            Document document = createDocument ((wikiPages.get(i)).Title, (wikiPages.get(i)).Category, (wikiPages.get(i)).Content);
-            documents.add(document);
-        }
+    /*
+     *  Write the lemmas gathered by the collector to LEMMA_DICT_FILE. Does nothing without a collector.
+     */
+    static void saveLemmaDictionary (LemmaDictionary.Collector collector) throws java.io.IOException
+    {
+        if (collector == null || collector.size() == 0)
+            return;
+        LemmaDictionary dictionary = collector.write(Paths.get(LEMMA_DICT_FILE));
+        System.out.printf("Lemma dictionary of %d surface forms (%d KB) stored in %s.\n",
+            dictionary.size(), dictionary.ramBytesUsed() / 1024, LEMMA_DICT_FILE);
+    }
 
-        System.out.println("Indexing done. Adding documents. It may take a few minutes ...");
+    /*
+     *  Create the document for a wiki page. If either category or content is null, it is set
+     *  to "NULL" string as adding null to document is an invalid operation.
+     */
+    static Document createDocument (Wiki_Page wikiPage)
+    {
+        return createDocument(wikiPage, false);
+    }
 
-        writer.deleteAll();
+    /*
+     *  With rawContent, the content is the raw page text that the writer's LemmaAnalyzer lemmatizes.
+     *  It is then only indexed, not stored, and handed to the analyzer as a Reader.
+     */
+    static Document createDocument (Wiki_Page wikiPage, boolean rawContent)
+    {
+        String category = (wikiPage.Category == null) ? "NULL" : wikiPage.Category;
+        String content  = (wikiPage.Content == null) ? "NULL" : wikiPage.Content;
 
-        writer.addDocuments(documents);
-        writer.commit();
-        writer.close();
+        Document document = createDocument(cleanTitle(wikiPage.Title), category, rawContent ? null : content);
+        if (rawContent)
+            document.add(new TextField("content", new StringReader(content)));
 
-        long endTime = System.nanoTime();
-        runningTime.indexing = ((endTime - startTime)/1000000000);
+        return document;
     }
 
     /*
      *  With passed parameters of title, categories, and content, create a new document
-     *  for each wiki page.
+     *  for each wiki page. The content field is left out when content is null.
+     *
+     *  Hits are resolved from the title doc values, so neither the title nor the content is
+     *  stored: the content is only indexed, and the title is indexed both tokenized and as an
+     *  exact keyword in title_exact. The words of the categories are also kept in the
+     *  category_terms doc values, for the Reranker.
      */
     private static Document createDocument (String title, String categories, String content)
     {
          Document document = new Document();
 
-         document.add(new TextField("title", title, Field.Store.YES));
+         document.add(new TextField("title", title, Field.Store.NO));
+         document.add(new StringField("title_exact", title, Field.Store.NO));
+         document.add(new SortedDocValuesField("title", new BytesRef(title)));
          document.add(new TextField("categories", categories, Field.Store.YES));
-         document.add(new TextField("content", content, Field.Store.YES));
+         for (String term : Reranker.terms(categories))
+             document.add(new SortedSetDocValuesField(Reranker.CATEGORY_TERMS, new BytesRef(term)));
+         if (content != null)
+             document.add(new TextField("content", content, Field.Store.NO));
 
          return document;
     }
 
     /*
-     *  Create a writer that will store indexed document to the disk under INDEX_DIR
+     *  Lemmatize the pages of the raw wiki files and add them to the index under INDEX_DIR,
+     *  replacing the pages with the same titles. The rest of the index is left as it is.
+     */
+    @SuppressWarnings("try")
+    private static void updatePages (String[] fileNames) throws java.io.IOException
+    {
+        File[] wikiFiles = new File[fileNames.length];
+        for (int i = 0; i < fileNames.length; i++)
+            wikiFiles[i] = new File(fileNames[i]);
+
+        try (Metrics.Stage stage = Metrics.stage(INDEX_TIME))
+        {
+            int numUpdated = 0;
+            try (IndexUpdater updater = new IndexUpdater(Paths.get(INDEX_DIR), true, null, UPDATE_MERGE_THREADS, 0, 0);
+                 PageSource source = rawPages(wikiFiles, 1).get(0))
+            {
+                Wiki_Page wikiPage;
+                while ((wikiPage = source.next()) != null)
+                {
+                    updater.update(wikiPage);
+                    numUpdated++;
+                }
+            }
+            System.out.printf("Updated %d pages.\n", numUpdated);
+        }
+    }
+
+    /*
+     *  Delete the pages with the given titles from the index under INDEX_DIR.
+     */
+    private static void deletePages (String[] titles) throws java.io.IOException
+    {
+        try (IndexUpdater updater = new IndexUpdater(Paths.get(INDEX_DIR), false, null, UPDATE_MERGE_THREADS, 0, 0))
+        {
+            for (String title : titles)
+                updater.delete(title);
+        }
+        System.out.printf("Deleted the pages titled %s.\n", String.join(", ", titles));
+    }
+
+    /*
+     *  Create a writer that will store indexed document to the disk under INDEX_DIR.
+     *  The RAM buffer size and the merge policy are taken from the watson.index.* properties.
      */
     private static IndexWriter createWriter() throws IOException
     {
-        FSDirectory dir = FSDirectory.open(Paths.get(INDEX_DIR));
-        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
-        IndexWriter writer = new IndexWriter(dir, config);
+        return createWriter(createIndexAnalyzer(false));
+    }
+
+    private static IndexWriter createWriter(Analyzer analyzer) throws IOException
+    {
+        return createWriter(analyzer, Paths.get(INDEX_DIR));
+    }
+
+    static IndexWriter createWriter(Analyzer analyzer, Path indexPath) throws IOException
+    {
+        Directory dir = IndexStorage.openForWriting(indexPath, INDEX_STORAGE);
+        IndexWriter writer = new IndexWriter(dir, createWriterConfig(analyzer));
 
         return writer;
     }
 
+    static IndexWriterConfig createWriterConfig(Analyzer analyzer)
+    {
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setRAMBufferSizeMB(INDEX_RAM_BUFFER_MB);
+        config.setMergePolicy(createMergePolicy(INDEX_MERGE_POLICY));
+        return config;
+    }
+
+    /*
+     *  The analyzer used to index pre-lemmatized content is a plain WhitespaceAnalyzer. For raw
+     *  content, the content field goes through the LemmaAnalyzer instead.
+     */
+    static Analyzer createIndexAnalyzer (boolean rawContent)
+    {
+        if (!rawContent)
+            return new WhitespaceAnalyzer();
+
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<>();
+        fieldAnalyzers.put("content", new LemmaAnalyzer());
+        return new PerFieldAnalyzerWrapper(new WhitespaceAnalyzer(), fieldAnalyzers);
+    }
+
+    /*
+     *  The analyzer used to parse clues: the LemmaAnalyzer that built the index with LEMMA_ANALYSIS,
+     *  otherwise a StandardAnalyzer over the clue lemmatized by LemmatizeQuestions.
+     */
+    static Analyzer createQueryAnalyzer()
+    {
+        return LEMMA_ANALYSIS ? new LemmaAnalyzer(true) : new StandardAnalyzer();
+    }
+
+    /*
+     *  "tiered" (Lucene's default), "log" (LogByteSizeMergePolicy) or "none" (NoMergePolicy,
+     *  useful for a bulk load that is force merged afterwards).
+     */
+    static MergePolicy createMergePolicy (String name)
+    {
+        switch (name)
+        {
+            case "tiered":
+                TieredMergePolicy tiered = new TieredMergePolicy();
+                tiered.setMaxMergedSegmentMB(Double.parseDouble(System.getProperty("watson.index.maxMergedSegmentMB", "5120")));
+                tiered.setSegmentsPerTier(Double.parseDouble(System.getProperty("watson.index.segmentsPerTier", "10")));
+                return tiered;
+            case "log":
+                return new LogByteSizeMergePolicy();
+            case "none":
+                return NoMergePolicy.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown merge policy: " + name);
+        }
+    }
+
     /*
-     *  Open and read in the indexed documents and return the searcher object back to the caller
+     *  Open and read in the indexed documents (all shards of a sharded index) with INDEX_STORAGE and return the searcher object back to the caller
      */
     private static IndexSearcher createSearcher() throws IOException
     {
-        Directory indexDir = FSDirectory.open(Paths.get(INDEX_DIR));
-        IndexReader reader = DirectoryReader.open(indexDir);
+        IndexReader reader = ShardedIndex.openReader(Paths.get(INDEX_DIR), INDEX_STORAGE, WARMUP_TERMS);
         IndexSearcher searcher = new IndexSearcher(reader);
 
         return searcher;
@@ -425,63 +977,178 @@ public class Watson
      *  Default: BM25
      *  Modified: TFIDFSimilarity
      */
-    private static int query (IndexSearcher searcher, ArrayList<Questions> questions, HashMap<String, Double> positions) throws java.io.IOException, ParseException
+    @SuppressWarnings("try")
+    private static void query (IndexSearcher searcher, QueryResultCache resultCache, ArrayList<Questions> questions, Evaluation evaluation) throws java.io.IOException, ParseException
     {
-        long startTime = System.nanoTime();
-        System.out.println("Begin searching ...");
-        int hitsPerPage = 10;
-        int numberCorrectlyFound = 0;
+        try (Metrics.Stage stage = Metrics.stage(SEARCH_TIME))
+        {
+            System.out.println("Begin searching ...");
+
+            QueryParser parser = new QueryParser("content", createQueryAnalyzer());
+
+            for (int i = 0; i < questions.size(); i++)
+            {
+                // Search through the indexed wiki page with the provided clue to find the correct answer
+                QueryResult result = search(searcher, parser, resultCache, (questions.get(i)).Clue, (questions.get(i)).Category, HITS_PER_PAGE);
+                checkAnswer(questions.get(i), result, evaluation);
+            }
 
-        Query query = null;
-        TopDocs docs = null;
+            System.out.println("Searching ended ...");
+        }
+    }
 
-        for (int i = 0; i < questions.size(); i++)
+    /*
+     *  Same as query, but the questions are searched in parallel by a BatchSearcher with
+     *  SEARCH_THREADS question threads and SEGMENT_THREADS segment threads. The answers are
+     *  checked in question order afterwards, so the output is that of query.
+     */
+    @SuppressWarnings("try")
+    private static void queryBatch (IndexReader reader, QueryResultCache resultCache, ArrayList<Questions> questions, Evaluation evaluation) throws java.io.IOException, ParseException
+    {
+        try (Metrics.Stage stage = Metrics.stage(SEARCH_TIME))
         {
-            String category = (questions.get(i)).Category;
-            String clue     = (questions.get(i)).Clue;
-            String answer   = (questions.get(i)).Answer;
+            System.out.printf("Begin searching with %d question thread(s) ...\n", SEARCH_THREADS);
 
-            // Search through the indexed wiki page with the provided clue to find the correct answer
-            query = new QueryParser("content", new StandardAnalyzer()).parse(QueryParser.escape(clue));
-            docs = searcher.search(query, hitsPerPage);
-            double position = 0;
-            for (ScoreDoc sd : docs.scoreDocs)
+            try (BatchSearcher batchSearcher = new BatchSearcher(reader, resultCache, SEARCH_THREADS, SEGMENT_THREADS, HITS_PER_PAGE))
             {
-                position += 1.0;
-                Document document = searcher.doc(sd.doc);
-                // If the found document's title is equal to the current question's answer, it is a correct match.
-                if ((((document.get("title")).toString()).trim()).equals(answer.trim()))
+                List<QueryResult> results = batchSearcher.search(questions);
+                for (int i = 0; i < questions.size(); i++)
                 {
-                    // Thus, increment the found number and print the document's title.
-                    numberCorrectlyFound++;
-                    System.out.println("Question: " + clue);
-                    System.out.println("Expected Answer: " + answer);
-                    System.out.println("Found Answer: " + document.get("title"));
-                    System.out.printf("\n");
-                    positions.put(answer.trim(), position);
+                    checkAnswer(questions.get(i), results.get(i), evaluation);
                 }
             }
+
+            System.out.println("Searching ended ...");
+        }
+    }
+
+    /*
+     *  Parse the clue and return the titles and scores of its top hits.
+     */
+    static QueryResult search (IndexSearcher searcher, QueryParser parser, String clue, int hitsPerPage) throws java.io.IOException, ParseException
+    {
+        return search(searcher, parser, clue, null, hitsPerPage);
+    }
+
+    /*
+     *  Same as search, but with RERANK the top hits are reranked, taking the category of the
+     *  clue (may be null) into account.
+     */
+    static QueryResult search (IndexSearcher searcher, QueryParser parser, String clue, String category, int hitsPerPage) throws java.io.IOException, ParseException
+    {
+        long startNanos = System.nanoTime();
+        Query query = parser.parse(QueryParser.escape(clue));
+        Reranker currentReranker = reranker;
+        if (currentReranker == null)
+            return QueryResult.of(searcher, searcher.search(query, hitsPerPage));
+
+        TopDocs candidates = searcher.search(query, currentReranker.candidates(hitsPerPage));
+        return currentReranker.rerank(searcher, query, candidates, category, hitsPerPage, startNanos);
+    }
+
+    static QueryResult search (IndexSearcher searcher, QueryParser parser, QueryResultCache resultCache, String clue, int hitsPerPage) throws java.io.IOException, ParseException
+    {
+        return search(searcher, parser, resultCache, clue, null, hitsPerPage);
+    }
+
+    /*
+     *  Same as search, but answer clues seen before on the same index from the result cache,
+     *  and time the question in the search.question metrics.
+     */
+    @SuppressWarnings("try")
+    static QueryResult search (IndexSearcher searcher, QueryParser parser, QueryResultCache resultCache, String clue, String category, int hitsPerPage) throws java.io.IOException, ParseException
+    {
+        try (Metrics.Stage stage = Metrics.stage(QUESTION_TIME, clue))
+        {
+            QUESTIONS.increment();
+            String key = (resultCache == null) ? null : QueryResultCache.key(clue, hitsPerPage);
+            // Reranked results depend on the category as well
+            if (key != null && reranker != null && category != null)
+                key = key + '\u0000' + category;
+            QueryResult result = (key == null) ? null : resultCache.get(searcher.getIndexReader(), key);
+            if (result == null)
+            {
+                result = search(searcher, parser, clue, category, hitsPerPage);
+                // A result cut short by the rerank budget depends on timing, so it is not kept
+                if (key != null && !result.truncated)
+                    resultCache.put(searcher.getIndexReader(), key, result);
+            }
+            HITS.add(result.size());
+            return result;
         }
+    }
+
+    /*
+     *  Make every IndexSearcher share an LRUQueryCache of QUERY_CACHE_ENTRIES queries and
+     *  QUERY_CACHE_MB, instead of relying on Lucene's defaults.
+     */
+    static void configureQueryCache()
+    {
+        queryCache = new LRUQueryCache(QUERY_CACHE_ENTRIES, QUERY_CACHE_MB * 1024L * 1024L);
+        IndexSearcher.setDefaultQueryCache(queryCache);
+    }
+
+    /*
+     *  A result cache of RESULT_CACHE_ENTRIES clues, or null if it is disabled.
+     */
+    static QueryResultCache createResultCache()
+    {
+        return (RESULT_CACHE_ENTRIES > 0) ? new QueryResultCache(RESULT_CACHE_ENTRIES, RESULT_CACHE_MB * 1024L * 1024L) : null;
+    }
+
+    static Reranker createReranker()
+    {
+        return new Reranker(RERANK_CANDIDATES, RERANK_BUDGET_MICROS * 1000, RERANK_CATEGORY_WEIGHT, RERANK_TITLE_WEIGHT, RERANK_PROXIMITY_WEIGHT);
+    }
+
+    /*
+     *  Rerank the hits of every search with the reranker from now on, or stop reranking if it is null.
+     */
+    static void setReranker (Reranker newReranker)
+    {
+        reranker = newReranker;
+    }
 
-        System.out.println("Searching ended ...");
+    static LRUQueryCache queryCache()
+    {
+        return queryCache;
+    }
 
-        long endTime = System.nanoTime();
-        runningTime.searching = (endTime - startTime);
+    private static void printCacheStats (QueryResultCache resultCache)
+    {
+        if (resultCache != null)
+            System.out.println("Result cache: " + resultCache.summary());
+        if (queryCache != null)
+            System.out.printf("Query cache: %d entries (%d KB), %d hits, %d misses, %d evictions\n",
+                queryCache.getCacheSize(), queryCache.ramBytesUsed() / 1024,
+                queryCache.getHitCount(), queryCache.getMissCount(), queryCache.getEvictionCount());
+    }
 
-        return numberCorrectlyFound;
+    /*
+     *  Record the rank of the question's answer among the hits, and print the question if it was found.
+     */
+    private static void checkAnswer (Questions question, QueryResult result, Evaluation evaluation)
+    {
+        int rank = evaluation.add(question, result);
+        if (rank > 0)
+        {
+            System.out.println("Question: " + question.Clue);
+            System.out.println("Expected Answer: " + question.Answer);
+            System.out.println("Found Answer: " + result.titles[rank - 1]);
+            System.out.printf("\n");
+        }
     }
 
     /*
      *  Tokenize and Lemmatize search queries
      */
+    @SuppressWarnings("try")
     private static ArrayList<Questions> LemmatizeQuestions(File questionsFile)
     {
         Questions question = null;
         ArrayList<Questions> questions = new ArrayList<>();
 
-        Properties props = new Properties();
-        props.setProperty("annotators", "tokenize, ssplit, pos, lemma");
-        StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+        ClueLemmatizer lemmatizer = new ClueLemmatizer();
 
         try (Scanner scanner = new Scanner(questionsFile))
         {
@@ -497,18 +1164,10 @@ public class Watson
                         currentLine++;
                         break;
                     case CLUE:
-                        Annotation clue = new Annotation(line);
-                        pipeline.annotate(clue);
-                        List<CoreMap> sentences = clue.get(SentencesAnnotation.class);
-                        String lemmas = "";
-                        for (CoreMap sentence : sentences)
+                        try (Metrics.Stage stage = Metrics.stage(CLUE_TIME))
                         {
-                            for (CoreLabel token : sentence.get(TokensAnnotation.class))
-                            {
-                                lemmas += (token.get(LemmaAnnotation.class) + " ");
-                            }
+                            question.Clue = lemmatizer.lemmatize(line);
                         }
-                        question.Clue = lemmas;
                         currentLine++;
                         break;
                     case ANSWER:
@@ -531,19 +1190,67 @@ public class Watson
     }
 
     /*
-     *  Calculate the MRR based on the rankings and positions of each answer within the relevant documents
+     *  Lemmatize every clue of the questions file both from the lemma dictionary and with the
+     *  CoreNLP pipeline, and print how often the dictionary had all tokens, how many tokens
+     *  and clues came out the same, and the time each path took per clue.
      */
-    private static double MRR (HashMap<String, Double> positions)
+    private static void evaluateLemmaDictionary (File questionsFile) throws java.io.IOException
     {
-        double mrr = 0.0;
-        double sumOfReciprocalRank = 0.0;
-        Iterator it = positions.entrySet().iterator();
-        while (it.hasNext())
+        LemmaDictionary dictionary = ClueLemmatizer.sharedDictionary();
+        if (dictionary == null)
+            throw new IOException("No lemma dictionary, set -Dwatson.lemmaDict to the file written when lemmatizing");
+
+        ArrayList<String> clues = new ArrayList<>();
+        try (Scanner scanner = new Scanner(questionsFile))
         {
-            Map.Entry pair = (Map.Entry)it.next();
-            sumOfReciprocalRank += (1.0/(double)pair.getValue());
+            for (int line = 0; scanner.hasNextLine(); line++)
+            {
+                String text = scanner.nextLine();
+                if (line % 4 == CLUE)
+                    clues.add(text);
+            }
+        }
+
+        ClueLemmatizer fast = new ClueLemmatizer(dictionary);
+        ClueLemmatizer slow = new ClueLemmatizer(null);
+        // Load the models before timing anything
+        fast.lookupLemmas("warm up");
+        slow.lemmatize("warm up");
+
+        int found = 0, sameClues = 0;
+        long sameTokens = 0, comparedTokens = 0, fastNanos = 0, slowNanos = 0;
+        for (String clue : clues)
+        {
+            long startTime = System.nanoTime();
+            String fromDictionary = fast.lookupLemmas(clue);
+            fastNanos += System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            String fromPipeline = slow.lemmatize(clue);
+            slowNanos += System.nanoTime() - startTime;
+
+            if (fromDictionary == null)
+                continue;
+            found++;
+            if (fromDictionary.equals(fromPipeline))
+                sameClues++;
+            String[] expected = fromPipeline.split(" ");
+            String[] actual = fromDictionary.split(" ");
+            for (int i = 0; i < Math.min(expected.length, actual.length); i++)
+            {
+                if (expected[i].equals(actual[i]))
+                    sameTokens++;
+            }
+            comparedTokens += Math.max(expected.length, actual.length);
         }
-        mrr = sumOfReciprocalRank/positions.size();
-        return mrr;
+
+        System.out.println("=======================================================");
+        System.out.println("Lemma dictionary vs. CoreNLP:");
+        System.out.printf("Clues fully found in the dictionary: %d/%d (%.1f%%)\n", found, clues.size(), 100.0 * found / Math.max(1, clues.size()));
+        System.out.printf("Tokens with the same lemma: %d/%d (%.2f%%)\n", sameTokens, comparedTokens, 100.0 * sameTokens / Math.max(1, comparedTokens));
+        System.out.printf("Clues with identical lemmas: %d/%d (%.1f%%)\n", sameClues, found, 100.0 * sameClues / Math.max(1, found));
+        System.out.printf("Dictionary: %.3f mSecs per clue, CoreNLP: %.3f mSecs per clue\n",
+            fastNanos / 1e6 / Math.max(1, clues.size()), slowNanos / 1e6 / Math.max(1, clues.size()));
+        System.out.println("Token lookups: " + ClueLemmatizer.stats());
     }
 }
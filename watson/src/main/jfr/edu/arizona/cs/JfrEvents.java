@@ -0,0 +1,58 @@
+package edu.arizona.cs;
+
+// Java Flight Recorder classes
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ *  The JFR events of the Metrics stages. This class is kept out of src/main/java and only
+ *  compiled by the jfr profile of the pom on JDK 11 and later, so that the rest of the
+ *  module still builds for Java 8. Metrics loads it by name after checking that the JVM
+ *  has jdk.jfr, and only times the stages when it is missing.
+ *
+ *  Record them with e.g. -XX:StartFlightRecording=filename=watson.jfr; they show up as
+ *  "Watson Stage" under the Watson category.
+ */
+final class JfrEvents implements Metrics.StageEvents
+{
+    JfrEvents ()
+    {
+    }
+
+    @Name("edu.arizona.cs.Stage")
+    @Label("Watson Stage")
+    @Category("Watson")
+    @Description("A timed stage of lemmatizing, indexing or searching")
+    static final class StageEvent extends Event
+    {
+        @Label("Stage")
+        String stage;
+
+        @Label("Detail")
+        String detail;
+    }
+
+    @Override
+    public Object begin (String stage, String detail)
+    {
+        StageEvent event = new StageEvent();
+        if (!event.isEnabled())
+            return null;
+        event.stage = stage;
+        event.detail = detail;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commit (Object event)
+    {
+        StageEvent stageEvent = (StageEvent) event;
+        stageEvent.end();
+        if (stageEvent.shouldCommit())
+            stageEvent.commit();
+    }
+}
@@ -0,0 +1,52 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+/**
+ * Unit test checking that batch search gives the results of the serial path.
+ */
+public class BatchSearcherTest
+{
+    @Test
+    public void batchResultsMatchSerialResults() throws Exception
+    {
+        Random random = new Random(42);
+        // Several segments, so that the segment executor has work to split
+        Directory directory = RandomCorpus.index(random, 200, 20, 50);
+
+        List<Questions> questions = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            Questions question = new Questions();
+            question.Clue = RandomCorpus.randomText(random, 3);
+            questions.add(question);
+        }
+
+        try (DirectoryReader reader = DirectoryReader.open(directory);
+             BatchSearcher batchSearcher = new BatchSearcher(reader, 4, 4, 10))
+        {
+            List<QueryResult> batch = batchSearcher.search(questions);
+
+            IndexSearcher searcher = new IndexSearcher(reader);
+            QueryParser parser = new QueryParser("content", Watson.createQueryAnalyzer());
+            for (int i = 0; i < questions.size(); i++)
+            {
+                QueryResult serial = Watson.search(searcher, parser, questions.get(i).Clue, 10);
+                assertArrayEquals(serial.titles, batch.get(i).titles);
+                assertArrayEquals(serial.scores, batch.get(i).scores, 0.0f);
+            }
+            assertEquals(questions.size(), batch.size());
+        }
+    }
+}
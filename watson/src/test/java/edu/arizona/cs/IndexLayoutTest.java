@@ -0,0 +1,83 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for the doc values index layout and the migration from stored fields.
+ */
+public class IndexLayoutTest
+{
+    private static final String[][] PAGES = {
+        { "Paris", "CATEGORIES: Cities", "Paris capital France Seine" },
+        { "Rome", "CATEGORIES: Cities", "Rome capital Italy Tiber" },
+        { "Seine", "NULL", "river Paris France" },
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void legacyIndexIsMigrated() throws Exception
+    {
+        Path indexPath = folder.getRoot().toPath().resolve("index");
+        try (Directory directory = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer())))
+        {
+            // The layout of earlier versions: everything stored
+            for (String[] page : PAGES)
+            {
+                Document document = new Document();
+                document.add(new TextField("title", page[0], Field.Store.YES));
+                document.add(new TextField("categories", page[1], Field.Store.YES));
+                document.add(new TextField("content", page[2], Field.Store.YES));
+                writer.addDocument(document);
+            }
+        }
+        String[] legacyTitles = search(indexPath, "capital France");
+        assertEquals("Paris", legacyTitles[0]);
+
+        assertEquals(PAGES.length, Watson.migrateIndex(indexPath));
+        assertTrue(Files.exists(indexPath.resolveSibling("index.legacy")));
+        assertArrayEquals(legacyTitles, search(indexPath, "capital France"));
+
+        try (Directory directory = FSDirectory.open(indexPath);
+             DirectoryReader reader = DirectoryReader.open(directory))
+        {
+            Document document = reader.document(0);
+            assertNull(document.get("title"));
+            assertNull(document.get("content"));
+        }
+    }
+
+    private static String[] search(Path indexPath, String clue) throws Exception
+    {
+        try (Directory directory = FSDirectory.open(indexPath);
+             DirectoryReader reader = DirectoryReader.open(directory))
+        {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            QueryParser parser = new QueryParser("content", new WhitespaceAnalyzer());
+            return Watson.search(searcher, parser, clue, 10).titles;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Path;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test checking that every index storage gives the same results.
+ */
+public class IndexStorageTest
+{
+    private static final String[] STORAGES = { "fs", "mmap", "mmap-preload", "nio", "heap" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void everyStorageSearchesTheSameIndex() throws Exception
+    {
+        Path indexPath = folder.getRoot().toPath().resolve("index");
+        try (Directory directory = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer())))
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                writer.addDocument(Watson.createDocument(RandomCorpus.page("Page " + i, null, "page" + (i % 7) + " page" + (i % 11) + " common")));
+                if (i % 30 == 29)
+                    writer.commit();
+            }
+        }
+
+        String[] expected = null;
+        for (String storage : STORAGES)
+        {
+            try (DirectoryReader reader = IndexStorage.openReader(indexPath, storage, 5))
+            {
+                assertEquals(100, reader.numDocs());
+                IndexSearcher searcher = new IndexSearcher(reader);
+                QueryParser parser = new QueryParser("content", new WhitespaceAnalyzer());
+                String[] titles = Watson.search(searcher, parser, "page3 page5", 10).titles;
+                if (expected == null)
+                    expected = titles;
+                assertArrayEquals(storage, expected, titles);
+            }
+        }
+    }
+
+    @Test
+    public void directoryIsClosedWithTheLastReopenedReader() throws Exception
+    {
+        Path indexPath = folder.getRoot().toPath().resolve("index");
+        try (Directory writerDirectory = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(writerDirectory, new IndexWriterConfig(new WhitespaceAnalyzer())))
+        {
+            writer.addDocument(Watson.createDocument(RandomCorpus.page("Page 0", null, "common")));
+            writer.commit();
+
+            DirectoryReader reader = IndexStorage.openReader(indexPath, "fs", 0);
+            Directory directory = reader.directory();
+            writer.addDocument(Watson.createDocument(RandomCorpus.page("Page 1", null, "common")));
+            writer.commit();
+            DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+            reader.close();
+
+            // The reopened reader still reads through the directory
+            assertEquals(2, reopened.numDocs());
+            assertEquals(2, new IndexSearcher(reopened).count(new MatchAllDocsQuery()));
+            directory.listAll();
+
+            reopened.close();
+            try
+            {
+                directory.listAll();
+                fail("the directory should be closed with the last reader");
+            }
+            catch (AlreadyClosedException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStorageIsRejected() throws Exception
+    {
+        IndexStorage.open(folder.getRoot().toPath(), "tape");
+    }
+}
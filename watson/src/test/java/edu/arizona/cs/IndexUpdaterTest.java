@@ -0,0 +1,86 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for updating and deleting single pages of an unsharded and a sharded index.
+ */
+public class IndexUpdaterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void updatesAreSearchableAfterRefreshAndDurableAfterClose() throws Exception
+    {
+        for (int numShards : new int[] { 1, 3 })
+        {
+            Path indexPath = folder.newFolder("index-" + numShards).toPath();
+            try (ShardedIndex index = ShardedIndex.create(indexPath, numShards, WhitespaceAnalyzer::new))
+            {
+                IndexingPipeline.PageSink sink = index.sink(false);
+                for (int i = 0; i < 20; i++)
+                    sink.accept(RandomCorpus.page("[[Page " + i + "]]", null, "paris france capital"));
+                sink.accept(RandomCorpus.page("[[Rome]]", null, "rome italy capital"));
+                index.commit();
+            }
+
+            try (IndexUpdater updater = new IndexUpdater(indexPath, false, null, 1, 0, 0))
+            {
+                IndexSearcher before = updater.searcherManager().acquire();
+                try
+                {
+                    updater.update(RandomCorpus.page("[[Rome]]", null, "rome tiber river"));
+                    updater.update(RandomCorpus.page("[[Berlin]]", null, "berlin spree river"));
+                    updater.delete("[[Page 3]]");
+                    updater.refresh();
+
+                    // A searcher acquired before the refresh keeps its point in time view
+                    assertArrayEquals(new String[] { "Rome" }, titles(before, "italy"));
+                    assertEquals(21, before.getIndexReader().numDocs());
+                }
+                finally
+                {
+                    updater.searcherManager().release(before);
+                }
+
+                IndexSearcher after = updater.searcherManager().acquire();
+                try
+                {
+                    assertEquals(0, titles(after, "italy").length);
+                    assertEquals(2, titles(after, "river").length);
+                    assertEquals(21, after.getIndexReader().numDocs());
+                }
+                finally
+                {
+                    updater.searcherManager().release(after);
+                }
+            }
+
+            try (IndexReader reader = ShardedIndex.openReader(indexPath, "fs", 0))
+            {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                assertEquals(21, reader.numDocs());
+                assertEquals(2, titles(searcher, "river").length);
+                assertEquals(19, titles(searcher, "paris").length);
+            }
+        }
+    }
+
+    private static String[] titles(IndexSearcher searcher, String clue) throws Exception
+    {
+        QueryParser parser = new QueryParser("content", new WhitespaceAnalyzer());
+        return Watson.search(searcher, parser, clue, 100).titles;
+    }
+}
@@ -0,0 +1,48 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test checking that a pipeline run in order stores the lemmatized pages in the order they were read.
+ */
+public class IndexingPipelineTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lemmatizedCacheKeepsTheInputOrder() throws Exception
+    {
+        // Long and short pages take turns, so later pages keep overtaking earlier ones
+        List<Wiki_Page> pages = new ArrayList<>();
+        for (int i = 0; i < 24; i++)
+        {
+            StringBuilder content = new StringBuilder();
+            for (int j = 0; j < (i % 2 == 0 ? 12 : 1); j++)
+                content.append("Paris is the capital of France and lies on the Seine. ");
+            pages.add(RandomCorpus.page("Page " + i, null, content.toString()));
+        }
+
+        Path path = folder.getRoot().toPath().resolve("pages.cache");
+        try (LemmaCache.Writer writer = new LemmaCache.Writer(path))
+        {
+            IndexingPipeline pipeline = new IndexingPipeline(writer::add, 3, 2, 2).inOrder();
+            assertEquals(pages.size(), pipeline.run(RandomCorpus.source(pages), true));
+        }
+
+        try (LemmaCache.Reader reader = new LemmaCache.Reader(path))
+        {
+            assertEquals(pages.size(), reader.size());
+            for (int i = 0; i < pages.size(); i++)
+                assertEquals("Page " + i, reader.get(i).Title);
+        }
+    }
+}
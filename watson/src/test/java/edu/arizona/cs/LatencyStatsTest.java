@@ -0,0 +1,44 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the latency histogram.
+ */
+public class LatencyStatsTest
+{
+    @Test
+    public void percentilesAreWithinOnePercent()
+    {
+        LatencyStats stats = new LatencyStats();
+        for (long micros = 1; micros <= 10000; micros++)
+            stats.record(micros * 1000);
+
+        assertEquals(10000, stats.count());
+        assertEquals(10000000, stats.maxNanos());
+        assertWithinOnePercent(5000000, stats.percentileNanos(50));
+        assertWithinOnePercent(9900000, stats.percentileNanos(99));
+        assertEquals(10000000, stats.percentileNanos(100));
+    }
+
+    @Test
+    public void bucketsCoverTheirValues()
+    {
+        long[] values = { 0, 1, 255, 256, 257, 1000, 123456789L, Long.MAX_VALUE };
+        for (long value : values)
+        {
+            int bucket = LatencyStats.bucketOf(value);
+            assertTrue(value <= LatencyStats.highestValueOf(bucket));
+            if (bucket > 0)
+                assertTrue(value > LatencyStats.highestValueOf(bucket - 1));
+        }
+    }
+
+    private static void assertWithinOnePercent(long expected, long actual)
+    {
+        assertTrue("expected ~" + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 100);
+    }
+}
@@ -0,0 +1,74 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for the binary lemmatized page cache.
+ */
+public class LemmaCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pagesRoundTripThroughTheCache() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("pages.cache");
+        try (LemmaCache.Writer writer = new LemmaCache.Writer(path))
+        {
+            writer.add(RandomCorpus.page("Paris", "CATEGORIES: Cities", "Paris  France capital  TITLE "));
+            writer.add(RandomCorpus.page("Empty", null, ""));
+            writer.add(RandomCorpus.page("Zürich", "CATEGORIES: Cities", "Zürich Switzerland Paris"));
+        }
+
+        try (LemmaCache.Reader reader = new LemmaCache.Reader(path))
+        {
+            assertEquals(3, reader.size());
+
+            Wiki_Page first = reader.get(0);
+            assertEquals("Paris", first.Title);
+            assertEquals("CATEGORIES: Cities", first.Category);
+            assertEquals("Paris France capital TITLE", first.Content);
+
+            Wiki_Page second = reader.get(1);
+            assertNull(second.Category);
+            assertEquals("", second.Content);
+
+            assertEquals("Zürich Switzerland Paris", reader.get(2).Content);
+        }
+    }
+
+    @Test
+    public void splitCoversEveryPageOnce() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("pages.cache");
+        try (LemmaCache.Writer writer = new LemmaCache.Writer(path))
+        {
+            for (int i = 0; i < 10; i++)
+                writer.add(RandomCorpus.page("Page " + i, null, "lemma" + i));
+        }
+
+        try (LemmaCache.Reader reader = new LemmaCache.Reader(path))
+        {
+            List<PageSource> sources = reader.split(3);
+            assertEquals(3, sources.size());
+
+            int expected = 0;
+            for (PageSource source : sources)
+            {
+                Wiki_Page wikiPage;
+                while ((wikiPage = source.next()) != null)
+                    assertEquals("Page " + expected++, wikiPage.Title);
+            }
+            assertEquals(10, expected);
+        }
+    }
+}
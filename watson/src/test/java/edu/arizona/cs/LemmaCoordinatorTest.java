@@ -0,0 +1,162 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for coordinating workers over a socket, with a lost worker and a failing unit.
+ */
+public class LemmaCoordinatorTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lostUnitIsRetriedAndOutputsAreMerged() throws Exception
+    {
+        File[] wikiFiles = wikiFiles(4, 5);
+        Path indexPath = folder.getRoot().toPath().resolve("index");
+        LemmaCoordinator coordinator = new LemmaCoordinator(folder.newFolder("spool").toPath(), "index", false, 2, 1, 1, 60000);
+        int port = coordinator.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try
+        {
+            Future<Long> run = executor.submit(() -> coordinator.run(wikiFiles, indexPath, 0));
+
+            // A worker that dies as soon as it has been handed a unit
+            try (Socket socket = new Socket("127.0.0.1", port);
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream in = new DataInputStream(socket.getInputStream()))
+            {
+                out.writeUTF(LemmaCoordinator.HELLO);
+                out.writeUTF("doomed");
+                assertEquals(LemmaCoordinator.UNIT, in.readUTF());
+            }
+
+            Future<Integer> first = executor.submit(() -> LemmaCoordinator.work("127.0.0.1", port));
+            Future<Integer> second = executor.submit(() -> LemmaCoordinator.work("127.0.0.1", port));
+
+            assertEquals(20L, (long) run.get());
+            assertEquals(4, first.get() + second.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(2, ShardedIndex.numShards(indexPath));
+        try (IndexReader reader = ShardedIndex.openReader(indexPath, "fs", 0))
+        {
+            assertEquals(20, reader.numDocs());
+            SortedDocValues titles = MultiDocValues.getSortedValues(reader, "title");
+            Set<String> distinct = new HashSet<>();
+            for (int doc = titles.nextDoc(); doc != SortedDocValues.NO_MORE_DOCS; doc = titles.nextDoc())
+                distinct.add(titles.binaryValue().utf8ToString());
+            assertEquals(20, distinct.size());
+            assertTrue(distinct.contains("Page 3 4"));
+        }
+        // The outputs of all attempts are gone from the spool
+        assertEquals(0, folder.getRoot().toPath().resolve("spool").toFile().list().length);
+    }
+
+    @Test
+    public void cacheOutputsAreConcatenatedInFileOrder() throws Exception
+    {
+        File[] wikiFiles = wikiFiles(3, 2);
+        Path cachePath = folder.getRoot().toPath().resolve("lemmas.cache");
+        LemmaCoordinator coordinator = new LemmaCoordinator(folder.newFolder("spool").toPath(), "cache", false, 1, 2, 0, 60000);
+        int port = coordinator.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try
+        {
+            Future<Long> run = executor.submit(() -> coordinator.run(wikiFiles, cachePath, 0));
+            executor.submit(() -> LemmaCoordinator.work("127.0.0.1", port));
+            assertEquals(6L, (long) run.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        try (LemmaCache.Reader cache = new LemmaCache.Reader(cachePath))
+        {
+            assertEquals(6, cache.size());
+            // The units are merged in file order, so the pages of the last file come last
+            assertTrue(cache.get(4).Title.startsWith("Page 2 "));
+        }
+    }
+
+    @Test
+    public void unitFailingEveryAttemptFailsTheRun() throws Exception
+    {
+        File[] wikiFiles = wikiFiles(2, 1);
+        wikiFiles[1] = new File(folder.getRoot(), "missing.txt");
+        Path indexPath = folder.getRoot().toPath().resolve("index");
+        LemmaCoordinator coordinator = new LemmaCoordinator(folder.newFolder("spool").toPath(), "index", false, 1, 1, 2, 60000);
+        int port = coordinator.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try
+        {
+            Future<Long> run = executor.submit(() -> coordinator.run(wikiFiles, indexPath, 0));
+            Future<Integer> worker = executor.submit(() -> LemmaCoordinator.work("127.0.0.1", port));
+            try
+            {
+                run.get();
+                fail("the missing file should fail its unit");
+            }
+            catch (java.util.concurrent.ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof IOException);
+                assertTrue(e.getCause().getMessage().contains("unit 1 (missing.txt)"));
+            }
+            assertEquals(1, (int) worker.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        assertTrue(!Files.exists(indexPath));
+        // The output of the unit that did finish is not left in the spool
+        assertEquals(0, folder.getRoot().toPath().resolve("spool").toFile().list().length);
+    }
+
+    private File[] wikiFiles(int numFiles, int pagesPerFile) throws IOException
+    {
+        File[] files = new File[numFiles];
+        for (int f = 0; f < numFiles; f++)
+        {
+            StringBuilder text = new StringBuilder();
+            for (int p = 0; p < pagesPerFile; p++)
+                text.append("[[Page ").append(f).append(' ').append(p).append("]]\nCATEGORIES: Test\nsome words of page ").append(p).append('\n');
+            files[f] = folder.newFile("wiki-" + f + ".txt");
+            Files.write(files[f].toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return files;
+    }
+}
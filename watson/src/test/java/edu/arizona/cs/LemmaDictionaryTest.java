@@ -0,0 +1,66 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for the surface form to lemma dictionary.
+ */
+public class LemmaDictionaryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mostFrequentLemmaIsKept() throws Exception
+    {
+        LemmaDictionary.Collector collector = new LemmaDictionary.Collector();
+        collector.add("saw", "see");
+        collector.add("saw", "see");
+        collector.add("saw", "saw");
+        collector.add("cities", "city");
+        collector.add("Paris", "Paris");
+        collector.add("Zürich", "Zürich");
+
+        Path path = folder.getRoot().toPath().resolve("lemmas.fst");
+        collector.write(path);
+
+        LemmaDictionary dictionary = LemmaDictionary.load(path);
+        assertEquals(4, dictionary.size());
+        assertEquals("see", dictionary.lookup("saw"));
+        assertEquals("city", dictionary.lookup("cities"));
+        assertEquals("Paris", dictionary.lookup("Paris"));
+        assertEquals("Zürich", dictionary.lookup("Zürich"));
+        assertNull(dictionary.lookup("paris"));
+        assertNull(dictionary.lookup("Pari"));
+    }
+
+    @Test
+    public void existingEntriesAreMerged() throws Exception
+    {
+        LemmaDictionary.Collector first = new LemmaDictionary.Collector();
+        first.add("went", "go");
+        first.add("dogs", "dog");
+        Path path = folder.getRoot().toPath().resolve("lemmas.fst");
+        first.write(path);
+
+        LemmaDictionary.Collector second = new LemmaDictionary.Collector();
+        second.addAll(LemmaDictionary.load(path));
+        second.add("cats", "cat");
+        second.add("dogs", "dogs");
+        second.add("dogs", "dogs");
+        second.write(path);
+
+        LemmaDictionary dictionary = LemmaDictionary.load(path);
+        assertEquals(3, dictionary.size());
+        assertEquals("go", dictionary.lookup("went"));
+        assertEquals("cat", dictionary.lookup("cats"));
+        assertEquals("dogs", dictionary.lookup("dogs"));
+    }
+}
@@ -0,0 +1,72 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for the incremental lemmatizing journal.
+ */
+public class LemmaJournalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reopenedJournalKnowsWhichPagesAreCurrent() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("pages.journal");
+        byte[] parisHash = LemmaJournal.hash(RandomCorpus.page("Paris", null, "Paris is the capital of France."));
+        try (LemmaJournal journal = new LemmaJournal(path, 10))
+        {
+            journal.append(RandomCorpus.page("Paris", null, "Paris France"), parisHash);
+        }
+
+        try (LemmaJournal journal = new LemmaJournal(path, 10))
+        {
+            assertTrue(journal.isCurrent("Paris", parisHash));
+            assertFalse(journal.isCurrent("Paris", LemmaJournal.hash(RandomCorpus.page("Paris", null, "Paris is in France."))));
+            assertFalse(journal.isCurrent("Rome", parisHash));
+            assertEquals("Paris France", journal.read("Paris").Content);
+            assertNull(journal.read("Rome"));
+        }
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsDiscarded() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("pages.journal");
+        byte[] hash = new byte[LemmaJournal.HASH_SIZE];
+        long sizeAfterFirst;
+        try (LemmaJournal journal = new LemmaJournal(path, 1))
+        {
+            journal.append(RandomCorpus.page("Paris", null, "Paris France"), hash);
+            sizeAfterFirst = path.toFile().length();
+            journal.append(RandomCorpus.page("Rome", null, "Rome Italy"), hash);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+        {
+            channel.truncate(path.toFile().length() - 3);
+        }
+
+        try (LemmaJournal journal = new LemmaJournal(path, 1))
+        {
+            assertEquals(1, journal.size());
+            assertEquals(sizeAfterFirst, path.toFile().length());
+            assertTrue(journal.isCurrent("Paris", Arrays.copyOf(hash, hash.length)));
+
+            journal.append(RandomCorpus.page("Rome", null, "Rome Italy"), hash);
+            assertEquals("Rome Italy", journal.read("Rome").Content);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test checking that the mapped splitter reads the pages of the RawWikiReader.
+ */
+public class MappedWikiSplitterTest
+{
+    private static final String FIRST_FILE =
+        "text before the first title\n"
+        + "[[Paris]]\n"
+        + "\n"
+        + "CATEGORIES: Capitals in Europe\n"
+        + "Paris is the capital of France.\n"
+        + "It lies on the Seine.\n"
+        + "[[not a title\n"
+        + "[[Zürich]] (city)\r\n"
+        + "\r\n"
+        + "Zürich is the largest city of Switzerland.\r\n"
+        + "[[]]\n"
+        + "[[a]]\r"
+        + "carriage returns only\r"
+        + "[[Empty]]";
+    private static final String SECOND_FILE =
+        "[[Rome]]\n"
+        + "CATEGORIES: Capitals\n"
+        + "Rome is the capital of Italy.\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pagesMatchRawWikiReader() throws Exception
+    {
+        File[] files = files();
+        List<Wiki_Page> expected = read(new RawWikiReader(files));
+
+        // Chunks of a few bytes, so that chunk boundaries fall inside lines and line terminators
+        for (int chunkSize : new int[] { 1, 3, 7, 1 << 20 })
+        {
+            MappedWikiSplitter splitter = new MappedWikiSplitter(files, 3, chunkSize);
+            assertEquals(expected.size(), splitter.size());
+            assertPagesEqual(expected, read(splitter.source()));
+        }
+    }
+
+    @Test
+    public void filesMappedInWindowsGiveTheSamePages() throws Exception
+    {
+        File[] files = files();
+        List<Wiki_Page> expected = read(new RawWikiReader(files));
+
+        // Windows smaller than the files, so that they have to end at page boundaries
+        for (int windowSize : new int[] { 128, 150, 200 })
+        {
+            MappedWikiSplitter splitter = new MappedWikiSplitter(files, 2, 7, windowSize);
+            assertPagesEqual(expected, read(splitter.source()));
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void pageLargerThanAWindowIsRejected() throws Exception
+    {
+        new MappedWikiSplitter(files(), 1, 1 << 20, 16);
+    }
+
+    @Test
+    public void splitRangesCoverAllPagesInOrder() throws Exception
+    {
+        File[] files = files();
+        MappedWikiSplitter splitter = new MappedWikiSplitter(files, 1);
+        List<Wiki_Page> expected = read(splitter.source());
+
+        for (int parts = 1; parts <= 8; parts++)
+        {
+            List<Wiki_Page> pages = new ArrayList<>();
+            List<PageSource> sources = splitter.split(parts);
+            // Ranges are cut by bytes, so a large page can leave fewer ranges than asked for
+            assertTrue(sources.size() >= 1 && sources.size() <= parts);
+            for (PageSource source : sources)
+                pages.addAll(read(source));
+            assertPagesEqual(expected, pages);
+        }
+    }
+
+    private File[] files() throws Exception
+    {
+        File first = folder.newFile("a.txt");
+        File second = folder.newFile("b.txt");
+        Files.write(first.toPath(), FIRST_FILE.getBytes(StandardCharsets.UTF_8));
+        Files.write(second.toPath(), SECOND_FILE.getBytes(StandardCharsets.UTF_8));
+        return new File[] { first, second };
+    }
+
+    private static List<Wiki_Page> read(PageSource source) throws Exception
+    {
+        List<Wiki_Page> pages = new ArrayList<>();
+        try (PageSource pageSource = source)
+        {
+            Wiki_Page wikiPage;
+            while ((wikiPage = pageSource.next()) != null)
+                pages.add(wikiPage);
+        }
+        return pages;
+    }
+
+    private static void assertPagesEqual(List<Wiki_Page> expected, List<Wiki_Page> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).Title, actual.get(i).Title);
+            assertEquals(expected.get(i).Category, actual.get(i).Category);
+            assertEquals(expected.get(i).Content, actual.get(i).Content);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the metrics timers, counters and exports.
+ */
+public class MetricsTest
+{
+    @Test
+    @SuppressWarnings("try")
+    public void stagesAreTimedWithNanosecondPrecision() throws Exception
+    {
+        Metrics.Timer timer = Metrics.timer("test.stage");
+        long before = timer.count();
+        try (Metrics.Stage stage = Metrics.stage(timer, "detail"))
+        {
+            Thread.sleep(2);
+        }
+        assertEquals(before + 1, timer.count());
+        assertTrue(timer.totalNanos() >= 2000000);
+        assertTrue(timer.stats().maxNanos() < 10000000000L);
+    }
+
+    @Test
+    public void exportsContainTimersAndCounters()
+    {
+        Metrics.timer("test.export").record(1500000);
+        Metrics.counter("test.pages").add(42);
+
+        String json = Metrics.toJson();
+        assertTrue(json, json.contains("\"test.export\":{\"count\":1,\"totalNanos\":1500000"));
+        assertTrue(json, json.contains("\"test.pages\":42"));
+
+        String prometheus = Metrics.toPrometheus();
+        assertTrue(prometheus, prometheus.contains("# TYPE watson_test_export_seconds summary\n"));
+        assertTrue(prometheus, prometheus.contains("watson_test_export_seconds_count 1\n"));
+        assertTrue(prometheus, prometheus.contains("watson_test_export_seconds_sum 0.001500000\n"));
+        assertTrue(prometheus, prometheus.contains("watson_test_pages_total 42\n"));
+    }
+}
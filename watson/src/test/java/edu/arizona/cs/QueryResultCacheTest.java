@@ -0,0 +1,92 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+/**
+ * Unit test for the query result cache.
+ */
+public class QueryResultCacheTest
+{
+    private static QueryResult result(String title)
+    {
+        return new QueryResult(new String[] { title }, new float[] { 1.0f });
+    }
+
+    private static void addPage(IndexWriter writer, String title) throws Exception
+    {
+        writer.addDocument(Watson.createDocument(RandomCorpus.page(title, null, "paris france")));
+        writer.commit();
+    }
+
+    @Test
+    public void keyIgnoresWhitespace()
+    {
+        assertEquals(QueryResultCache.key("capital  of France ", 10), QueryResultCache.key(" capital of\tFrance", 10));
+        assertNotEquals(QueryResultCache.key("capital", 10), QueryResultCache.key("capital", 5));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws Exception
+    {
+        Directory directory = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer())))
+        {
+            addPage(writer, "Paris");
+        }
+
+        try (DirectoryReader reader = DirectoryReader.open(directory))
+        {
+            QueryResultCache cache = new QueryResultCache(2, Long.MAX_VALUE);
+            cache.put(reader, "a", result("A"));
+            cache.put(reader, "b", result("B"));
+            assertNotNull(cache.get(reader, "a"));
+            cache.put(reader, "c", result("C"));
+
+            assertNull(cache.get(reader, "b"));
+            assertNotNull(cache.get(reader, "a"));
+            assertNotNull(cache.get(reader, "c"));
+            assertEquals(2, cache.size());
+            assertEquals(1, cache.evictions());
+            assertEquals(3, cache.hits());
+            assertEquals(1, cache.misses());
+        }
+    }
+
+    @Test
+    public void newReaderInvalidatesTheCache() throws Exception
+    {
+        Directory directory = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer())))
+        {
+            addPage(writer, "Paris");
+            QueryResultCache cache = new QueryResultCache(10, Long.MAX_VALUE);
+            QueryResult paris = result("Paris");
+
+            try (DirectoryReader reader = DirectoryReader.open(directory))
+            {
+                cache.put(reader, "paris", paris);
+                assertSame(paris, cache.get(reader, "paris"));
+
+                addPage(writer, "France");
+                try (DirectoryReader reopened = DirectoryReader.openIfChanged(reader))
+                {
+                    assertNull(cache.get(reopened, "paris"));
+                    assertEquals(0, cache.size());
+                    assertEquals(1, cache.invalidations());
+                }
+            }
+        }
+    }
+}
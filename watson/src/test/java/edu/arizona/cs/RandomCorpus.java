@@ -0,0 +1,97 @@
+package edu.arizona.cs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Random pages and clues over a small vocabulary, shared by the tests that compare search paths,
+ * and the page factory every test uses.
+ */
+final class RandomCorpus
+{
+    static final String[] WORDS = { "paris", "france", "capital", "seine", "rome", "italy", "river", "city" };
+
+    private RandomCorpus() {}
+
+    static String randomText(Random random, int numWords)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < numWords; i++)
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        return text.toString().trim();
+    }
+
+    /**
+     * A page with the title as given, so wrap it in "[[ ]]" where the raw form is expected.
+     */
+    static Wiki_Page page(String title, String category, String content)
+    {
+        Wiki_Page wikiPage = new Wiki_Page();
+        wikiPage.Title = title;
+        wikiPage.Category = category;
+        wikiPage.Content = content;
+        return wikiPage;
+    }
+
+    /**
+     * Pages titled "[[Page i]]" of numWords random words each.
+     */
+    static List<Wiki_Page> pages(Random random, int numPages, int numWords)
+    {
+        List<Wiki_Page> pages = new ArrayList<>();
+        for (int i = 0; i < numPages; i++)
+            pages.add(page("[[Page " + i + "]]", null, randomText(random, numWords)));
+        return pages;
+    }
+
+    /**
+     * An in-memory index of random pages, committed every pagesPerSegment pages so that it
+     * has several segments.
+     */
+    static Directory index(Random random, int numPages, int numWords, int pagesPerSegment) throws IOException
+    {
+        Directory directory = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer())))
+        {
+            List<Wiki_Page> pages = pages(random, numPages, numWords);
+            for (int i = 0; i < pages.size(); i++)
+            {
+                writer.addDocument(Watson.createDocument(pages.get(i)));
+                if (i % pagesPerSegment == pagesPerSegment - 1)
+                    writer.commit();
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * A source handing out copies of the pages, so that a pipeline may change them.
+     */
+    static PageSource source(List<Wiki_Page> pages)
+    {
+        return new PageSource()
+        {
+            private int next = 0;
+
+            @Override
+            public Wiki_Page next()
+            {
+                if (next >= pages.size())
+                    return null;
+                Wiki_Page wikiPage = pages.get(next++);
+                return page(wikiPage.Title, wikiPage.Category, wikiPage.Content);
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+}
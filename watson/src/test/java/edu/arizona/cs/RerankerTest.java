@@ -0,0 +1,131 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for reranking the first stage hits on category and proximity, within a budget.
+ */
+public class RerankerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void stopReranking()
+    {
+        Watson.setReranker(null);
+    }
+
+    @Test
+    public void categoryOverlapLiftsMatchingPage() throws Exception
+    {
+        try (IndexReader reader = index(
+                 RandomCorpus.page("[[Lima]]", "CATEGORIES: Capitals in South America", "capital city peru capital"),
+                 RandomCorpus.page("[[Madrid]]", "CATEGORIES: Spanish cities, Capitals in Europe", "capital city spain")))
+        {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            assertArrayEquals(new String[] { "Lima", "Madrid" }, titles(searcher, "capital city", "SPANISH CITIES"));
+
+            Watson.setReranker(new Reranker(10, 0, 1f, 0f, 0f));
+            assertArrayEquals(new String[] { "Madrid", "Lima" }, titles(searcher, "capital city", "SPANISH CITIES"));
+            // Without a category only the first stage score is left
+            assertArrayEquals(new String[] { "Lima", "Madrid" }, titles(searcher, "capital city", null));
+        }
+    }
+
+    @Test
+    public void closerClueTermsRankHigher() throws Exception
+    {
+        try (IndexReader reader = index(
+                 RandomCorpus.page("[[Far]]", "NULL", "alpha gamma delta beta"),
+                 RandomCorpus.page("[[Near]]", "NULL", "gamma alpha beta delta")))
+        {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            assertArrayEquals(new String[] { "Far", "Near" }, titles(searcher, "alpha beta", null));
+
+            Watson.setReranker(new Reranker(10, 0, 0f, 0f, 1f));
+            assertArrayEquals(new String[] { "Near", "Far" }, titles(searcher, "alpha beta", null));
+        }
+    }
+
+    @Test
+    public void titleInTheClueIsPushedDownEvenWhenItEndsInS() throws Exception
+    {
+        try (IndexReader reader = index(
+                 RandomCorpus.page("[[Paris]]", "NULL", "paris capital paris"),
+                 RandomCorpus.page("[[France]]", "NULL", "paris capital seine river country europe")))
+        {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            assertArrayEquals(new String[] { "Paris", "France" }, titles(searcher, "paris capital", null));
+
+            // "Paris" loses its "s" as a title word, and must as a clue word too
+            Watson.setReranker(new Reranker(10, 0, 0f, -1f, 0f));
+            assertArrayEquals(new String[] { "France", "Paris" }, titles(searcher, "paris capital", null));
+        }
+    }
+
+    @Test
+    public void exhaustedBudgetKeepsFirstStageOrder() throws Exception
+    {
+        try (IndexReader reader = index(
+                 RandomCorpus.page("[[Lima]]", "CATEGORIES: Capitals in South America", "capital city peru capital"),
+                 RandomCorpus.page("[[Madrid]]", "CATEGORIES: Spanish cities", "capital city spain")))
+        {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Metrics.Counter truncated = Metrics.counter("rerank.truncated");
+            long truncatedBefore = truncated.get();
+
+            // A budget of 1 ns is used up before the first candidate
+            Watson.setReranker(new Reranker(10, 1, 1f, 0f, 1f));
+            assertArrayEquals(new String[] { "Lima", "Madrid" }, titles(searcher, "capital city", "SPANISH CITIES"));
+            assertEquals(truncatedBefore + 1, truncated.get());
+
+            // Results cut short by the budget are not cached
+            QueryResultCache resultCache = new QueryResultCache(100, 1 << 20);
+            QueryParser parser = new QueryParser("content", new WhitespaceAnalyzer());
+            assertTrue(Watson.search(searcher, parser, resultCache, "capital city", "SPANISH CITIES", 10).truncated);
+            assertEquals(0, resultCache.size());
+        }
+    }
+
+    @Test
+    public void categoryTermsAreNormalized()
+    {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("capital", "europe", "1990", "film", "glass", "world")),
+            Reranker.terms("CATEGORIES: Capitals in Europe, 1990s films, Glass of the world"));
+    }
+
+    private IndexReader index(Wiki_Page... pages) throws Exception
+    {
+        Path indexPath = folder.newFolder("index").toPath();
+        try (ShardedIndex index = ShardedIndex.create(indexPath, 1, WhitespaceAnalyzer::new))
+        {
+            IndexingPipeline.PageSink sink = index.sink(false);
+            for (Wiki_Page page : pages)
+                sink.accept(page);
+            index.commit();
+        }
+        return ShardedIndex.openReader(indexPath, "fs", 0);
+    }
+
+    private static String[] titles(IndexSearcher searcher, String clue, String category) throws Exception
+    {
+        QueryParser parser = new QueryParser("content", new WhitespaceAnalyzer());
+        return Watson.search(searcher, parser, clue, category, 10).titles;
+    }
+}
@@ -0,0 +1,195 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for the sentence cache: LRU memory tier, log on disk, its recovery and concurrent use.
+ */
+public class SentenceCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] entry(int size)
+    {
+        byte[] entry = new byte[size];
+        Arrays.fill(entry, (byte) size);
+        return entry;
+    }
+
+    @Test
+    public void cachedSentencesGiveTheSameTermsAsTheFullPipeline() throws Exception
+    {
+        String text = "Paris is the capital of France. He saw the saw in Rome in 1990. Paris is the capital of France.";
+        Path path = folder.getRoot().toPath().resolve("sentences.cache");
+        List<String> expected = terms(new PageLemmatizer(null, null), text);
+        assertTrue(expected.contains("Paris 0 5 NNP"));
+        try (SentenceCache cache = new SentenceCache(path, 1 << 20))
+        {
+            PageLemmatizer cached = new PageLemmatizer(null, cache);
+            // Once annotating every sentence, once replaying them all from the cache
+            assertEquals(expected, terms(cached, text));
+            assertEquals(expected, terms(cached, text));
+            assertEquals(4, cache.hits());
+        }
+    }
+
+    private static List<String> terms(PageLemmatizer lemmatizer, String text)
+    {
+        List<String> terms = new ArrayList<>();
+        lemmatizer.analyze(text, (term, begin, end, pos) -> terms.add(term + " " + begin + " " + end + " " + pos));
+        return terms;
+    }
+
+    @Test
+    public void sentencesAreCachedAcrossRuns() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("sentences.cache");
+        byte[] paris = SentenceCache.hash("v1", "Paris is the capital of France.");
+        byte[] rome = SentenceCache.hash("v1", "Rome is the capital of Italy.");
+        try (SentenceCache cache = new SentenceCache(path, 1 << 20))
+        {
+            assertNull(cache.get(paris));
+            cache.put(paris, entry(3), 2000000);
+            cache.put(rome, entry(5), 1000000);
+            assertArrayEquals(entry(3), cache.get(paris));
+            assertEquals(1, cache.hits());
+            assertEquals(1, cache.misses());
+            assertEquals(2000000, cache.cpuSavedNanos());
+        }
+
+        try (SentenceCache cache = new SentenceCache(path, 1 << 20))
+        {
+            assertEquals(2, cache.diskSize());
+            assertEquals(0, cache.size());
+            assertArrayEquals(entry(5), cache.get(rome));
+            assertArrayEquals(entry(5), cache.get(rome));
+            assertEquals(2, cache.hits());
+            assertEquals(1, cache.diskHits());
+            assertEquals(2000000, cache.cpuSavedNanos());
+            // Another configuration never sees these entries
+            assertNull(cache.get(SentenceCache.hash("v2", "Rome is the capital of Italy.")));
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedSentencesLeaveMemoryButNotDisk() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("sentences.cache");
+        try (SentenceCache cache = new SentenceCache(path, 1000))
+        {
+            for (int i = 0; i < 20; i++)
+                cache.put(SentenceCache.hash("v1", "sentence " + i), entry(100), 1000);
+            assertEquals(4, cache.size());
+            assertEquals(20, cache.diskSize());
+            assertArrayEquals(entry(100), cache.get(SentenceCache.hash("v1", "sentence 0")));
+            assertEquals(1, cache.diskHits());
+        }
+
+        try (SentenceCache memoryOnly = new SentenceCache(null, 1000))
+        {
+            for (int i = 0; i < 20; i++)
+                memoryOnly.put(SentenceCache.hash("v1", "sentence " + i), entry(100), 1000);
+            assertNull(memoryOnly.get(SentenceCache.hash("v1", "sentence 0")));
+            assertArrayEquals(entry(100), memoryOnly.get(SentenceCache.hash("v1", "sentence 19")));
+        }
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsDiscarded() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("sentences.cache");
+        byte[] first = SentenceCache.hash("v1", "first");
+        byte[] second = SentenceCache.hash("v1", "second");
+        long sizeAfterFirst;
+        try (SentenceCache cache = new SentenceCache(path, 1 << 20))
+        {
+            cache.put(first, entry(7), 1000);
+            sizeAfterFirst = path.toFile().length();
+            cache.put(second, entry(9), 1000);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+        {
+            channel.truncate(path.toFile().length() - 3);
+        }
+
+        try (SentenceCache cache = new SentenceCache(path, 1 << 20))
+        {
+            assertEquals(1, cache.diskSize());
+            assertEquals(sizeAfterFirst, path.toFile().length());
+            assertArrayEquals(entry(7), cache.get(first));
+            assertNull(cache.get(second));
+
+            // While it is open, a second cache on the same log only works in memory
+            try (SentenceCache other = new SentenceCache(path, 1 << 20))
+            {
+                assertEquals(0, other.diskSize());
+                assertNull(other.get(first));
+            }
+            cache.put(second, entry(9), 1000);
+            assertEquals(2, cache.diskSize());
+        }
+    }
+
+    @Test
+    public void concurrentLookupsAndPutsAgree() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("sentences.cache");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        // Small enough that entries keep being evicted and read back from the log
+        try (SentenceCache cache = new SentenceCache(path, 20000))
+        {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+            {
+                workers.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < 2000; i++)
+                    {
+                        int sentence = (i * 7919) % 500;
+                        byte[] hash = SentenceCache.hash("v1", "sentence " + sentence);
+                        byte[] cached = cache.get(hash);
+                        if (cached == null)
+                            cache.put(hash, entry(1 + sentence % 100), 1000);
+                        else
+                            assertArrayEquals(entry(1 + sentence % 100), cached);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers)
+                worker.get();
+
+            assertEquals(500, cache.diskSize());
+            assertEquals(16000, cache.hits() + cache.misses());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        try (SentenceCache cache = new SentenceCache(path, 20000))
+        {
+            assertEquals(500, cache.diskSize());
+            for (int sentence = 0; sentence < 500; sentence++)
+                assertArrayEquals(entry(1 + sentence % 100), cache.get(SentenceCache.hash("v1", "sentence " + sentence)));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for building, searching and rebuilding a sharded index.
+ */
+public class ShardedIndexTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shardedScoresMatchUnshardedScores() throws Exception
+    {
+        List<Wiki_Page> pages = RandomCorpus.pages(new Random(42), 200, 20);
+        Path single = folder.newFolder("single").toPath();
+        Path sharded = folder.newFolder("sharded").toPath();
+        build(single, 1, pages);
+        build(sharded, 4, pages);
+
+        assertEquals(1, ShardedIndex.numShards(single));
+        assertEquals(4, ShardedIndex.numShards(sharded));
+
+        try (IndexReader singleReader = ShardedIndex.openReader(single, "fs", 0);
+             IndexReader shardedReader = ShardedIndex.openReader(sharded, "fs", 0))
+        {
+            assertTrue(shardedReader instanceof ShardedIndex.ShardReader);
+            assertEquals(pages.size(), shardedReader.numDocs());
+
+            QueryParser parser = new QueryParser("content", Watson.createQueryAnalyzer());
+            Random random = new Random(7);
+            for (int i = 0; i < 20; i++)
+            {
+                String clue = RandomCorpus.randomText(random, 2);
+                assertEquals(scores(new IndexSearcher(singleReader), parser, clue), scores(new IndexSearcher(shardedReader), parser, clue));
+            }
+        }
+    }
+
+    @Test
+    public void rebuiltShardIsPickedUpOnRefresh() throws Exception
+    {
+        List<Wiki_Page> pages = RandomCorpus.pages(new Random(42), 100, 20);
+        Path sharded = folder.newFolder("sharded").toPath();
+        build(sharded, 3, pages);
+
+        IndexReader reader = ShardedIndex.openReader(sharded, "fs", 0);
+        ShardedIndex.ShardSearcherManager manager = new ShardedIndex.ShardSearcherManager((ShardedIndex.ShardReader) reader, new SearcherFactory());
+        try
+        {
+            IndexSearcher before = manager.acquire();
+            manager.release(before);
+
+            // Rebuild shard 1 from all pages; only its own pages may end up in it
+            try (ShardedIndex index = ShardedIndex.rebuild(sharded, 1, WhitespaceAnalyzer::new))
+            {
+                IndexingPipeline pipeline = new IndexingPipeline(index.sink(false), 1, 2, 16);
+                pipeline.run(index.filter(RandomCorpus.source(pages)), false);
+                index.commit();
+            }
+
+            assertTrue(manager.maybeRefresh());
+            IndexSearcher after = manager.acquire();
+            try
+            {
+                assertNotSame(before, after);
+                assertEquals(pages.size(), after.getIndexReader().numDocs());
+            }
+            finally
+            {
+                manager.release(after);
+            }
+        }
+        finally
+        {
+            manager.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void differentShardCountIsRejected() throws Exception
+    {
+        Path sharded = folder.newFolder("sharded").toPath();
+        build(sharded, 3, RandomCorpus.pages(new Random(42), 10, 20));
+        ShardedIndex.create(sharded, 2, WhitespaceAnalyzer::new).close();
+    }
+
+    private static void build(Path path, int numShards, List<Wiki_Page> pages) throws IOException
+    {
+        try (ShardedIndex index = ShardedIndex.create(path, numShards, WhitespaceAnalyzer::new))
+        {
+            IndexingPipeline pipeline = new IndexingPipeline(index.sink(false), 1, 2, 16);
+            assertEquals(pages.size(), pipeline.run(RandomCorpus.source(pages), false));
+            index.commit();
+        }
+    }
+
+    private static Map<String, Float> scores(IndexSearcher searcher, QueryParser parser, String clue) throws Exception
+    {
+        QueryResult result = Watson.search(searcher, parser, clue, 1000);
+        Map<String, Float> scores = new HashMap<>();
+        for (int i = 0; i < result.titles.length; i++)
+            scores.put(result.titles[i], result.scores[i]);
+        return scores;
+    }
+}
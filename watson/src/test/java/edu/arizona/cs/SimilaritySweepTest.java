@@ -0,0 +1,98 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+/**
+ * Unit test for the per question evaluation and the similarity sweep.
+ */
+public class SimilaritySweepTest
+{
+    @Test
+    public void questionsWithTheSameAnswerAreRankedSeparately()
+    {
+        Evaluation evaluation = new Evaluation();
+        evaluation.add(question("x", "[[Paris]]"), result("[[Paris]]", "[[Rome]]"));
+        evaluation.add(question("y", "[[Paris]]"), result("[[Rome]]", "[[Paris]]"));
+        evaluation.add(question("z", "[[Seine]]"), result("[[Rome]]", "[[Paris]]"));
+
+        assertEquals(3, evaluation.size());
+        assertEquals(2, evaluation.found());
+        assertEquals((1.0 + 0.5 + 0.0) / 3, evaluation.mrr(), 1e-9);
+        assertEquals(1.0 / 3, evaluation.accuracy(), 1e-9);
+    }
+
+    @Test
+    public void sweepMatchesSearchingEachConfigurationAlone() throws Exception
+    {
+        Directory directory = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer())))
+        {
+            String[] contents = { "paris is the capital of france", "rome is the capital of italy", "the seine river flows through paris paris" };
+            for (int i = 0; i < contents.length; i++)
+                writer.addDocument(Watson.createDocument(RandomCorpus.page("[[Page " + i + "]]", null, contents[i])));
+        }
+
+        List<Questions> questions = new ArrayList<>();
+        questions.add(question("capital france", "[[Page 0]]"));
+        questions.add(question("river paris", "[[Page 2]]"));
+        questions.add(question("capital italy", "[[Page 1]]"));
+
+        List<SimilaritySweep.Configuration> grid = SimilaritySweep.grid("classic,boolean,bm25",
+            SimilaritySweep.values("0.9,1.2"), SimilaritySweep.values("0.75"));
+        assertEquals(4, grid.size());
+
+        try (DirectoryReader reader = DirectoryReader.open(directory);
+             SimilaritySweep sweep = new SimilaritySweep(reader, 4, 10))
+        {
+            List<SimilaritySweep.Outcome> outcomes = sweep.run(grid, questions);
+            assertEquals(grid.size(), outcomes.size());
+
+            QueryParser parser = new QueryParser("content", Watson.createQueryAnalyzer());
+            for (int c = 0; c < grid.size(); c++)
+            {
+                SimilaritySweep.Outcome outcome = outcomes.get(c);
+                assertEquals(grid.get(c).name, outcome.configuration.name);
+                assertEquals(questions.size(), outcome.latency.count());
+
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setSimilarity(grid.get(c).similarity);
+                int[] expected = new int[questions.size()];
+                int[] actual = new int[questions.size()];
+                for (int i = 0; i < questions.size(); i++)
+                {
+                    QueryResult result = Watson.search(searcher, parser, questions.get(i).Clue, 10);
+                    expected[i] = Evaluation.rankOf(questions.get(i).Answer, result);
+                    actual[i] = outcome.evaluation.rank(i);
+                }
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    private static Questions question(String clue, String answer)
+    {
+        Questions question = new Questions();
+        question.Clue = clue;
+        question.Answer = answer;
+        return question;
+    }
+
+    private static QueryResult result(String... titles)
+    {
+        return new QueryResult(titles, new float[titles.length]);
+    }
+}
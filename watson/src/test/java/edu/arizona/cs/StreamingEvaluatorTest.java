@@ -0,0 +1,80 @@
+package edu.arizona.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+/**
+ * Unit test checking that the streamed metrics are those of answering the questions one by one.
+ */
+public class StreamingEvaluatorTest
+{
+    @Test
+    public void streamedMetricsMatchSerialEvaluation() throws Exception
+    {
+        Random random = new Random(42);
+        Directory directory = RandomCorpus.index(random, 100, 20, 100);
+
+        StringBuilder questionsFile = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+        {
+            questionsFile.append("CATEGORY\n").append(RandomCorpus.randomText(random, 3)).append('\n')
+                .append("Page ").append(random.nextInt(100)).append("\n\n");
+        }
+
+        try (DirectoryReader reader = DirectoryReader.open(directory))
+        {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            QueryParser parser = new QueryParser("content", Watson.createQueryAnalyzer());
+            Evaluation evaluation = new Evaluation();
+            BufferedReader serial = new BufferedReader(new StringReader(questionsFile.toString()));
+            Questions question;
+            while ((question = StreamingEvaluator.next(serial)) != null)
+                evaluation.add(question, Watson.search(searcher, parser, question.Clue, 10));
+
+            // Queues of one question, so that the stages block on each other all the time
+            StreamingEvaluator evaluator = new StreamingEvaluator(searcher, null, 2, 4, 1, 10, 100);
+            StreamingEvaluator.Tally tally = evaluator.run(new BufferedReader(new StringReader(questionsFile.toString())), false);
+
+            assertEquals(500, evaluation.size());
+            assertEquals(evaluation.size(), tally.size());
+            assertEquals(evaluation.mrr(), tally.mrr(), 1e-9);
+            assertEquals(evaluation.accuracy(), tally.accuracy(), 1e-9);
+            assertEquals(evaluation.foundRate(), tally.recall(10), 1e-9);
+        }
+    }
+
+    @Test
+    public void tallyCountsRanks()
+    {
+        StreamingEvaluator.Tally tally = new StreamingEvaluator.Tally(10);
+        tally.add(1);
+        tally.add(2);
+        tally.add(7);
+        tally.add(0);
+
+        assertEquals(4, tally.size());
+        assertEquals((1.0 + 0.5 + 1.0 / 7) / 4, tally.mrr(), 1e-9);
+        assertEquals(0.25, tally.accuracy(), 1e-9);
+        assertEquals(0.5, tally.recall(5), 1e-9);
+        assertEquals(0.75, tally.recall(10), 1e-9);
+    }
+
+    @Test
+    public void lastQuestionNeedsNoSeparator() throws Exception
+    {
+        BufferedReader questionsFile = new BufferedReader(new StringReader("\n\nCAPITALS\nOn the Seine\nParis\n\nRIVERS\nIn Rome\nTiber"));
+        assertEquals("Paris", StreamingEvaluator.next(questionsFile).Answer);
+        assertEquals("Tiber", StreamingEvaluator.next(questionsFile).Answer);
+        assertNull(StreamingEvaluator.next(questionsFile));
+    }
+}